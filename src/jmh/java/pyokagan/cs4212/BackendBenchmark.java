@@ -0,0 +1,172 @@
+package pyokagan.cs4212;
+
+import java.io.StringReader;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks each backend pass on its own.
+ *
+ * The passes before the one being measured are run once per trial, and each invocation works on a fresh copy of the
+ * resulting IR, so that only the measured pass is timed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BackendBenchmark {
+    /**
+     * The point in the pipeline just before a pass.
+     */
+    public enum Stage {
+        SSA("SsaPass"),
+        SPILL("SpillPass"),
+        REG_TARGET("RegTargetPass"),
+        COLOR("ColorPass"),
+        ARM_GEN(null);
+
+        private final String passName;
+
+        private Stage(String passName) {
+            this.passName = passName;
+        }
+    }
+
+    /**
+     * The IR of a program, with its dom info, as it is just before a pass.
+     */
+    public abstract static class Input {
+        @Param({"10", "100", "1000"})
+        public int size;
+
+        private Ir.Prog snapshot;
+        Ir.Prog prog;
+        DomPass[] domPasses;
+        DomFrontierPass[] domFrontierPasses;
+        HashMap<String, HashMap<String, Integer>> fieldOffsets;
+
+        abstract Stage getStage();
+
+        @Setup(Level.Trial)
+        public void setupTrial() throws Exception {
+            Ast.Prog astProg = Parser.parse(new StringReader(BenchPrograms.generate(size)));
+            StaticCheck.run(astProg);
+            snapshot = IrGen.run(astProg);
+            for (Ir.Meth meth : snapshot.meths)
+                runUpTo(meth, getStage());
+            fieldOffsets = ArmGen.getFieldOffsets(snapshot);
+        }
+
+        @Setup(Level.Invocation)
+        public void setupInvocation() {
+            prog = snapshot.copy();
+            domPasses = new DomPass[prog.meths.size()];
+            domFrontierPasses = new DomFrontierPass[prog.meths.size()];
+            for (int i = 0; i < prog.meths.size(); i++) {
+                domPasses[i] = new DomPass(prog.meths.get(i));
+                domFrontierPasses[i] = new DomFrontierPass(prog.meths.get(i), domPasses[i]);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SsaInput extends Input {
+        @Override
+        Stage getStage() {
+            return Stage.SSA;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SpillInput extends Input {
+        @Override
+        Stage getStage() {
+            return Stage.SPILL;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class RegTargetInput extends Input {
+        @Override
+        Stage getStage() {
+            return Stage.REG_TARGET;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ColorInput extends Input {
+        @Override
+        Stage getStage() {
+            return Stage.COLOR;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ArmGenInput extends Input {
+        @Override
+        Stage getStage() {
+            return Stage.ARM_GEN;
+        }
+    }
+
+    /**
+     * Runs the backend passes on meth, stopping just before the pass of the given stage.
+     */
+    static void runUpTo(Ir.Meth meth, Stage stage) {
+        PassManager pm = new PassManager(meth, Metrics.DISABLED);
+        for (PassManager.Pass pass : PassManager.getBackendPasses(0)) {
+            if (pass.name.equals(stage.passName))
+                return;
+            pm.run(pass);
+        }
+    }
+
+    @Benchmark
+    public Ir.Prog ssaPass(SsaInput in) {
+        for (int i = 0; i < in.prog.meths.size(); i++)
+            SsaPass.run(in.prog.meths.get(i), in.domPasses[i], in.domFrontierPasses[i]);
+        return in.prog;
+    }
+
+    @Benchmark
+    public Ir.Prog spillPass(SpillInput in) {
+        for (int i = 0; i < in.prog.meths.size(); i++)
+            SpillPass.run(in.prog.meths.get(i), in.domPasses[i], in.domFrontierPasses[i]);
+        return in.prog;
+    }
+
+    /**
+     * Includes the LivePass that RegTargetPass needs.
+     */
+    @Benchmark
+    public Ir.Prog regTargetPass(RegTargetInput in) {
+        for (int i = 0; i < in.prog.meths.size(); i++) {
+            Ir.Meth meth = in.prog.meths.get(i);
+            RegTargetPass.run(meth, in.domPasses[i], in.domFrontierPasses[i], new LivePass(meth));
+        }
+        return in.prog;
+    }
+
+    /**
+     * Includes the LivePass that ColorPass needs.
+     */
+    @Benchmark
+    public Ir.Prog colorPass(ColorInput in) {
+        for (int i = 0; i < in.prog.meths.size(); i++) {
+            Ir.Meth meth = in.prog.meths.get(i);
+            ColorPass.run(meth, in.domPasses[i], new LivePass(meth));
+        }
+        return in.prog;
+    }
+
+    @Benchmark
+    public List<ArmGen.Fragment> armGen(ArmGenInput in) {
+        ArrayList<ArmGen.Fragment> fragments = new ArrayList<>();
+        for (Ir.Meth meth : in.prog.meths)
+            fragments.add(ArmGen.run(meth, in.fieldOffsets));
+        return fragments;
+    }
+}
@@ -0,0 +1,20 @@
+package pyokagan.cs4212;
+
+/**
+ * Generates the JLite programs that the benchmarks compile.
+ */
+public class BenchPrograms {
+    private static final long SEED = 4212;
+
+    /**
+     * Returns a program with about numMeths methods, made with ProgramGenerator's default knobs otherwise.
+     */
+    public static String generate(int numMeths) {
+        ProgramGenerator.Options opts = new ProgramGenerator.Options();
+        opts.seed = SEED;
+        opts.methsPerClass = 5;
+        opts.overloads = 2;
+        opts.numClasses = Math.max(1, numMeths / (opts.methsPerClass * opts.overloads));
+        return ProgramGenerator.generate(opts);
+    }
+}
@@ -0,0 +1,54 @@
+package pyokagan.cs4212;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks the frontend: parsing, static checking and IR generation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrontendBenchmark {
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private String src;
+    private Ast.Prog checkedProg;
+
+    // StaticCheck annotates the AST, so it gets a freshly parsed one each time
+    private Ast.Prog uncheckedProg;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        src = BenchPrograms.generate(size);
+        checkedProg = Parser.parse(new StringReader(src));
+        StaticCheck.run(checkedProg);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws Exception {
+        uncheckedProg = Parser.parse(new StringReader(src));
+    }
+
+    @Benchmark
+    public Ast.Prog parser() throws Exception {
+        return Parser.parse(new StringReader(src));
+    }
+
+    @Benchmark
+    public Ast.Prog staticCheck() throws Exception {
+        StaticCheck.run(uncheckedProg);
+        return uncheckedProg;
+    }
+
+    @Benchmark
+    public Ir.Prog irGen() {
+        return IrGen.run(checkedProg);
+    }
+}
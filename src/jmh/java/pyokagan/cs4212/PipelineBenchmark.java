@@ -0,0 +1,37 @@
+package pyokagan.cs4212;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks the whole pipeline, from JLite source to ARM assembly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    @Param({"0", "1", "2"})
+    public int optLevel;
+
+    private String src;
+    private Compiler compiler;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        src = BenchPrograms.generate(size);
+        compiler = new Compiler(optLevel, 1);
+    }
+
+    @Benchmark
+    public Arm.Prog compile() throws Exception {
+        return compiler.compile(new StringReader(src));
+    }
+}
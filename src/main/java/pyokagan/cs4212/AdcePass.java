@@ -0,0 +1,341 @@
+package pyokagan.cs4212;
+
+import java.util.*;
+
+/**
+ * Aggressive dead code elimination.
+ *
+ * Efficiently Computing Static Single Assignment Form and the Control Dependence Graph (Cytron et al.), Section 7.1
+ * https://dl.acm.org/doi/10.1145/115372.115320
+ *
+ * Stmts with side effects (returns, calls, field assignments, readln and println) are live. So are the defs of the
+ * vars used by live stmts, and the branches that decide whether a live stmt runs (its control dependences). Everything
+ * else is removed. A dead branch becomes a goto to its immediate postdominator, skipping the blocks in between, which
+ * can no longer do anything useful.
+ *
+ * Postdominators are computed on the reverse CFG from a virtual exit, which every block ending in a return, and every
+ * block that can never reach one (i.e. is stuck in an infinite loop), is joined to. A branch whose immediate
+ * postdominator is the virtual exit is always live. So is every branch that leaves a loop, as removing a loop that
+ * never terminates would make the method return instead.
+ *
+ * Must be run on SSA form. Leaves the blocks in SSA form, with fresh orderings.
+ */
+public class AdcePass {
+    private final Ir.Meth meth;
+    private final LoopPass loopPass;
+    private final int numBlocks;
+    private final HashMap<Ir.Block, Integer> blockToIndex = new HashMap<>();
+
+    // Index in meth.blocks -> index of immediate postdominator. The virtual exit is numBlocks.
+    private int[] ipdoms;
+    // Block -> blocks ending in a CmpStmt which decide whether it runs
+    private final HashMap<Ir.Block, ArrayList<Ir.Block>> controlDeps = new HashMap<>();
+
+    private final HashMap<Ir.Var, Ir.Stmt> varDefs = new HashMap<>();
+    private final HashMap<Ir.Stmt, Ir.Block> stmtBlocks = new HashMap<>();
+    private final HashSet<Ir.Stmt> live = new HashSet<>();
+    private final HashSet<Ir.Block> liveBlocks = new HashSet<>();
+    private final ArrayDeque<Ir.Stmt> worklist = new ArrayDeque<>();
+    private boolean modified;
+
+    private AdcePass(Ir.Meth meth, LoopPass loopPass) {
+        this.meth = meth;
+        this.loopPass = loopPass;
+        numBlocks = meth.blocks.size();
+        for (int i = 0; i < numBlocks; i++)
+            blockToIndex.put(meth.blocks.get(i), i);
+    }
+
+    /**
+     * Returns false if the method was not modified.
+     */
+    public static boolean run(Ir.Meth meth, LoopPass loopPass) {
+        if (meth.blocks.isEmpty())
+            return false;
+        AdcePass p = new AdcePass(meth, loopPass);
+        p.computePostdoms();
+        p.computeControlDeps();
+        p.mark();
+        p.sweep();
+        return p.modified;
+    }
+
+    private void computePostdoms() {
+        int exit = numBlocks;
+
+        // Blocks that can reach a return
+        ArrayList<Integer> exitPreds = new ArrayList<>();
+        for (int i = 0; i < numBlocks; i++) {
+            if (getSuccs(meth.blocks.get(i)).isEmpty())
+                exitPreds.add(i);
+        }
+        DfsOrder dfs = reverseDfs(exitPreds);
+
+        // Join the rest to the exit as well
+        for (int i = 0; i < numBlocks; i++) {
+            if (!dfs.isVisited(i))
+                exitPreds.add(i);
+        }
+        if (dfs.numVisited != numBlocks + 1)
+            dfs = reverseDfs(exitPreds);
+        HashSet<Integer> exitPredSet = new HashSet<>(exitPreds);
+
+        // Iterative dominators of the reverse CFG, in terms of its postorder numbers. See DomPass.
+        int[] idoms = new int[numBlocks + 1];
+        Arrays.fill(idoms, -1);
+        int root = dfs.postNum[exit];
+        idoms[root] = root;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = numBlocks - 1; i >= 0; i--) {
+                int b = dfs.post[i];
+                int newIdom = -1;
+                ArrayList<Integer> preds = new ArrayList<>();
+                for (Ir.Block succ : getSuccs(meth.blocks.get(b)))
+                    preds.add(blockToIndex.get(succ));
+                if (exitPredSet.contains(b))
+                    preds.add(exit);
+                for (int pred : preds) {
+                    int p = dfs.postNum[pred];
+                    if (idoms[p] < 0)
+                        continue;
+                    newIdom = newIdom < 0 ? p : intersect(idoms, p, newIdom);
+                }
+                if (idoms[i] != newIdom) {
+                    idoms[i] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+
+        ipdoms = new int[numBlocks];
+        for (int b = 0; b < numBlocks; b++)
+            ipdoms[b] = dfs.post[idoms[dfs.postNum[b]]];
+    }
+
+    /**
+     * Traverses the reverse CFG from the virtual exit, whose successors are exitPreds.
+     */
+    private DfsOrder reverseDfs(List<Integer> exitPreds) {
+        int[] succStart = new int[numBlocks + 2];
+        int numSuccs = 0;
+        for (Ir.Block block : meth.blocks)
+            numSuccs += block.incoming.size();
+        int[] succs = new int[numSuccs + exitPreds.size()];
+        numSuccs = 0;
+        for (int i = 0; i < numBlocks; i++) {
+            for (Ir.Block pred : meth.blocks.get(i).incoming)
+                succs[numSuccs++] = blockToIndex.get(pred);
+            succStart[i + 1] = numSuccs;
+        }
+        for (int pred : exitPreds)
+            succs[numSuccs++] = pred;
+        succStart[numBlocks + 1] = numSuccs;
+        return new DfsOrder(succStart, succs, numBlocks);
+    }
+
+    private static int intersect(int[] idoms, int finger1, int finger2) {
+        while (finger1 != finger2) {
+            while (finger1 < finger2)
+                finger1 = idoms[finger1];
+            while (finger2 < finger1)
+                finger2 = idoms[finger2];
+        }
+        return finger1;
+    }
+
+    private static List<Ir.Block> getSuccs(Ir.Block block) {
+        ArrayList<Ir.Block> succs = new ArrayList<>(2);
+        if (block.outgoingDirect != null)
+            succs.add(block.outgoingDirect);
+        if (block.outgoingCond != null)
+            succs.add(block.outgoingCond);
+        return succs;
+    }
+
+    /**
+     * A block is control dependent on a branch if it postdominates one of the branch's successors, but not the branch
+     * itself, i.e. it is in the postdominance frontier of the branch.
+     */
+    private void computeControlDeps() {
+        for (Ir.Block block : meth.blocks)
+            controlDeps.put(block, new ArrayList<>());
+        for (int b = 0; b < numBlocks; b++) {
+            Ir.Block block = meth.blocks.get(b);
+            if (block.outgoingCond == null)
+                continue;
+            for (Ir.Block succ : getSuccs(block)) {
+                int runner = blockToIndex.get(succ);
+                while (runner != ipdoms[b] && runner != numBlocks) {
+                    ArrayList<Ir.Block> deps = controlDeps.get(meth.blocks.get(runner));
+                    if (!deps.contains(block))
+                        deps.add(block);
+                    runner = ipdoms[runner];
+                }
+            }
+        }
+    }
+
+    private void mark() {
+        for (Ir.Block block : meth.blocks) {
+            for (Ir.Stmt stmt : block.stmts) {
+                stmtBlocks.put(stmt, block);
+                for (int i = 0; i < stmt.numDefs(); i++) {
+                    if (stmt.getDef(i) != null)
+                        varDefs.put(stmt.getDef(i), stmt);
+                }
+            }
+        }
+
+        for (int b = 0; b < numBlocks; b++) {
+            Ir.Block block = meth.blocks.get(b);
+            for (Ir.Stmt stmt : block.stmts) {
+                if (isRoot(stmt) || (stmt instanceof Ir.CmpStmt && (ipdoms[b] == numBlocks || isLoopExit(block))))
+                    markLive(stmt);
+            }
+        }
+
+        while (!worklist.isEmpty()) {
+            Ir.Stmt stmt = worklist.removeFirst();
+            Ir.Block block = stmtBlocks.get(stmt);
+
+            for (int i = 0; i < stmt.numUses(); i++)
+                markDef(stmt.getUse(i));
+
+            if (stmt instanceof Ir.PhiStmt) {
+                // Which arg is taken depends on the branches that lead to each pred
+                for (Ir.Var v : ((Ir.PhiStmt) stmt).args)
+                    markDef(v);
+                for (Ir.Block pred : block.incoming)
+                    markControlDeps(pred);
+            }
+
+            if (liveBlocks.add(block))
+                markControlDeps(block);
+        }
+    }
+
+    private static boolean isRoot(Ir.Stmt stmt) {
+        return !(stmt instanceof Ir.PhiStmt || stmt instanceof Ir.AssignStmt || stmt instanceof Ir.BinaryStmt
+                || stmt instanceof Ir.UnaryStmt || stmt instanceof Ir.FieldAccessStmt || stmt instanceof Ir.NewStmt
+                || stmt instanceof Ir.JumpStmt);
+    }
+
+    private boolean isLoopExit(Ir.Block block) {
+        LoopPass.Loop loop = loopPass.getLoop(block);
+        if (loop == null)
+            return false;
+        for (Ir.Block succ : getSuccs(block)) {
+            if (!loop.contains(succ))
+                return true;
+        }
+        return false;
+    }
+
+    private void markLive(Ir.Stmt stmt) {
+        if (live.add(stmt))
+            worklist.addLast(stmt);
+    }
+
+    private void markDef(Ir.Var v) {
+        Ir.Stmt def = v != null ? varDefs.get(v) : null;
+        if (def != null)
+            markLive(def);
+    }
+
+    private void markControlDeps(Ir.Block block) {
+        for (Ir.Block dep : controlDeps.get(block))
+            markLive(dep.stmts.get(dep.stmts.size() - 1));
+    }
+
+    private void sweep() {
+        // Remove dead stmts, then turn dead branches into gotos to their immediate postdominators
+        for (int b = 0; b < numBlocks; b++) {
+            Ir.Block block = meth.blocks.get(b);
+            ArrayList<Ir.Stmt> newStmts = new ArrayList<>();
+            for (Ir.Stmt stmt : block.stmts) {
+                if (live.contains(stmt) || stmt instanceof Ir.GotoStmt)
+                    newStmts.add(stmt);
+                else
+                    modified = true;
+            }
+            block.stmts = newStmts;
+        }
+        for (int b = 0; b < numBlocks; b++) {
+            Ir.Block block = meth.blocks.get(b);
+            int numStmts = block.stmts.size();
+            if (block.outgoingCond != null && (numStmts == 0 || !(block.stmts.get(numStmts - 1) instanceof Ir.CmpStmt)))
+                redirect(block, meth.blocks.get(ipdoms[b]));
+        }
+
+        if (!modified)
+            return;
+
+        // Remove the blocks that were skipped over, and their edges into reachable ones
+        DfsOrder dfs = DfsOrder.numberBlocks(meth, meth.blocks);
+        ArrayList<Ir.Block> newBlocks = new ArrayList<>();
+        for (int i = 0; i < numBlocks; i++) {
+            Ir.Block block = meth.blocks.get(i);
+            if (dfs.isVisited(i)) {
+                newBlocks.add(block);
+                continue;
+            }
+            for (Ir.Block succ : getSuccs(block)) {
+                if (dfs.isVisited(blockToIndex.get(succ)))
+                    removeIncoming(succ, block);
+            }
+        }
+        meth.blocks = newBlocks;
+
+        // Re-number blocks, as new blocks are named after the number of blocks
+        int blockIndex = 0;
+        for (Ir.Block block : meth.blocks)
+            block.label.name = "B" + (blockIndex++);
+
+        DfsOrder.numberBlocks(meth, meth.blocks);
+    }
+
+    private void redirect(Ir.Block block, Ir.Block target) {
+        // Phi args from block into target are kept. Other live phis in target can't depend on the dead branch.
+        List<Ir.Var> args = null;
+        int idx = target.incoming.indexOf(block);
+        if (idx >= 0) {
+            args = new ArrayList<>();
+            for (Ir.Stmt stmt : target.stmts) {
+                if (!(stmt instanceof Ir.PhiStmt))
+                    break;
+                args.add(((Ir.PhiStmt) stmt).args.get(idx));
+            }
+        }
+        for (Ir.Block succ : getSuccs(block))
+            removeIncoming(succ, block);
+
+        target.incoming.add(block);
+        int i = 0;
+        for (Ir.Stmt stmt : target.stmts) {
+            if (!(stmt instanceof Ir.PhiStmt))
+                break;
+            if (args == null)
+                throw new AssertionError("BUG: live phi in " + target + " depends on dead branch in " + block);
+            ((Ir.PhiStmt) stmt).args.add(args.get(i++));
+        }
+
+        block.stmts.add(new Ir.GotoStmt(target.label));
+        block.outgoingDirect = target;
+        block.outgoingCond = null;
+    }
+
+    /**
+     * Removes the edge from pred into block, along with the corresponding phi args.
+     */
+    private static void removeIncoming(Ir.Block block, Ir.Block pred) {
+        int idx = block.incoming.indexOf(pred);
+        block.incoming.remove(idx);
+        for (Ir.Stmt stmt : block.stmts) {
+            if (!(stmt instanceof Ir.PhiStmt))
+                break;
+            ((Ir.PhiStmt) stmt).args.remove(idx);
+        }
+    }
+}
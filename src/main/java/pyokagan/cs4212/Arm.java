@@ -1,9 +1,14 @@
 package pyokagan.cs4212;
 
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.math.*;
 
 public class Arm {
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
     public static class Prog {
         public final List<Block> textBlocks;
         public final List<Block> dataBlocks;
@@ -16,19 +21,64 @@ public class Arm {
         }
 
         public String render() {
-            StringBuffer sb = new StringBuffer();
+            StringBuilder sb = new StringBuilder();
+            render(sb);
+            return sb.toString();
+        }
+
+        public void render(StringBuilder sb) {
+            try {
+                writeTo(sb);
+            } catch (IOException e) {
+                throw new AssertionError("BUG: StringBuilder threw IOException", e);
+            }
+        }
+
+        /**
+         * Writes the assembly, appending each instr directly to out without rendering it to a String first.
+         */
+        public void writeTo(Appendable out) throws IOException {
             ArrayList<String> sortedGlobals = new ArrayList<>(globals);
             Collections.sort(sortedGlobals);
             for (String global : sortedGlobals)
-                sb.append("    .global ").append(global).append('\n');
-            sb.append("\n    .text\n");
+                out.append("    .global ").append(global).append('\n');
+            out.append("\n    .text\n");
             for (Block textBlock : textBlocks)
-                sb.append(textBlock.render());
-            sb.append("\n    .data\n");
+                textBlock.writeTo(out);
+            out.append("\n    .data\n");
             for (Block dataBlock : dataBlocks)
-                sb.append(dataBlock.render());
-            return sb.toString();
+                dataBlock.writeTo(out);
+        }
+
+        /**
+         * Writes the assembly to a channel through a buffer. The channel is not closed.
+         */
+        public void writeTo(WritableByteChannel channel) throws IOException {
+            Writer writer = newWriter(channel);
+            writeTo(writer);
+            writer.flush();
         }
+
+        /**
+         * Returns a copy of the program that is not affected by later passes on it.
+         */
+        public Prog copy() {
+            return new Prog(copyBlocks(textBlocks), copyBlocks(dataBlocks), globals);
+        }
+
+        private static ArrayList<Block> copyBlocks(List<Block> blocks) {
+            ArrayList<Block> out = new ArrayList<>();
+            for (Block block : blocks)
+                out.add(block.copy());
+            return out;
+        }
+    }
+
+    /**
+     * Returns a buffered writer of assembly to the channel, which must be flushed but need not be closed.
+     */
+    public static Writer newWriter(WritableByteChannel channel) {
+        return new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), WRITE_BUFFER_SIZE));
     }
 
     public static enum Reg {
@@ -130,8 +180,51 @@ public class Arm {
         return (i & ~0xc000003f) == 0 || (i & ~0xf000000f) == 0 || (i & ~0xfc000003) == 0;
     }
 
+    /**
+     * Appends the decimal representation of i to out, without creating a String.
+     */
+    static void appendInt(Appendable out, int i) throws IOException {
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(i);
+            return;
+        }
+        long v = i;
+        if (v < 0) {
+            out.append('-');
+            v = -v;
+        }
+        long div = 1;
+        while (div * 10 <= v)
+            div *= 10;
+        for (; div > 0; div /= 10)
+            out.append((char) ('0' + v / div % 10));
+    }
+
+    private static void writeRegList(Appendable out, Set<Reg> regs) throws IOException {
+        out.append('{');
+        int i = 0;
+        for (Reg reg : Reg.values()) {
+            if (!regs.contains(reg))
+                continue;
+            if (i++ > 0)
+                out.append(", ");
+            out.append(reg.render());
+        }
+        out.append("}\n");
+    }
+
     public static abstract class Operand2 {
-        public abstract String render();
+        public abstract void writeTo(Appendable out) throws IOException;
+
+        public String render() {
+            StringBuilder sb = new StringBuilder();
+            try {
+                writeTo(sb);
+            } catch (IOException e) {
+                throw new AssertionError("BUG: StringBuilder threw IOException", e);
+            }
+            return sb.toString();
+        }
     }
     public static class Operand2Const extends Operand2 {
         public final int i;
@@ -143,8 +236,9 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            return "#" + i;
+        public void writeTo(Appendable out) throws IOException {
+            out.append('#');
+            appendInt(out, i);
         }
     }
     public static class Operand2Reg extends Operand2 {
@@ -155,8 +249,8 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            return reg.render();
+        public void writeTo(Appendable out) throws IOException {
+            out.append(reg.render());
         }
     }
 
@@ -171,18 +265,56 @@ public class Arm {
         }
 
         public String render() {
-            StringBuffer sb = new StringBuffer();
+            StringBuilder sb = new StringBuilder();
+            render(sb);
+            return sb.toString();
+        }
+
+        public void render(StringBuilder sb) {
+            try {
+                writeTo(sb);
+            } catch (IOException e) {
+                throw new AssertionError("BUG: StringBuilder threw IOException", e);
+            }
+        }
+
+        public void writeTo(Appendable out) throws IOException {
             if (special)
-                sb.append('\n');
-            sb.append(name).append(":\n");
+                out.append('\n');
+            out.append(name).append(":\n");
             for (Instr instr : instrs)
-                sb.append(instr.render());
-            return sb.toString();
+                instr.writeTo(out);
+        }
+
+        public Block copy() {
+            ArrayList<Instr> instrCopies = new ArrayList<>();
+            for (Instr instr : instrs)
+                instrCopies.add(instr.copy());
+            Block copy = new Block(name, instrCopies);
+            copy.special = special;
+            return copy;
         }
     }
 
     public static abstract class Instr {
-        public abstract String render();
+        public abstract void writeTo(Appendable out) throws IOException;
+
+        public String render() {
+            StringBuilder sb = new StringBuilder();
+            try {
+                writeTo(sb);
+            } catch (IOException e) {
+                throw new AssertionError("BUG: StringBuilder threw IOException", e);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Returns a copy of the instr. Instrs without any mutable fields can be shared.
+         */
+        public Instr copy() {
+            return this;
+        }
     }
 
     public static class AddInstr extends Instr {
@@ -203,9 +335,10 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            String name = s ? "adds" : "add";
-            return "    " + name + " " + dst.render() + ", " +  a.render() + ", " + b.render() + "\n";
+        public void writeTo(Appendable out) throws IOException {
+            out.append(s ? "    adds " : "    add ").append(dst.render()).append(", ").append(a.render()).append(", ");
+            b.writeTo(out);
+            out.append('\n');
         }
     }
 
@@ -227,9 +360,10 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            String name = s ? "subs" : "sub";
-            return "    " + name + " " + dst.render() + ", " + a.render() + ", " + b.render() + "\n";
+        public void writeTo(Appendable out) throws IOException {
+            out.append(s ? "    subs " : "    sub ").append(dst.render()).append(", ").append(a.render()).append(", ");
+            b.writeTo(out);
+            out.append('\n');
         }
     }
 
@@ -251,8 +385,10 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            return "    rsb" + (s ? "s" : "") + " " + dst.render() + ", " + a.render() + ", " + b.render() + "\n";
+        public void writeTo(Appendable out) throws IOException {
+            out.append(s ? "    rsbs " : "    rsb ").append(dst.render()).append(", ").append(a.render()).append(", ");
+            b.writeTo(out);
+            out.append('\n');
         }
     }
 
@@ -274,9 +410,9 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            String name = s ? "muls" : "mul";
-            return "    " + name + " " + dst.render() + ", " + a.render() + ", " + b.render() + "\n";
+        public void writeTo(Appendable out) throws IOException {
+            out.append(s ? "    muls " : "    mul ").append(dst.render()).append(", ").append(a.render()).append(", ");
+            out.append(b.render()).append('\n');
         }
     }
 
@@ -300,8 +436,15 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            return "    mov" + cond.render() + " " + dst.render() + ", " + src.render() + "\n";
+        public Instr copy() {
+            return new MovInstr(cond, dst, src);
+        }
+
+        @Override
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    mov").append(cond.render()).append(' ').append(dst.render()).append(", ");
+            src.writeTo(out);
+            out.append('\n');
         }
     }
 
@@ -317,8 +460,10 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            return "    mov " + dst.render() + ", #" + i + "\n";
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    mov ").append(dst.render()).append(", #");
+            appendInt(out, i);
+            out.append('\n');
         }
     }
 
@@ -332,8 +477,13 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            return "    b" + cond.render() + " " + label + "\n";
+        public Instr copy() {
+            return new BInstr(cond, label);
+        }
+
+        @Override
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    b").append(cond.render()).append(' ').append(label).append('\n');
         }
     }
 
@@ -347,8 +497,8 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            return "    bl" + cond.render() + " " + label + "\n";
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    bl").append(cond.render()).append(' ').append(label).append('\n');
         }
     }
 
@@ -362,8 +512,8 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            return "    bx" + cond.render() + " " + reg.render() + "\n";
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    bx").append(cond.render()).append(' ').append(reg.render()).append('\n');
         }
     }
 
@@ -379,11 +529,13 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            if (offset == 0)
-                return "    ldr " + reg.render() + ", [" + mem.render() + "]\n";
-            else
-                return "    ldr " + reg.render() + ", [" + mem.render() + ", #" + offset + "]\n";
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    ldr ").append(reg.render()).append(", [").append(mem.render());
+            if (offset != 0) {
+                out.append(", #");
+                appendInt(out, offset);
+            }
+            out.append("]\n");
         }
     }
 
@@ -397,8 +549,10 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            return "    ldr " + reg.render() + ", =" + i + "\n";
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    ldr ").append(reg.render()).append(", =");
+            appendInt(out, i);
+            out.append('\n');
         }
     }
 
@@ -412,8 +566,8 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            return "    ldr " + reg.render() + ", =" + label + "\n";
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    ldr ").append(reg.render()).append(", =").append(label).append('\n');
         }
     }
 
@@ -429,11 +583,13 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            if (offset == 0)
-                return "    str " + reg.render() + ", [" + mem.render() + "]\n";
-            else
-                return "    str " + reg.render() + ", [" + mem.render() + ", #" + offset + "]\n";
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    str ").append(reg.render()).append(", [").append(mem.render());
+            if (offset != 0) {
+                out.append(", #");
+                appendInt(out, offset);
+            }
+            out.append("]\n");
         }
     }
 
@@ -449,11 +605,11 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            if (offset == null)
-                return "    strb " + reg.render() + ", [" + mem.render() + "]\n";
-            else
-                return "    strb " + reg.render() + ", [" + mem.render() + ", " + offset.render() + "]\n";
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    strb ").append(reg.render()).append(", [").append(mem.render());
+            if (offset != null)
+                out.append(", ").append(offset.render());
+            out.append("]\n");
         }
     }
 
@@ -473,8 +629,15 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            return "    cmp" + cond.render() + " " + a.render() + ", " + b.render() + "\n";
+        public Instr copy() {
+            return new CmpInstr(cond, a, b);
+        }
+
+        @Override
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    cmp").append(cond.render()).append(' ').append(a.render()).append(", ");
+            b.writeTo(out);
+            out.append('\n');
         }
     }
 
@@ -488,8 +651,10 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            return "    cmn " + a.render() + ", " + b.render() + "\n";
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    cmn ").append(a.render()).append(", ");
+            b.writeTo(out);
+            out.append('\n');
         }
     }
 
@@ -503,19 +668,9 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            ArrayList<Reg> reglist = new ArrayList<>(regs);
-            Collections.sort(reglist);
-            StringBuilder sb = new StringBuilder();
-            sb.append("    push {");
-            int i = 0;
-            for (Reg reg : reglist) {
-                if (i++ > 0)
-                    sb.append(", ");
-                sb.append(reg.render());
-            }
-            sb.append("}\n");
-            return sb.toString();
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    push ");
+            writeRegList(out, regs);
         }
     }
 
@@ -529,19 +684,9 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            ArrayList<Reg> reglist = new ArrayList<>(regs);
-            Collections.sort(reglist);
-            StringBuilder sb = new StringBuilder();
-            sb.append("    pop {");
-            int i = 0;
-            for (Reg reg : reglist) {
-                if (i++ > 0)
-                    sb.append(", ");
-                sb.append(reg.render());
-            }
-            sb.append("}\n");
-            return sb.toString();
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    pop ");
+            writeRegList(out, regs);
         }
     }
 
@@ -553,8 +698,8 @@ public class Arm {
         }
 
         @Override
-        public String render() {
-            return "    .asciz \"" + Ast.escape(s) + "\"\n";
+        public void writeTo(Appendable out) throws IOException {
+            out.append("    .asciz \"").append(Ast.escape(s)).append("\"\n");
         }
     }
 }
@@ -8,7 +8,8 @@ import java.util.*;
 public class ArmDeadBlockElim {
     private HashMap<String, Arm.Block> nameToBlock = new HashMap<>();
     private HashMap<Arm.Block, HashSet<Arm.Block>> outgoing = new HashMap<>();
-    private HashSet<Arm.Block> visited = new HashSet<>();
+    private ArrayList<Arm.Block> blocks = new ArrayList<>();
+    private HashMap<Arm.Block, Integer> blockToIndex = new HashMap<>();
 
     public static void run(Arm.Prog prog) {
         ArmDeadBlockElim p = new ArmDeadBlockElim();
@@ -30,19 +31,34 @@ public class ArmDeadBlockElim {
         }
 
         // DFS time
+        int numBlocks = p.blocks.size();
+        int[] succStart = new int[numBlocks + 1];
+        ArrayList<Integer> succList = new ArrayList<>();
+        for (int i = 0; i < numBlocks; i++) {
+            for (Arm.Block dst : p.outgoing.get(p.blocks.get(i)))
+                succList.add(p.blockToIndex.get(dst));
+            succStart[i + 1] = succList.size();
+        }
+        int[] succs = new int[succList.size()];
+        for (int i = 0; i < succs.length; i++)
+            succs[i] = succList.get(i);
+        ArrayList<Integer> rootList = new ArrayList<>();
         for (String glob : prog.globals) {
-            if (!p.nameToBlock.containsKey(glob))
-                continue;
-            Arm.Block block = p.nameToBlock.get(glob);
-            if (p.visited.contains(block))
-                continue;
-            p.dfs(block);
+            if (p.nameToBlock.containsKey(glob))
+                rootList.add(p.blockToIndex.get(p.nameToBlock.get(glob)));
         }
+        int[] roots = new int[rootList.size()];
+        for (int i = 0; i < roots.length; i++)
+            roots[i] = rootList.get(i);
+        DfsOrder dfs = new DfsOrder(succStart, succs, roots);
+        HashSet<Arm.Block> visited = new HashSet<>();
+        for (int i = 0; i < dfs.numVisited; i++)
+            visited.add(p.blocks.get(dfs.pre[i]));
 
         // Build new block list without dead blocks
         ArrayList<Arm.Block> newBlocks = new ArrayList<>();
         for (Arm.Block block : prog.textBlocks) {
-            if (!p.visited.contains(block))
+            if (!visited.contains(block))
                 continue;
             newBlocks.add(block);
         }
@@ -51,7 +67,7 @@ public class ArmDeadBlockElim {
 
         newBlocks.clear();
         for (Arm.Block block : prog.dataBlocks) {
-            if (!p.visited.contains(block))
+            if (!visited.contains(block))
                 continue;
             newBlocks.add(block);
         }
@@ -62,6 +78,8 @@ public class ArmDeadBlockElim {
     private void doBlock(Arm.Block block) {
         HashSet<Arm.Block> blockOutgoing = new HashSet<>();
         outgoing.put(block, blockOutgoing);
+        blockToIndex.put(block, blocks.size());
+        blocks.add(block);
         for (Arm.Instr instr : block.instrs) {
             if (instr instanceof Arm.BInstr) {
                 Arm.BInstr bInstr = (Arm.BInstr) instr;
@@ -84,12 +102,4 @@ public class ArmDeadBlockElim {
             }
         }
     }
-
-    private void dfs(Arm.Block x) {
-        visited.add(x);
-        for (Arm.Block dst : outgoing.get(x)) {
-            if (!visited.contains(dst))
-                dfs(dst);
-        }
-    }
 }
@@ -4,29 +4,90 @@ import java.util.*;
 
 /**
  * Generates ARM.
+ *
+ * Each method is generated on its own into a {@link Fragment}, which can be done for several methods in parallel.
+ * The fragments are then linked together into a single program with {@link #link(List)}.
  */
 public class ArmGen {
+    /**
+     * The ARM code of a single method.
+     *
+     * Apart from the method's own entry label, all labels in a fragment are local to it.
+     * They are only given their final names when the fragments are linked together.
+     */
+    public static class Fragment {
+        public final ArrayList<Arm.Block> textBlocks;
+        public final ArrayList<String> labels; // Local labels, in the order they were created
+        public final HashMap<String, String> strings; // Local label -> string literal
+        public final HashSet<String> globals; // External symbols referenced by the method
+
+        public Fragment(List<Arm.Block> textBlocks, List<String> labels, Map<String, String> strings, Collection<String> globals) {
+            this.textBlocks = new ArrayList<>(textBlocks);
+            this.labels = new ArrayList<>(labels);
+            this.strings = new HashMap<>(strings);
+            this.globals = new HashSet<>(globals);
+        }
+
+        /**
+         * Returns a copy of the fragment that is not affected by linking it, or by later passes on the linked program.
+         */
+        public Fragment copy() {
+            ArrayList<Arm.Block> blockCopies = new ArrayList<>();
+            for (Arm.Block block : textBlocks)
+                blockCopies.add(block.copy());
+            return new Fragment(blockCopies, labels, strings, globals);
+        }
+    }
+
     private ArrayList<Arm.Block> textBlocks = new ArrayList<>();
-    private ArrayList<Arm.Block> dataBlocks = new ArrayList<>();
+    private ArrayList<String> labels = new ArrayList<>();
     private Arm.Block currBlock;
     private HashSet<String> globals = new HashSet<>();
 
     private HashMap<Ir.Block, String> blockToLabelName;
     private HashMap<Ir.PhiWeb, Integer> stackOffsets;
-    private HashMap<String, HashMap<String, Integer>> fieldOffsets = new HashMap<>();
+    private final Map<String, HashMap<String, Integer>> fieldOffsets;
     private HashMap<String, String> stringToLabelName = new HashMap<>();
+    private HashMap<String, String> labelNameToString = new HashMap<>();
     private String epilogueLabel;
     private int labelIdx;
-    private HashSet<Arm.Reg> calleeRegs;
+    private EnumSet<Arm.Reg> calleeRegs;
     private LivePass livePass;
     private boolean isMain;
-    private HashSet<Ir.Block> visited;
     private ArrayList<Ir.Block> blocksPo;
 
+    private ArmGen(Map<String, HashMap<String, Integer>> fieldOffsets) {
+        this.fieldOffsets = fieldOffsets;
+    }
+
     public static Arm.Prog run(Ir.Prog prog) {
-        ArmGen ag = new ArmGen();
+        HashMap<String, HashMap<String, Integer>> fieldOffsets = getFieldOffsets(prog);
+        ArrayList<Fragment> fragments = new ArrayList<>();
+        for (Ir.Meth meth : prog.meths)
+            fragments.add(run(meth, fieldOffsets));
+        return link(fragments);
+    }
 
-        // Compute field offsets
+    /**
+     * Generates the fragment for a single method.
+     * Methods do not share any state, so this may be called for different methods concurrently.
+     */
+    public static Fragment run(Ir.Meth meth, Map<String, HashMap<String, Integer>> fieldOffsets) {
+        return run(meth, fieldOffsets, new LivePass(meth));
+    }
+
+    /**
+     * @param livePass Liveness of the method after ColorPass.
+     */
+    public static Fragment run(Ir.Meth meth, Map<String, HashMap<String, Integer>> fieldOffsets, LivePass livePass) {
+        ArmGen ag = new ArmGen(fieldOffsets);
+        ag.livePass = livePass;
+        ag.doMeth(meth);
+        return new Fragment(ag.textBlocks, ag.labels, ag.labelNameToString, ag.globals);
+    }
+
+    public static HashMap<String, HashMap<String, Integer>> getFieldOffsets(Ir.Prog prog) {
+        HashMap<String, HashMap<String, Integer>> fieldOffsets = new HashMap<>();
         for (Ir.Data data : prog.datas) {
             HashMap<String, Integer> offsets = new HashMap<>();
             int offset = 0;
@@ -34,18 +95,87 @@ public class ArmGen {
                 offsets.put(field.name, offset);
                 offset += 4;
             }
-            ag.fieldOffsets.put(data.cname, offsets);
+            fieldOffsets.put(data.cname, offsets);
         }
+        return fieldOffsets;
+    }
 
-        ag.globals.add("main");
+    /**
+     * Links fragments together (in the given order) into a program.
+     */
+    public static Arm.Prog link(List<Fragment> fragments) {
+        Linker linker = new Linker();
+        ArrayList<Arm.Block> textBlocks = new ArrayList<>();
+        for (Fragment fragment : fragments)
+            textBlocks.addAll(linker.add(fragment));
+        Arm.Prog prog = linker.finish();
+        prog.textBlocks.addAll(0, textBlocks);
+        return prog;
+    }
 
-        for (Ir.Meth meth : prog.meths)
-            ag.doMeth(meth);
+    /**
+     * Links fragments one at a time, so that the text blocks of each fragment can be written out (and freed) before the
+     * next one is generated. Only the string literals and globals are kept until the end.
+     *
+     * Local labels are numbered in the order in which they appear, and identical string literals are shared between
+     * fragments.
+     */
+    public static class Linker {
+        private final ArrayList<Arm.Block> dataBlocks = new ArrayList<>();
+        private final HashSet<String> globals = new HashSet<>();
+        private final HashMap<String, String> stringToLabelName = new HashMap<>();
+        private int labelIdx;
+
+        public Linker() {
+            globals.add("main");
+        }
+
+        /**
+         * Renames the local labels of the fragment, and returns its text blocks.
+         */
+        public List<Arm.Block> add(Fragment fragment) {
+            HashMap<String, String> renames = new HashMap<>();
+            for (String label : fragment.labels) {
+                String s = fragment.strings.get(label);
+                if (s != null && stringToLabelName.containsKey(s)) {
+                    renames.put(label, stringToLabelName.get(s));
+                    continue;
+                }
+                String newLabel = ".L" + (labelIdx++);
+                renames.put(label, newLabel);
+                if (s != null) {
+                    stringToLabelName.put(s, newLabel);
+                    dataBlocks.add(new Arm.Block(newLabel, Arrays.asList(new Arm.AscizInstr(s))));
+                }
+            }
+
+            for (Arm.Block block : fragment.textBlocks) {
+                block.name = renames.getOrDefault(block.name, block.name);
+                for (int i = 0; i < block.instrs.size(); i++) {
+                    Arm.Instr instr = block.instrs.get(i);
+                    if (instr instanceof Arm.BInstr) {
+                        Arm.BInstr bInstr = (Arm.BInstr) instr;
+                        bInstr.label = renames.getOrDefault(bInstr.label, bInstr.label);
+                    } else if (instr instanceof Arm.LdrLabelInstr) {
+                        Arm.LdrLabelInstr ldrLabelInstr = (Arm.LdrLabelInstr) instr;
+                        String label = renames.getOrDefault(ldrLabelInstr.label, ldrLabelInstr.label);
+                        block.instrs.set(i, new Arm.LdrLabelInstr(ldrLabelInstr.reg, label));
+                    }
+                }
+            }
 
-        ArrayList<String> globals = new ArrayList<>(ag.globals);
-        Collections.sort(globals);
+            globals.addAll(fragment.globals);
+            return fragment.textBlocks;
+        }
 
-        return new Arm.Prog(ag.textBlocks, ag.dataBlocks, globals);
+        /**
+         * Returns a program with no text blocks, holding the string literals and globals of all fragments added.
+         */
+        public Arm.Prog finish() {
+            ArrayList<String> sortedGlobals = new ArrayList<>(globals);
+            Collections.sort(sortedGlobals);
+            return new Arm.Prog(Collections.emptyList(), dataBlocks, sortedGlobals);
+        }
     }
 
     private void doMeth(Ir.Meth meth) {
@@ -56,9 +186,6 @@ public class ArmGen {
         isMain = meth.name.equals("main");
         currBlock = prologueBlock;
 
-        // Perform livePass
-        livePass = new LivePass(meth);
-
         // Compute label names for blocks
         blockToLabelName = new HashMap<>();
         for (Ir.Block block : meth.blocks) {
@@ -66,7 +193,7 @@ public class ArmGen {
         }
 
         // Determine the set of callee-saved registers we use
-        calleeRegs = new HashSet<>();
+        calleeRegs = EnumSet.noneOf(Arm.Reg.class);
         for (Ir.Var v : meth.locals) {
             if (v.reg >= 0) // PHIMEM will have no allocated register
                 calleeRegs.add(toReg(v));
@@ -78,7 +205,7 @@ public class ArmGen {
 
         // Determine amount of stack space to allocate
         int maxArg = -1;
-        HashSet<Ir.PhiWeb> phiWebsNeedStack = new HashSet<>();
+        LinkedHashSet<Ir.PhiWeb> phiWebsNeedStack = new LinkedHashSet<>();
         for (Ir.Block block : meth.blocks) {
             for (Ir.Stmt stmt : block.stmts) {
                 if (stmt instanceof Ir.SpillStmt) {
@@ -147,10 +274,12 @@ public class ArmGen {
             currBlock.instrs.add(new Arm.SubInstr(Arm.Reg.SP, Arm.Reg.SP, new Arm.Operand2Reg(Arm.Reg.R4)));
         }
 
-        // Generate a reverse post ordering of blocks that prioritizes the "else" branch
-        visited = new HashSet<>();
-        blocksPo = new ArrayList<>();
-        blockDfs(meth.blocks.get(0));
+        // Generate a reverse post ordering of blocks that prioritizes the "else" branch.
+        // Do outgoingCond first so that the reverse postorder will take the outgoingDirect branch first.
+        DfsOrder dfs = DfsOrder.ofCfg(meth.blocks, true);
+        blocksPo = new ArrayList<>(dfs.numVisited);
+        for (int i = 0; i < dfs.numVisited; i++)
+            blocksPo.add(meth.blocks.get(dfs.post[i]));
 
         // Generate epilogue label
         epilogueLabel = genLabel();
@@ -199,16 +328,6 @@ public class ArmGen {
         }
     }
 
-    private void blockDfs(Ir.Block block) {
-        visited.add(block);
-        // Do outgoingCond first so that the reverse postorder will take the outgoingDirect branch first
-        if (block.outgoingCond != null && !visited.contains(block.outgoingCond))
-            blockDfs(block.outgoingCond);
-        if (block.outgoingDirect != null && !visited.contains(block.outgoingDirect))
-            blockDfs(block.outgoingDirect);
-        blocksPo.add(block);
-    }
-
     private void doBlock(Ir.Block block) {
         currBlock = new Arm.Block(blockToLabelName.get(block), new ArrayList<>());
         for (Ir.Stmt stmt : block.stmts)
@@ -466,10 +585,10 @@ public class ArmGen {
         if (rv instanceof Ir.StringLitRval) {
             String s = ((Ir.StringLitRval) rv).str;
             if (!stringToLabelName.containsKey(s)) {
-                // Create string and add to data section
+                // Create string -- it is added to the data section when the fragment is linked
                 String labelName = genLabel();
                 stringToLabelName.put(s, labelName);
-                dataBlocks.add(new Arm.Block(labelName, Arrays.asList(new Arm.AscizInstr(s))));
+                labelNameToString.put(labelName, s);
             }
             String labelName = stringToLabelName.get(s);
             currBlock.instrs.add(new Arm.LdrLabelInstr(dst, labelName));
@@ -539,7 +658,9 @@ public class ArmGen {
     }
 
     private String genLabel() {
-        return ".L" + (labelIdx++);
+        String label = ".L" + (labelIdx++);
+        labels.add(label);
+        return label;
     }
 
     public static int toIntConstant(Ir.Rval rv) {
@@ -558,14 +679,14 @@ public class ArmGen {
         // Parallel copy sequentialization algorithm
         // https://hal.inria.fr/inria-00349925v1/document
 
-        HashSet<Arm.Reg> freeRegs = new HashSet<>(calleeRegs);
+        EnumSet<Arm.Reg> freeRegs = EnumSet.copyOf(calleeRegs);
         freeRegs.add(Arm.Reg.R0);
         freeRegs.add(Arm.Reg.R1);
         freeRegs.add(Arm.Reg.R2);
         freeRegs.add(Arm.Reg.R3);
 
-        HashSet<Arm.Reg> todo = new HashSet<>(); // Set of registers in the graph
-        HashSet<Arm.Reg> isDst = new HashSet<>(); // Set of registers whose results will be used.
+        EnumSet<Arm.Reg> todo = EnumSet.noneOf(Arm.Reg.class); // Set of registers in the graph
+        EnumSet<Arm.Reg> isDst = EnumSet.noneOf(Arm.Reg.class); // Set of registers whose results will be used.
         for (ParallelCopy cp : copies) {
             freeRegs.remove(cp.src);
             freeRegs.remove(cp.dst);
@@ -574,15 +695,15 @@ public class ArmGen {
             isDst.add(cp.dst);
         }
 
-        HashMap<Arm.Reg, Arm.Reg> pred = new HashMap<>();
-        HashMap<Arm.Reg, HashSet<Arm.Reg>> succs = new HashMap<>();
+        EnumMap<Arm.Reg, Arm.Reg> pred = new EnumMap<>(Arm.Reg.class);
+        EnumMap<Arm.Reg, EnumSet<Arm.Reg>> succs = new EnumMap<>(Arm.Reg.class);
         for (Arm.Reg reg : todo) {
             pred.put(reg, null);
-            succs.put(reg, new HashSet<>());
+            succs.put(reg, EnumSet.noneOf(Arm.Reg.class));
         }
         for (Arm.Reg reg : freeRegs) {
             pred.put(reg, null);
-            succs.put(reg, new HashSet<>());
+            succs.put(reg, EnumSet.noneOf(Arm.Reg.class));
         }
 
         for (ParallelCopy cp : copies) {
@@ -649,7 +770,7 @@ public class ArmGen {
                 if (freeRegs.isEmpty()) {
                     tmpReg = Arm.Reg.LR;
                     pred.put(tmpReg, null);
-                    succs.put(tmpReg, new HashSet<>());
+                    succs.put(tmpReg, EnumSet.noneOf(Arm.Reg.class));
                     currBlock.instrs.add(new Arm.PushInstr(Arrays.asList(Arm.Reg.LR)));
                     usedLr = true;
                 } else {
@@ -4,7 +4,7 @@ import java.util.*;
 
 public class ArmRuntime {
 
-    private static Arm.Prog PRINTLN_INT = new ArmBuilder()
+    private static final Arm.Prog PRINTLN_INT = new ArmBuilder()
         .global("printf")
         .label("println_int", true)
         .add(new Arm.PushInstr(Arrays.asList(Arm.Reg.R4, Arm.Reg.LR)))
@@ -17,7 +17,7 @@ public class ArmRuntime {
         .add(new Arm.AscizInstr("%d\n"))
         .build();
 
-    private static Arm.Prog PRINTLN_BOOL = new ArmBuilder()
+    private static final Arm.Prog PRINTLN_BOOL = new ArmBuilder()
         .global("puts")
         .label("println_bool", true)
         .add(new Arm.PushInstr(Arrays.asList(Arm.Reg.R4, Arm.Reg.LR)))
@@ -35,7 +35,7 @@ public class ArmRuntime {
         .add(new Arm.AscizInstr("false"))
         .build();
 
-    private static Arm.Prog READLN_STRING = new ArmBuilder()
+    private static final Arm.Prog READLN_STRING = new ArmBuilder()
         .global("getchar")
         .label("readln_string", true)
         .add(new Arm.PushInstr(Arrays.asList(Arm.Reg.R4, Arm.Reg.R5, Arm.Reg.R6, Arm.Reg.R7, Arm.Reg.R8, Arm.Reg.LR)))
@@ -73,7 +73,7 @@ public class ArmRuntime {
         .add(new Arm.PopInstr(Arrays.asList(Arm.Reg.R4, Arm.Reg.R5, Arm.Reg.R6, Arm.Reg.R7, Arm.Reg.R8, Arm.Reg.PC)))
         .build();
 
-    private static Arm.Prog READLN_INT = new ArmBuilder()
+    private static final Arm.Prog READLN_INT = new ArmBuilder()
         .global("readln_string")
         .label("readln_int", true)
         .add(new Arm.PushInstr(Arrays.asList(Arm.Reg.R4, Arm.Reg.LR)))
@@ -84,7 +84,7 @@ public class ArmRuntime {
         .add(new Arm.PopInstr(Arrays.asList(Arm.Reg.R4, Arm.Reg.PC)))
         .build();
 
-    private static Arm.Prog READLN_BOOL = new ArmBuilder()
+    private static final Arm.Prog READLN_BOOL = new ArmBuilder()
         .global("readln_string")
         .label("readln_bool", true)
         .add(new Arm.PushInstr(Arrays.asList(Arm.Reg.R4, Arm.Reg.LR)))
@@ -127,7 +127,11 @@ public class ArmRuntime {
         }
     }
 
+    /**
+     * Adds a copy of src to dst, as later passes on dst may modify its blocks.
+     */
     private static void addProg(Arm.Prog dst, Arm.Prog src) {
+        src = src.copy();
         dst.textBlocks.addAll(src.textBlocks);
         dst.dataBlocks.addAll(src.dataBlocks);
         dst.globals.addAll(src.globals);
@@ -0,0 +1,73 @@
+package pyokagan.cs4212;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Compiles many independent programs concurrently in one JVM.
+ *
+ * Programs are compiled on a fixed pool of threads, each program by a Compiler of its own that compiles its methods
+ * serially, so at most jobs methods are compiled at the same time. The pipeline keeps no state across programs
+ * (ArmRuntime splices copies of its templates into each program), apart from the optional DiskCache, which may be
+ * shared.
+ */
+public class BatchCompiler {
+    private final int optLevel;
+    private final int jobs;
+    private final DiskCache diskCache;
+
+    /**
+     * The outcome of compiling one program: either prog or error is null.
+     */
+    public static class Result {
+        public final Arm.Prog prog;
+        public final Throwable error; // Parse errors, StaticCheck.SemErrors, or a compiler bug
+
+        private Result(Arm.Prog prog, Throwable error) {
+            this.prog = prog;
+            this.error = error;
+        }
+    }
+
+    /**
+     * @param jobs Maximum number of programs to compile in parallel.
+     * @param diskCache Cache shared by all programs, or null.
+     */
+    public BatchCompiler(int optLevel, int jobs, DiskCache diskCache) {
+        if (jobs < 1)
+            throw new IllegalArgumentException("jobs must be at least 1: " + jobs);
+        this.optLevel = optLevel;
+        this.jobs = jobs;
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * Compiles each source, returning the results in the same order.
+     */
+    public List<Result> compile(List<String> sources) {
+        ArrayList<Callable<Arm.Prog>> tasks = new ArrayList<>();
+        for (String source : sources) {
+            tasks.add(() -> new Compiler(optLevel, 1, Metrics.DISABLED, null, diskCache)
+                    .compile(new StringReader(source)));
+        }
+
+        ArrayList<Result> results = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, Math.max(sources.size(), 1)));
+        try {
+            for (Future<Arm.Prog> future : executor.invokeAll(tasks)) {
+                try {
+                    results.add(new Result(future.get(), null));
+                } catch (ExecutionException e) {
+                    results.add(new Result(null, e.getCause()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdown();
+        }
+        return results;
+    }
+}
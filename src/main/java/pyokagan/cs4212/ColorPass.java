@@ -4,13 +4,22 @@ import java.util.*;
 
 /**
  * Performs register coloring.
+ *
+ * Coloring is biased to coalesce copies: vars related by phi nodes, AssignStmts and CallPrepStmts are grouped into
+ * affinity chunks, and a def is given the register of its chunk when that register is free, rather than the first free
+ * register. The chunk register is that of the pre-colored member (args, call args and return values), if any, or else
+ * the register of the first member to be colored.
  */
 public class ColorPass {
-    private static int NUM_REGISTERS = 13;
-    private static int NUM_ARG_REGISTERS = 4;
+    private static final int NUM_REGISTERS = 13;
+    private static final int NUM_ARG_REGISTERS = 4;
+    // r12 (ip) is caller-saved: libc functions (and the PLT stubs used to call them) may overwrite it.
+    private static final int IP_REGISTER = 12;
     private final Ir.Meth meth;
     private DomPass domPass;
     private LivePass livePass;
+    private final HashMap<Ir.Var, Ir.Var> chunkParents = new HashMap<>(); // Union-find forest of affinity chunks
+    private final HashMap<Ir.Var, Integer> chunkRegs = new HashMap<>(); // Chunk root -> preferred register
 
     private ColorPass(Ir.Meth meth, DomPass domPass, LivePass livePass) {
         this.meth = meth;
@@ -29,8 +38,11 @@ public class ColorPass {
         for (int i = 0; i < NUM_ARG_REGISTERS && i < meth.args.size(); i++) {
             Ir.Var arg = meth.args.get(i);
             arg.reg = i;
+            setChunkReg(arg, i);
         }
 
+        buildChunks();
+
         for (Ir.Block block : domPass.getPreorder()) {
             boolean[] assigned = new boolean[NUM_REGISTERS];
             Ir.Var[] assignedVar = new Ir.Var[NUM_REGISTERS];
@@ -59,7 +71,10 @@ public class ColorPass {
                     prevDefs.clear();
                 }
 
-                for (Ir.Var use : stmt.getUses()) {
+                for (int i = 0; i < stmt.numUses(); i++) {
+                    Ir.Var use = stmt.getUse(i);
+                    if (use == null)
+                        continue;
                     if (!livePass.getLiveOut(block).contains(use) && livePass.getLastUse(block, use) == stmt) {
                         assigned[use.reg] = false;
                         assignedVar[use.reg] = null;
@@ -77,9 +92,10 @@ public class ColorPass {
                     }
 
                     // Assign registers r0-r3 to numArgs of CallPrepStmt
-                    for (int i = 0; i < stmt.getDefs().size() && i < callPrepStmt.numArgs; i++) {
-                        Ir.Var def = stmt.getDefs().get(i);
+                    for (int i = 0; i < stmt.numDefs() && i < callPrepStmt.numArgs; i++) {
+                        Ir.Var def = stmt.getDef(i);
                         def.reg = i;
+                        setChunkReg(def, i);
                         assigned[i] = true;
                         assignedVar[i] = def;
                     }
@@ -91,8 +107,9 @@ public class ColorPass {
                     for (int i = callPrepStmt.numArgs; i < callPrepStmt.srcs.size(); i++) {
                         Ir.Var src = callPrepStmt.srcs.get(i);
                         Ir.Var def = callPrepStmt.defs.get(i);
-                        if (src.reg >= 4 && !assigned[src.reg]) {
+                        if (src.reg >= 4 && src.reg != IP_REGISTER && !assigned[src.reg]) {
                             def.reg = src.reg;
+                            setChunkReg(def, src.reg);
                             assigned[src.reg] = true;
                             assignedVar[src.reg] = def;
                             assignedSrcs.add(src);
@@ -107,11 +124,12 @@ public class ColorPass {
                             continue;
 
                         int useReg = -1;
-                        // Start searching from r4 onwards -- r0-r3 will be clobbered by the call
+                        // Start searching from r4 onwards -- r0-r3 and r12 will be clobbered by the call
                         for (int j = 4; j < assigned.length; j++) {
-                            if (assigned[j])
+                            if (assigned[j] || j == IP_REGISTER)
                                 continue;
                             def.reg = j;
+                            setChunkReg(def, j);
                             useReg = j;
                             assigned[j] = true;
                             assignedVar[j] = def;
@@ -122,33 +140,112 @@ public class ColorPass {
                             throw new AssertionError("Could not find suitable slot for " + def + ", slots are: " + Arrays.asList(assignedVar));
                     }
                 } else if (!(stmt instanceof Ir.PhiStmt) || !((Ir.PhiStmt) stmt).memory) {
-                    for (Ir.Var def : stmt.getDefs()) {
+                    for (int j = 0; j < stmt.numDefs(); j++) {
+                        Ir.Var def = stmt.getDef(j);
                         if (def == null)
                             continue;
 
                         if (def.reg >= 0)
                             throw new AssertionError("BUG: saw def of " + def + " but reg already assigned!");
 
-                        int useReg = -1;
-                        for (int i = 0; i < assigned.length; i++) {
-                            if (!assigned[i]) {
-                                def.reg = i;
+                        // The result of a call is in r0, which is the first free register after the call
+                        int useReg = stmt instanceof Ir.CallStmt ? -1 : getChunkReg(def, assigned);
+                        for (int i = 0; i < assigned.length && useReg < 0; i++) {
+                            if (!assigned[i])
                                 useReg = i;
-                                assigned[i] = true;
-                                assignedVar[i] = def;
-                                break;
-                            }
                         }
 
                         if (useReg < 0)
                             throw new AssertionError("Could not find available slot for " + def + ", slots are: " + Arrays.asList(assignedVar));
+                        def.reg = useReg;
+                        setChunkReg(def, useReg);
+                        assigned[useReg] = true;
+                        assignedVar[useReg] = def;
                     }
                 }
 
-                if (!(stmt instanceof Ir.PhiStmt) || !((Ir.PhiStmt) stmt).memory)
-                    prevDefs.addAll(stmt.getDefs());
+                if (!(stmt instanceof Ir.PhiStmt) || !((Ir.PhiStmt) stmt).memory) {
+                    for (int j = 0; j < stmt.numDefs(); j++)
+                        prevDefs.add(stmt.getDef(j));
+                }
+            }
+        }
+    }
+
+    /**
+     * Groups vars that are copied into each other into affinity chunks, and pre-colors the chunks of call args and
+     * return values.
+     */
+    private void buildChunks() {
+        for (Ir.Block block : meth.blocks) {
+            for (Ir.Stmt stmt : block.stmts) {
+                if (stmt instanceof Ir.PhiStmt) {
+                    Ir.PhiStmt phiStmt = (Ir.PhiStmt) stmt;
+                    if (phiStmt.memory)
+                        continue;
+                    for (Ir.Var arg : phiStmt.args) {
+                        if (arg != null)
+                            union(phiStmt.getDst(), arg);
+                    }
+                } else if (stmt instanceof Ir.AssignStmt) {
+                    Ir.AssignStmt assignStmt = (Ir.AssignStmt) stmt;
+                    if (assignStmt.src instanceof Ir.VarRval)
+                        union(assignStmt.getDst(), ((Ir.VarRval) assignStmt.src).v);
+                } else if (stmt instanceof Ir.CallPrepStmt) {
+                    Ir.CallPrepStmt callPrepStmt = (Ir.CallPrepStmt) stmt;
+                    for (int i = 0; i < callPrepStmt.defs.size(); i++)
+                        union(callPrepStmt.defs.get(i), callPrepStmt.srcs.get(i));
+                }
             }
         }
+
+        for (Ir.Block block : meth.blocks) {
+            for (Ir.Stmt stmt : block.stmts) {
+                if (stmt instanceof Ir.CallPrepStmt) {
+                    Ir.CallPrepStmt callPrepStmt = (Ir.CallPrepStmt) stmt;
+                    for (int i = 0; i < callPrepStmt.numArgs; i++)
+                        setChunkReg(callPrepStmt.defs.get(i), i);
+                } else if (stmt instanceof Ir.ReturnStmt) {
+                    Ir.ReturnStmt returnStmt = (Ir.ReturnStmt) stmt;
+                    if (returnStmt.rv instanceof Ir.VarRval)
+                        setChunkReg(((Ir.VarRval) returnStmt.rv).v, 0);
+                }
+            }
+        }
+    }
+
+    private Ir.Var find(Ir.Var v) {
+        Ir.Var parent = chunkParents.get(v);
+        while (parent != null) {
+            Ir.Var grandParent = chunkParents.get(parent);
+            if (grandParent != null)
+                chunkParents.put(v, grandParent);
+            v = parent;
+            parent = chunkParents.get(v);
+        }
+        return v;
+    }
+
+    private void union(Ir.Var a, Ir.Var b) {
+        Ir.Var rootA = find(a);
+        Ir.Var rootB = find(b);
+        if (rootA != rootB)
+            chunkParents.put(rootA, rootB);
+    }
+
+    /**
+     * Sets the preferred register of the chunk of v, unless it already has one.
+     */
+    private void setChunkReg(Ir.Var v, int reg) {
+        chunkRegs.putIfAbsent(find(v), reg);
+    }
+
+    /**
+     * Returns the preferred register of the chunk of v if it is free, or -1.
+     */
+    private int getChunkReg(Ir.Var v, boolean[] assigned) {
+        Integer reg = chunkRegs.get(find(v));
+        return reg != null && !assigned[reg] ? reg : -1;
     }
 
     public static void run(Ir.Meth meth, DomPass domPass, LivePass livePass) {
@@ -0,0 +1,112 @@
+package pyokagan.cs4212;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Thin client of {@link CompileServer}, taking the same basic options as jlitec.
+ *
+ * Usage: jlitec-client [--port N] [-O0|-O1|-O2] [-o out.s] in.j
+ *
+ * Only reads the source, sends it to the server and writes back the reply, so it does not load any of the compiler.
+ */
+public class CompileClient {
+    private static final String USAGE = "usage: jlitec-client [--port N] [-O0|-O1|-O2] [-o out.s] in.j";
+
+    public static void main(String[] args) throws IOException {
+        String inputFile = null;
+        String outputFile = null;
+        int port = CompileServer.DEFAULT_PORT;
+        int optLevel = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-o") && i + 1 < args.length) {
+                outputFile = args[++i];
+            } else if (arg.equals("--port") && i + 1 < args.length) {
+                port = CompileServer.parsePositiveInt("port", args[++i]);
+            } else if (arg.equals("-O")) {
+                optLevel = 1;
+            } else if (arg.equals("-O0") || arg.equals("-O1") || arg.equals("-O2")) {
+                optLevel = arg.charAt(2) - '0';
+            } else if (arg.startsWith("-") || inputFile != null) {
+                usage();
+            } else {
+                inputFile = arg;
+            }
+        }
+        if (inputFile == null)
+            usage();
+
+        String source;
+        try {
+            source = new String(Files.readAllBytes(Paths.get(inputFile)), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("error: cannot read " + inputFile + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        Reply reply;
+        try {
+            reply = request(port, optLevel, inputFile, source);
+        } catch (IOException e) {
+            System.err.println("error: cannot reach jlitecd on port " + port + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        System.err.print(reply.diagnostics);
+        if (reply.status == 0) {
+            if (outputFile == null || outputFile.equals("-")) {
+                System.out.print(reply.asm);
+                System.out.flush();
+            } else {
+                Files.write(Paths.get(outputFile), reply.asm.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        System.exit(reply.status);
+    }
+
+    /**
+     * The reply of the server: the exit status, the assembly (empty on errors) and the diagnostics.
+     */
+    static class Reply {
+        final int status;
+        final String asm;
+        final String diagnostics;
+
+        private Reply(int status, String asm, String diagnostics) {
+            this.status = status;
+            this.asm = asm;
+            this.diagnostics = diagnostics;
+        }
+    }
+
+    /**
+     * Sends the source to the server listening on port, and waits for its reply.
+     */
+    static Reply request(int port, int optLevel, String fileName, String source) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(CompileServer.MAGIC);
+            out.writeInt(optLevel);
+            CompileServer.writeString(out, fileName);
+            CompileServer.writeString(out, source);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int status = in.readInt();
+            String asm = CompileServer.readString(in);
+            String diagnostics = CompileServer.readString(in);
+            return new Reply(status, asm, diagnostics);
+        }
+    }
+
+    private static void usage() {
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
@@ -0,0 +1,217 @@
+package pyokagan.cs4212;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+/**
+ * Long-running compiler, which saves the JVM startup and JIT warm-up of each jlitec run.
+ *
+ * Usage: jlitecd [--port N] [-j N] [--cache-dir DIR]
+ *
+ * Listens on the loopback interface for requests from {@link CompileClient}, and compiles them one at a time.
+ * Each request gets its own Compiler, so no state is carried over from one request to the next (apart from the
+ * on-disk cache, if any).
+ *
+ * Protocol: the client sends MAGIC, the optimization level, the file name (only used in diagnostics) and the source.
+ * The server replies with the exit status, the assembly (empty on errors) and the diagnostics, and closes the
+ * connection. Strings are a length followed by UTF-8 bytes.
+ * A client that takes longer than REQUEST_TIMEOUT_MILLIS to send its request, or to read the reply, is dropped, so
+ * that it cannot hold up the other clients.
+ */
+public class CompileServer {
+    static final int DEFAULT_PORT = 4212;
+    static final int MAGIC = 0x4a4c4431; // "JLD1"
+    private static final int MAX_SOURCE_LENGTH = 64 * 1024 * 1024;
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+    private static final int REQUEST_TIMEOUT_MILLIS = 30 * 1000;
+    private static final String USAGE = "usage: jlitecd [--port N] [-j N] [--cache-dir DIR]";
+
+    private final int jobs;
+    private final DiskCache diskCache;
+    private final int requestTimeoutMillis;
+
+    /**
+     * @param jobs Maximum number of methods of a request to compile in parallel.
+     * @param diskCache Cache shared by all requests, or null.
+     */
+    public CompileServer(int jobs, DiskCache diskCache) {
+        this(jobs, diskCache, REQUEST_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param requestTimeoutMillis How long a client has to send its whole request, and again to read the whole reply,
+     *         before it is dropped.
+     */
+    CompileServer(int jobs, DiskCache diskCache, int requestTimeoutMillis) {
+        this.jobs = jobs;
+        this.diskCache = diskCache;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    /**
+     * Serves requests until the server socket is closed.
+     */
+    public void serve(ServerSocket serverSocket) throws IOException {
+        // Closes the socket of a client that runs out of time, which fails any read or write blocked on it.
+        // SO_TIMEOUT is not enough, as it limits each read rather than the whole request, and not writes at all.
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jlitecd-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            while (true) {
+                try (Socket socket = serverSocket.accept()) {
+                    handle(socket, watchdog);
+                } catch (IOException e) {
+                    if (serverSocket.isClosed())
+                        return;
+                    // The client went away or timed out, carry on with the next one
+                }
+            }
+        } finally {
+            watchdog.shutdownNow();
+        }
+    }
+
+    private void handle(Socket socket, ScheduledExecutorService watchdog) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        ScheduledFuture<?> timeout = scheduleClose(socket, watchdog);
+        if (in.readInt() != MAGIC) {
+            timeout.cancel(false);
+            return;
+        }
+        int optLevel = in.readInt();
+        String fileName = readString(in);
+        String source = readString(in);
+        timeout.cancel(false);
+
+        StringBuilder asm = new StringBuilder();
+        StringBuilder diagnostics = new StringBuilder();
+        int status = compile(source, fileName, optLevel, asm, diagnostics);
+
+        timeout = scheduleClose(socket, watchdog);
+        out.writeInt(status);
+        writeString(out, status == 0 ? asm.toString() : "");
+        writeString(out, diagnostics.toString());
+        out.flush();
+        timeout.cancel(false);
+    }
+
+    private ScheduledFuture<?> scheduleClose(Socket socket, ScheduledExecutorService watchdog) {
+        return watchdog.schedule(() -> {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more to do with this client
+            }
+        }, requestTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compiles the source, printing diagnostics the same way as jlitec does, and returns the exit status.
+     */
+    private int compile(String source, String fileName, int optLevel, StringBuilder asm, StringBuilder diagnostics) {
+        if (optLevel < 0 || optLevel > 2) {
+            diagnostics.append("error: invalid optimization level: ").append(optLevel).append('\n');
+            return 2;
+        }
+
+        try {
+            Ast.Prog prog;
+            try {
+                prog = Parser.parse(new StringReader(source));
+            } catch (Exception e) {
+                diagnostics.append("error:").append(fileName).append(": ").append(e.getMessage()).append('\n');
+                return 1;
+            }
+            try {
+                StaticCheck.run(prog);
+            } catch (StaticCheck.SemErrors e) {
+                for (StaticCheck.SemError err : e.getErrors())
+                    diagnostics.append("error:").append(err.location).append(": ").append(err.getMessage())
+                            .append('\n');
+                return 1;
+            }
+
+            Compiler compiler = new Compiler(optLevel, jobs, Metrics.DISABLED, null, diskCache);
+            compiler.compile(IrGen.run(prog)).render(asm);
+            return 0;
+        } catch (RuntimeException | Error e) {
+            // Keep serving other requests after a compiler bug, or a source nested too deeply for the stack
+            StringWriter sw = new StringWriter();
+            e.printStackTrace(new PrintWriter(sw));
+            diagnostics.append("internal error:").append(fileName).append(": ").append(sw);
+            return 1;
+        }
+    }
+
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_SOURCE_LENGTH)
+            throw new IOException("invalid string length " + length);
+        // Only allocate as much as has actually arrived, rather than whatever length the other side claims
+        byte[] chunk = new byte[Math.min(length, READ_CHUNK_SIZE)];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(chunk.length);
+        int remaining = length;
+        while (remaining > 0) {
+            int n = Math.min(remaining, chunk.length);
+            in.readFully(chunk, 0, n);
+            bytes.write(chunk, 0, n);
+            remaining -= n;
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        String cacheDir = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--port") && i + 1 < args.length) {
+                port = parsePositiveInt("port", args[++i]);
+            } else if (arg.equals("-j") && i + 1 < args.length) {
+                jobs = parsePositiveInt("number of jobs", args[++i]);
+            } else if (arg.equals("--cache-dir") && i + 1 < args.length) {
+                cacheDir = args[++i];
+            } else {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+        }
+
+        DiskCache diskCache = null;
+        if (cacheDir != null)
+            diskCache = new DiskCache(Paths.get(cacheDir));
+
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("jlitecd: listening on " + serverSocket.getLocalSocketAddress());
+            new CompileServer(jobs, diskCache).serve(serverSocket);
+        }
+    }
+
+    static int parsePositiveInt(String what, String s) {
+        try {
+            int i = Integer.parseInt(s);
+            if (i >= 1)
+                return i;
+        } catch (NumberFormatException e) {
+            // Fallthrough
+        }
+        System.err.println("error: invalid " + what + ": " + s);
+        System.exit(2);
+        return 1;
+    }
+}
@@ -0,0 +1,304 @@
+package pyokagan.cs4212;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the whole compilation pipeline, from JLite source to ARM assembly.
+ *
+ * The backend (FlowPass up to ArmGen) works on one method at a time and methods do not share any state,
+ * so methods are compiled in parallel on a ForkJoinPool.
+ * The resulting fragments are linked in program order, so the output does not depend on the number of threads.
+ *
+ * If a {@link MethCache} is given, the fragments of methods that did not change since the last compilation are reused,
+ * and only the other methods go through IrGen and the backend.
+ * If a {@link DiskCache} is given, the backend is also skipped for methods whose fragments are already on disk.
+ */
+public class Compiler {
+    // Number of methods compiled (and held in memory) at a time by each thread when streaming
+    private static final int STREAM_CHUNK_SIZE_PER_JOB = 16;
+
+    private final int optLevel;
+    private final int jobs;
+    private final Metrics metrics;
+    private final MethCache<ArmGen.Fragment> cache;
+    private final DiskCache diskCache;
+
+    /**
+     * @param optLevel 0 disables all optional optimizations, 1 enables the peephole optimizations on the ARM code, and 2
+     *                 also enables the optimizations on the SSA form of each method.
+     * @param jobs Maximum number of methods to compile in parallel.
+     */
+    public Compiler(int optLevel, int jobs) {
+        this(optLevel, jobs, Metrics.DISABLED);
+    }
+
+    /**
+     * @param metrics Records the metrics of each pass, in program order.
+     */
+    public Compiler(int optLevel, int jobs, Metrics metrics) {
+        this(optLevel, jobs, metrics, null);
+    }
+
+    /**
+     * @param cache Fragments of previously compiled methods, or null to always compile every method.
+     */
+    public Compiler(int optLevel, int jobs, Metrics metrics, MethCache<ArmGen.Fragment> cache) {
+        this(optLevel, jobs, metrics, cache, null);
+    }
+
+    /**
+     * @param diskCache Fragments stored by previous runs of the compiler, or null to not use them.
+     */
+    public Compiler(int optLevel, int jobs, Metrics metrics, MethCache<ArmGen.Fragment> cache, DiskCache diskCache) {
+        if (jobs < 1)
+            throw new IllegalArgumentException("jobs must be at least 1: " + jobs);
+        this.optLevel = optLevel;
+        this.jobs = jobs;
+        this.metrics = metrics;
+        this.cache = cache;
+        this.diskCache = diskCache;
+    }
+
+    public Arm.Prog compile(Reader reader) throws Exception {
+        Metrics.Timer timer = metrics.start("Parser", null);
+        Ast.Prog prog = Parser.parse(reader);
+        timer.stop();
+        timer = metrics.start("StaticCheck", null);
+        StaticCheck.run(prog);
+        timer.stop();
+        return compile(prog);
+    }
+
+    /**
+     * Compiles a program that has passed StaticCheck.
+     */
+    public Arm.Prog compile(Ast.Prog prog) {
+        if (cache == null) {
+            Metrics.Timer timer = metrics.start("IrGen", null);
+            Ir.Prog irProg = IrGen.run(prog);
+            timer.stop();
+            return compile(irProg);
+        }
+
+        Metrics.Timer timer = metrics.start("MethCache", null);
+        IdentityHashMap<Ast.Meth, String> keys = MethCache.getKeys(prog, optLevel);
+        IdentityHashMap<Ast.Meth, ArmGen.Fragment> cachedFragments = new IdentityHashMap<>();
+        Set<Ast.Meth> dirtyMeths = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Map.Entry<Ast.Meth, String> entry : keys.entrySet()) {
+            ArmGen.Fragment fragment = cache.get(entry.getValue());
+            if (fragment != null)
+                cachedFragments.put(entry.getKey(), fragment.copy());
+            else
+                dirtyMeths.add(entry.getKey());
+        }
+        timer.stop();
+
+        timer = metrics.start("IrGen", null);
+        Ir.Prog irProg = IrGen.run(prog, dirtyMeths);
+        timer.stop();
+        Iterator<ArmGen.Fragment> newFragments = runBackends(irProg).iterator();
+
+        // Put the fragments back in program order, IrGen generates the dirty methods in that order too
+        ArrayList<ArmGen.Fragment> fragments = new ArrayList<>();
+        for (Ast.Clazz clazz : prog.clazzes) {
+            for (Ast.Meth meth : clazz.meths) {
+                ArmGen.Fragment fragment = cachedFragments.get(meth);
+                if (fragment == null) {
+                    fragment = newFragments.next();
+                    cache.put(keys.get(meth), fragment.copy());
+                }
+                fragments.add(fragment);
+            }
+        }
+        cache.retainAll(keys.values());
+        return link(fragments);
+    }
+
+    public Arm.Prog compile(Ir.Prog irProg) {
+        return link(runBackends(irProg));
+    }
+
+    /**
+     * Compiles the program and writes its assembly to out, a chunk of methods at a time, so that only the IR and code
+     * of the methods in the current chunk (and the string literals and globals of the whole program) are in memory.
+     * The methods are removed from irProg as they are compiled.
+     *
+     * The code of each method is optimized on its own, so unlike compile(), methods that are never called are kept.
+     * The .global directives are written at the end.
+     */
+    public void compile(Ir.Prog irProg, Appendable out) throws IOException {
+        HashMap<String, HashMap<String, Integer>> fieldOffsets = ArmGen.getFieldOffsets(irProg);
+        ArmGen.Linker linker = new ArmGen.Linker();
+        int chunkSize = jobs * STREAM_CHUNK_SIZE_PER_JOB;
+        out.append("    .text\n");
+        for (int start = 0; start < irProg.meths.size(); start += chunkSize) {
+            List<Ir.Meth> chunkMeths = irProg.meths.subList(start, Math.min(start + chunkSize, irProg.meths.size()));
+            List<Ir.Meth> chunk = new ArrayList<>(chunkMeths);
+            Collections.fill(chunkMeths, null);
+            for (ArmGen.Fragment fragment : runBackends(chunk, irProg, fieldOffsets)) {
+                List<Arm.Block> blocks = linker.add(fragment);
+                if (optLevel > 0)
+                    blocks = optimizeMeth(blocks);
+                for (Arm.Block block : blocks)
+                    block.writeTo(out);
+            }
+        }
+        irProg.meths.clear();
+
+        Metrics.Timer timer = metrics.start("ArmRuntime", null);
+        Arm.Prog armProg = linker.finish();
+        ArmRuntime.run(armProg);
+        timer.stop(armProg.textBlocks);
+        for (Arm.Block block : armProg.textBlocks)
+            block.writeTo(out);
+        out.append("\n    .data\n");
+        for (Arm.Block block : armProg.dataBlocks)
+            block.writeTo(out);
+        out.append('\n');
+        ArrayList<String> sortedGlobals = new ArrayList<>(armProg.globals);
+        Collections.sort(sortedGlobals);
+        for (String global : sortedGlobals)
+            out.append("    .global ").append(global).append('\n');
+    }
+
+    /**
+     * Runs the peephole optimizations on the linked blocks of a single method.
+     */
+    private static List<Arm.Block> optimizeMeth(List<Arm.Block> blocks) {
+        // Other methods only jump to the first block
+        Arm.Prog armProg = new Arm.Prog(blocks, Collections.emptyList(), Collections.singleton(blocks.get(0).name));
+        ArmJumpOpt.run(armProg);
+        ArmDeadBlockElim.run(armProg);
+        ArmFallthruOpt.run(armProg);
+        ArmLabelOpt.run(armProg);
+        return armProg.textBlocks;
+    }
+
+    /**
+     * Runs the backend on every method of the program, returning the fragments in program order.
+     */
+    private ArrayList<ArmGen.Fragment> runBackends(Ir.Prog irProg) {
+        return runBackends(irProg.meths, irProg, ArmGen.getFieldOffsets(irProg));
+    }
+
+    private ArrayList<ArmGen.Fragment> runBackends(List<Ir.Meth> meths, Ir.Prog irProg,
+                                                   Map<String, HashMap<String, Integer>> fieldOffsets) {
+        if (diskCache == null)
+            return compileMeths(meths, fieldOffsets);
+
+        // Keys must be computed before the backend modifies the methods
+        Metrics.Timer timer = metrics.start("DiskCache", null);
+        ArrayList<String> keys = new ArrayList<>();
+        ArrayList<ArmGen.Fragment> fragments = new ArrayList<>();
+        ArrayList<Ir.Meth> dirtyMeths = new ArrayList<>();
+        for (Ir.Meth meth : meths) {
+            String key = diskCache.getKey(meth, irProg, optLevel);
+            ArmGen.Fragment fragment = diskCache.get(key);
+            keys.add(key);
+            fragments.add(fragment);
+            if (fragment == null)
+                dirtyMeths.add(meth);
+        }
+        timer.stop();
+
+        Iterator<ArmGen.Fragment> newFragments = compileMeths(dirtyMeths, fieldOffsets).iterator();
+
+        // Store the new fragments before linking modifies them
+        timer = metrics.start("DiskCache", null);
+        for (int i = 0; i < fragments.size(); i++) {
+            if (fragments.get(i) == null) {
+                ArmGen.Fragment fragment = newFragments.next();
+                diskCache.put(keys.get(i), fragment);
+                fragments.set(i, fragment);
+            }
+        }
+        timer.stop();
+        return fragments;
+    }
+
+    private ArrayList<ArmGen.Fragment> compileMeths(List<Ir.Meth> meths,
+                                                    Map<String, HashMap<String, Integer>> fieldOffsets) {
+        ArrayList<ArmGen.Fragment> fragments = new ArrayList<>();
+
+        if (jobs == 1 || meths.size() <= 1) {
+            for (Ir.Meth meth : meths)
+                fragments.add(runBackend(meth, fieldOffsets, optLevel, metrics));
+        } else {
+            // Each method records its metrics separately, and they are merged in program order
+            ArrayList<Callable<ArmGen.Fragment>> tasks = new ArrayList<>();
+            ArrayList<Metrics> methMetrics = new ArrayList<>();
+            for (Ir.Meth meth : meths) {
+                Metrics m = metrics.fork();
+                methMetrics.add(m);
+                tasks.add(() -> runBackend(meth, fieldOffsets, optLevel, m));
+            }
+            ForkJoinPool pool = new ForkJoinPool(jobs);
+            try {
+                for (Future<ArmGen.Fragment> future : pool.invokeAll(tasks))
+                    fragments.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error)
+                    throw (Error) e.getCause();
+                throw new RuntimeException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+            for (Metrics m : methMetrics)
+                metrics.addAll(m);
+        }
+
+        return fragments;
+    }
+
+    /**
+     * Links the fragments into a program, and runs the program-wide passes on it.
+     */
+    private Arm.Prog link(List<ArmGen.Fragment> fragments) {
+        Metrics.Timer timer = metrics.start("ArmGen.link", null);
+        Arm.Prog armProg = ArmGen.link(fragments);
+        timer.stop(armProg.textBlocks);
+        if (optLevel > 0) {
+            timer = metrics.start("ArmJumpOpt", null);
+            ArmJumpOpt.run(armProg);
+            timer.stop(armProg.textBlocks);
+            timer = metrics.start("ArmDeadBlockElim", null);
+            ArmDeadBlockElim.run(armProg);
+            timer.stop(armProg.textBlocks);
+            timer = metrics.start("ArmFallthruOpt", null);
+            ArmFallthruOpt.run(armProg);
+            timer.stop(armProg.textBlocks);
+            timer = metrics.start("ArmLabelOpt", null);
+            ArmLabelOpt.run(armProg);
+            timer.stop(armProg.textBlocks);
+        }
+        timer = metrics.start("ArmRuntime", null);
+        ArmRuntime.run(armProg);
+        timer.stop(armProg.textBlocks);
+        return armProg;
+    }
+
+    /**
+     * Runs the backend passes on a single method and generates its ARM code.
+     */
+    public static ArmGen.Fragment runBackend(Ir.Meth meth, Map<String, HashMap<String, Integer>> fieldOffsets) {
+        return runBackend(meth, fieldOffsets, 0, Metrics.DISABLED);
+    }
+
+    public static ArmGen.Fragment runBackend(Ir.Meth meth, Map<String, HashMap<String, Integer>> fieldOffsets,
+                                             int optLevel, Metrics metrics) {
+        PassManager pm = new PassManager(meth, metrics);
+        pm.run(PassManager.getBackendPasses(optLevel));
+        LivePass livePass = pm.getLivePass();
+        Metrics.Timer timer = metrics.start("ArmGen", meth);
+        ArmGen.Fragment fragment = ArmGen.run(meth, fieldOffsets, livePass);
+        timer.stop(fragment.textBlocks);
+        return fragment;
+    }
+}
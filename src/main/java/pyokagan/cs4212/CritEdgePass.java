@@ -7,11 +7,6 @@ import java.util.*;
  */
 public class CritEdgePass {
     private boolean modified; // Set to true if the CFG was modified
-    private ArrayList<Ir.Block> blocksPre = new ArrayList<>();
-    private ArrayList<Ir.Block> blocksPo = new ArrayList<>();
-    private ArrayList<Ir.Block> blocksRpo = new ArrayList<>();
-    private HashSet<Ir.Block> visited;
-    private int postorderIndex;
 
     private CritEdgePass(Ir.Meth meth) {
         ArrayList<Ir.Block> newBlocks = new ArrayList<>();
@@ -47,39 +42,17 @@ public class CritEdgePass {
         modified = true;
 
         // Re-compute preorder, postorder, reverse postorder
-        visited = new HashSet<>();
-        postorderIndex = 0;
-        if (!meth.blocks.isEmpty()) {
-            dfs(meth.blocks.get(0));
-
-            for (int i = blocksPo.size() - 1; i >= 0; i--)
-                blocksRpo.add(blocksPo.get(i));
-        }
+        DfsOrder dfs = DfsOrder.numberBlocks(meth, meth.blocks);
 
         // Check for dead blocks
-        for (Ir.Block block : meth.blocks) {
-            if (!visited.contains(block))
-                throw new AssertionError(block + " died after CritEdgePass!");
+        for (int i = 0; i < meth.blocks.size(); i++) {
+            if (!dfs.isVisited(i))
+                throw new AssertionError(meth.blocks.get(i) + " died after CritEdgePass!");
         }
-
-        meth.blocksPre = blocksPre;
-        meth.blocksPo = blocksPo;
-        meth.blocksRpo = blocksRpo;
     }
 
     public static boolean run(Ir.Meth meth) {
         CritEdgePass p = new CritEdgePass(meth);
         return p.modified;
     }
-
-    private void dfs(Ir.Block block) {
-        visited.add(block);
-        blocksPre.add(block);
-        if (block.outgoingDirect != null && !visited.contains(block.outgoingDirect))
-            dfs(block.outgoingDirect);
-        if (block.outgoingCond != null && !visited.contains(block.outgoingCond))
-            dfs(block.outgoingCond);
-        blocksPo.add(block);
-        block.postorderIndex = postorderIndex++;
-    }
 }
@@ -0,0 +1,127 @@
+package pyokagan.cs4212;
+
+import java.util.*;
+
+/**
+ * Worklist-based iterative dataflow solver.
+ *
+ * Each block has a value on entry (IN) and on exit (OUT).
+ * For a backward problem, OUT[B] is the meet of IN[S] over all successors S of B, and IN[B] is computed from OUT[B]
+ * by the transfer function. For a forward problem it is the other way round.
+ *
+ * Initially every block is on the worklist, in postorder for backward problems and reverse postorder for forward
+ * problems. After that, a block is only revisited when the value it depends on changes: if the transfer function
+ * changes IN[B] (backward) or OUT[B] (forward), only the predecessors (backward) or successors (forward) of B are put
+ * back on the worklist.
+ *
+ * Values are updated in place, and meets are accumulated without resetting the value first.
+ * The problem must thus be monotone: values may only move in one direction of the lattice.
+ *
+ * Blocks are identified by their postorderIndex, so the CFG must not have changed since the orderings were last
+ * computed.
+ */
+public class DataflowSolver<T> {
+    public interface Problem<T> {
+        /**
+         * Returns true if values flow from successors to predecessors.
+         */
+        boolean isBackward();
+
+        /**
+         * Returns the initial value where control flow merges into the block (OUT for backward problems, IN for
+         * forward problems), before any neighbour has been met into it.
+         */
+        T initMerge(Ir.Block block);
+
+        /**
+         * Returns the initial value computed by the transfer function (IN for backward problems, OUT for forward
+         * problems).
+         */
+        T initResult(Ir.Block block);
+
+        /**
+         * Meets the result of a neighbouring block into the block's merge value, in place.
+         */
+        void meet(Ir.Block block, T merge, T neighbourResult);
+
+        /**
+         * Updates the block's result from its merge value, in place. Returns true if the result changed.
+         */
+        boolean transfer(Ir.Block block, T merge, T result);
+    }
+
+    private final Problem<T> problem;
+    private final ArrayList<T> merges = new ArrayList<>();
+    private final ArrayList<T> results = new ArrayList<>();
+
+    public DataflowSolver(Ir.Meth meth, Problem<T> problem) {
+        this.problem = problem;
+        boolean backward = problem.isBackward();
+        int numBlocks = meth.blocksPo.size();
+
+        for (Ir.Block block : meth.blocksPo) {
+            if (meth.blocksPo.get(block.postorderIndex) != block)
+                throw new AssertionError("BUG: stale postorderIndex for " + block);
+            merges.add(problem.initMerge(block));
+            results.add(problem.initResult(block));
+        }
+
+        // Circular queue of block postorder indices
+        int[] queue = new int[numBlocks];
+        boolean[] queued = new boolean[numBlocks];
+        int head = 0;
+        int size = numBlocks;
+        for (int i = 0; i < numBlocks; i++) {
+            queue[i] = backward ? i : numBlocks - 1 - i;
+            queued[i] = true;
+        }
+
+        while (size > 0) {
+            int b = queue[head];
+            head = (head + 1) % numBlocks;
+            size--;
+            queued[b] = false;
+
+            Ir.Block block = meth.blocksPo.get(b);
+            T merge = merges.get(b);
+            T result = results.get(b);
+
+            if (backward) {
+                if (block.outgoingDirect != null)
+                    problem.meet(block, merge, results.get(block.outgoingDirect.postorderIndex));
+                if (block.outgoingCond != null)
+                    problem.meet(block, merge, results.get(block.outgoingCond.postorderIndex));
+            } else {
+                for (Ir.Block pred : block.incoming)
+                    problem.meet(block, merge, results.get(pred.postorderIndex));
+            }
+
+            if (!problem.transfer(block, merge, result))
+                continue;
+
+            if (backward) {
+                for (Ir.Block pred : block.incoming) {
+                    if (!queued[pred.postorderIndex]) {
+                        queued[pred.postorderIndex] = true;
+                        queue[(head + size++) % numBlocks] = pred.postorderIndex;
+                    }
+                }
+            } else {
+                for (Ir.Block succ : block.getOutgoing()) {
+                    if (!queued[succ.postorderIndex]) {
+                        queued[succ.postorderIndex] = true;
+                        queue[(head + size++) % numBlocks] = succ.postorderIndex;
+                    }
+                }
+            }
+        }
+    }
+
+    public T getIn(Ir.Block block) {
+        return problem.isBackward() ? results.get(block.postorderIndex) : merges.get(block.postorderIndex);
+    }
+
+    public T getOut(Ir.Block block) {
+        return problem.isBackward() ? merges.get(block.postorderIndex) : results.get(block.postorderIndex);
+    }
+}
@@ -0,0 +1,126 @@
+package pyokagan.cs4212;
+
+import java.util.*;
+
+/**
+ * Iterative depth-first traversal of a graph, so that the size of the graph is bounded by the heap rather than the
+ * thread stack.
+ *
+ * Nodes are numbered 0 to numNodes - 1, and the successors of node n are succs[succStart[n]] up to (but not including)
+ * succs[succStart[n + 1]], which are visited in that order. The visit order, and hence the numbering, is the same as
+ * that of the usual recursive DFS.
+ */
+public class DfsOrder {
+    // Number of nodes reachable from the roots
+    public final int numVisited;
+
+    // Preorder / postorder number -> node. Only the first numVisited entries are used.
+    public final int[] pre;
+    public final int[] post;
+
+    // Node -> preorder / postorder number, or -1 if the node is unreachable
+    public final int[] preNum;
+    public final int[] postNum;
+
+    // Node -> parent in the DFS tree, or -1 for roots and unreachable nodes
+    public final int[] parent;
+
+    /**
+     * Traverses the graph starting from each of the roots in turn, skipping roots that were already visited.
+     */
+    public DfsOrder(int[] succStart, int[] succs, int... roots) {
+        int numNodes = succStart.length - 1;
+        pre = new int[numNodes];
+        post = new int[numNodes];
+        preNum = new int[numNodes];
+        postNum = new int[numNodes];
+        parent = new int[numNodes];
+        Arrays.fill(preNum, -1);
+        Arrays.fill(postNum, -1);
+        Arrays.fill(parent, -1);
+
+        int[] stack = new int[numNodes];
+        int[] nextSucc = new int[numNodes];
+        int preIndex = 0;
+        int postIndex = 0;
+        for (int root : roots) {
+            if (preNum[root] >= 0)
+                continue;
+            int sp = 0;
+            stack[sp++] = root;
+            nextSucc[root] = succStart[root];
+            preNum[root] = preIndex;
+            pre[preIndex++] = root;
+            while (sp > 0) {
+                int n = stack[sp - 1];
+                if (nextSucc[n] < succStart[n + 1]) {
+                    int succ = succs[nextSucc[n]++];
+                    if (preNum[succ] >= 0)
+                        continue;
+                    stack[sp++] = succ;
+                    nextSucc[succ] = succStart[succ];
+                    parent[succ] = n;
+                    preNum[succ] = preIndex;
+                    pre[preIndex++] = succ;
+                } else {
+                    postNum[n] = postIndex;
+                    post[postIndex++] = n;
+                    sp--;
+                }
+            }
+        }
+        numVisited = preIndex;
+    }
+
+    public boolean isVisited(int node) {
+        return preNum[node] >= 0;
+    }
+
+    /**
+     * Traverses a CFG from its first block. Blocks are numbered by their position in blocks.
+     *
+     * @param condFirst Visit outgoingCond before outgoingDirect.
+     */
+    public static DfsOrder ofCfg(List<Ir.Block> blocks, boolean condFirst) {
+        int numBlocks = blocks.size();
+        HashMap<Ir.Block, Integer> blockToIndex = new HashMap<>();
+        for (int i = 0; i < numBlocks; i++)
+            blockToIndex.put(blocks.get(i), i);
+
+        int[] succStart = new int[numBlocks + 1];
+        int[] succs = new int[numBlocks * 2];
+        int numSuccs = 0;
+        for (int i = 0; i < numBlocks; i++) {
+            Ir.Block block = blocks.get(i);
+            Ir.Block first = condFirst ? block.outgoingCond : block.outgoingDirect;
+            Ir.Block second = condFirst ? block.outgoingDirect : block.outgoingCond;
+            if (first != null)
+                succs[numSuccs++] = blockToIndex.get(first);
+            if (second != null)
+                succs[numSuccs++] = blockToIndex.get(second);
+            succStart[i + 1] = numSuccs;
+        }
+
+        return numBlocks == 0 ? new DfsOrder(succStart, succs) : new DfsOrder(succStart, succs, 0);
+    }
+
+    /**
+     * Traverses the CFG of the method, visiting outgoingDirect before outgoingCond, and sets its blocksPre, blocksPo
+     * and blocksRpo, and the postorderIndex of each reachable block. Unreachable blocks are left untouched.
+     */
+    public static DfsOrder numberBlocks(Ir.Meth meth, List<Ir.Block> blocks) {
+        DfsOrder dfs = ofCfg(blocks, false);
+        meth.blocksPre = new ArrayList<>(dfs.numVisited);
+        meth.blocksPo = new ArrayList<>(dfs.numVisited);
+        meth.blocksRpo = new ArrayList<>(dfs.numVisited);
+        for (int i = 0; i < dfs.numVisited; i++) {
+            meth.blocksPre.add(blocks.get(dfs.pre[i]));
+            Ir.Block block = blocks.get(dfs.post[i]);
+            block.postorderIndex = i;
+            meth.blocksPo.add(block);
+        }
+        for (int i = dfs.numVisited - 1; i >= 0; i--)
+            meth.blocksRpo.add(blocks.get(dfs.post[i]));
+        return dfs;
+    }
+}
@@ -0,0 +1,476 @@
+package pyokagan.cs4212;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+import java.util.zip.CRC32;
+
+/**
+ * Caches the fragment of each method in a directory, so that later runs of the compiler (even in a fresh JVM) can skip
+ * the backend for methods that did not change.
+ *
+ * Methods are keyed by a hash of their IR as generated by IrGen, the layouts of the classes they use, the options the
+ * backend depends on, and the version of the compiler itself (a hash of its class files), so upgrading the compiler
+ * never reuses stale code.
+ *
+ * Each entry is a file named after its key, holding the fragment in a compact binary format (see {@link #write}) and
+ * ending with a CRC-32 of the rest of the file.
+ * Entries are written to a temporary file and then renamed, so several compilers (and threads) may share a directory.
+ * Entries that cannot be read, or whose checksum does not match, are treated as missing.
+ */
+public class DiskCache {
+    private static final int MAGIC = 0x4a4c4643; // "JLFC"
+    private static final int FORMAT_VERSION = 2;
+
+    // Tags of the instrs in the binary format
+    private static final int ADD = 0;
+    private static final int SUB = 1;
+    private static final int RSB = 2;
+    private static final int MUL = 3;
+    private static final int MOV = 4;
+    private static final int MOV_CONST = 5;
+    private static final int B = 6;
+    private static final int BL = 7;
+    private static final int BX = 8;
+    private static final int LDR = 9;
+    private static final int LDR_CONST = 10;
+    private static final int LDR_LABEL = 11;
+    private static final int STR = 12;
+    private static final int STRB = 13;
+    private static final int CMP = 14;
+    private static final int CMN = 15;
+    private static final int PUSH = 16;
+    private static final int POP = 17;
+    private static final int ASCIZ = 18;
+
+    private static final int NO_REG = 0xff;
+
+    private final Path dir;
+    private final String compilerVersion;
+
+    public DiskCache(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        compilerVersion = getCompilerVersion();
+    }
+
+    /**
+     * Returns the key of a method, which must not have been modified since IrGen.
+     */
+    public String getKey(Ir.Meth meth, Ir.Prog prog, int optLevel) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(FORMAT_VERSION).append(' ').append(compilerVersion).append(" -O").append(optLevel).append('\n');
+        meth.render(sb, 0);
+
+        // Field offsets come from the layouts of the classes that the method uses
+        TreeSet<String> cnames = new TreeSet<>();
+        for (Ir.Var v : meth.args)
+            addCname(cnames, v.typ);
+        for (Ir.Var v : meth.locals)
+            addCname(cnames, v.typ);
+        for (Ir.Block block : meth.blocks) {
+            for (Ir.Stmt stmt : block.stmts) {
+                if (stmt instanceof Ir.NewStmt)
+                    cnames.add(((Ir.NewStmt) stmt).data.cname);
+            }
+        }
+        for (Ir.Data data : prog.datas) {
+            if (cnames.contains(data.cname))
+                sb.append(data.render(0));
+        }
+        return MethCache.hash(sb.toString());
+    }
+
+    private static void addCname(Set<String> cnames, Ast.Typ typ) {
+        if (typ instanceof Ast.ClazzTyp)
+            cnames.add(((Ast.ClazzTyp) typ).cname);
+    }
+
+    /**
+     * Returns the fragment with the given key, or null if there is none.
+     */
+    public ArmGen.Fragment get(String key) {
+        Path path = dir.resolve(key);
+        if (!Files.isRegularFile(path))
+            return null;
+        try {
+            byte[] bytes = Files.readAllBytes(path);
+            if (bytes.length < 4)
+                return null;
+            int length = bytes.length - 4;
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, length);
+            if (ByteBuffer.wrap(bytes).getInt(length) != (int) crc.getValue())
+                return null;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !readString(in).equals(key))
+                return null;
+            ArmGen.Fragment fragment = readFragment(in);
+            return in.read() == -1 ? fragment : null;
+        } catch (IOException | RuntimeException | AssertionError e) {
+            // Truncated or corrupt entry
+            return null;
+        }
+    }
+
+    /**
+     * Stores the fragment under the given key. The fragment must not have been linked yet.
+     */
+    public void put(String key, ArmGen.Fragment fragment) {
+        Path tmpPath = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, key);
+            write(out, fragment);
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+
+            tmpPath = Files.createTempFile(dir, key, ".tmp");
+            Files.write(tmpPath, bytes.toByteArray());
+            Files.move(tmpPath, dir.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The cache is only an optimization, the method will just be compiled again next time
+            if (tmpPath != null) {
+                try {
+                    Files.deleteIfExists(tmpPath);
+                } catch (IOException e2) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a hash of the class files of the compiler, whether it runs from a jar or a directory.
+     */
+    private static String getCompilerVersion() throws IOException {
+        Path path;
+        try {
+            path = Paths.get(DiskCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException | RuntimeException e) {
+            throw new IOException("cannot locate the compiler classes", e);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (Files.isDirectory(path)) {
+            List<Path> files;
+            try (Stream<Path> stream = Files.walk(path)) {
+                files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                bytes.write(path.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                bytes.write(0);
+                bytes.write(Files.readAllBytes(file));
+            }
+        } else {
+            bytes.write(Files.readAllBytes(path));
+        }
+        return MethCache.hash(bytes.toByteArray());
+    }
+
+    /**
+     * Writes a fragment as its blocks, local labels, string literals and globals.
+     * Each block is its name, whether it is special, and its instrs.
+     * Each instr is a tag byte followed by its fields, where a reg or cond is a byte holding its ordinal.
+     */
+    static void write(DataOutput out, ArmGen.Fragment fragment) throws IOException {
+        out.writeInt(fragment.textBlocks.size());
+        for (Arm.Block block : fragment.textBlocks) {
+            writeString(out, block.name);
+            out.writeBoolean(block.special);
+            out.writeInt(block.instrs.size());
+            for (Arm.Instr instr : block.instrs)
+                writeInstr(out, instr);
+        }
+        out.writeInt(fragment.labels.size());
+        for (String label : fragment.labels)
+            writeString(out, label);
+        out.writeInt(fragment.strings.size());
+        for (Map.Entry<String, String> entry : fragment.strings.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+        out.writeInt(fragment.globals.size());
+        for (String global : fragment.globals)
+            writeString(out, global);
+    }
+
+    static ArmGen.Fragment readFragment(DataInput in) throws IOException {
+        int numBlocks = readCount(in);
+        ArrayList<Arm.Block> textBlocks = new ArrayList<>();
+        for (int i = 0; i < numBlocks; i++) {
+            String name = readString(in);
+            boolean special = in.readBoolean();
+            int numInstrs = readCount(in);
+            ArrayList<Arm.Instr> instrs = new ArrayList<>();
+            for (int j = 0; j < numInstrs; j++)
+                instrs.add(readInstr(in));
+            Arm.Block block = new Arm.Block(name, instrs);
+            block.special = special;
+            textBlocks.add(block);
+        }
+        int numLabels = readCount(in);
+        ArrayList<String> labels = new ArrayList<>();
+        for (int i = 0; i < numLabels; i++)
+            labels.add(readString(in));
+        int numStrings = readCount(in);
+        HashMap<String, String> strings = new HashMap<>();
+        for (int i = 0; i < numStrings; i++) {
+            String label = readString(in);
+            strings.put(label, readString(in));
+        }
+        int numGlobals = readCount(in);
+        ArrayList<String> globals = new ArrayList<>();
+        for (int i = 0; i < numGlobals; i++)
+            globals.add(readString(in));
+        return new ArmGen.Fragment(textBlocks, labels, strings, globals);
+    }
+
+    private static void writeInstr(DataOutput out, Arm.Instr instr) throws IOException {
+        if (instr instanceof Arm.AddInstr) {
+            Arm.AddInstr addInstr = (Arm.AddInstr) instr;
+            out.writeByte(ADD);
+            writeArith(out, addInstr.dst, addInstr.a, addInstr.b, addInstr.s);
+        } else if (instr instanceof Arm.SubInstr) {
+            Arm.SubInstr subInstr = (Arm.SubInstr) instr;
+            out.writeByte(SUB);
+            writeArith(out, subInstr.dst, subInstr.a, subInstr.b, subInstr.s);
+        } else if (instr instanceof Arm.RsbInstr) {
+            Arm.RsbInstr rsbInstr = (Arm.RsbInstr) instr;
+            out.writeByte(RSB);
+            writeArith(out, rsbInstr.dst, rsbInstr.a, rsbInstr.b, rsbInstr.s);
+        } else if (instr instanceof Arm.MulInstr) {
+            Arm.MulInstr mulInstr = (Arm.MulInstr) instr;
+            out.writeByte(MUL);
+            writeReg(out, mulInstr.dst);
+            writeReg(out, mulInstr.a);
+            writeReg(out, mulInstr.b);
+            out.writeBoolean(mulInstr.s);
+        } else if (instr instanceof Arm.MovInstr) {
+            Arm.MovInstr movInstr = (Arm.MovInstr) instr;
+            out.writeByte(MOV);
+            out.writeByte(movInstr.cond.ordinal());
+            writeReg(out, movInstr.dst);
+            writeOperand2(out, movInstr.src);
+        } else if (instr instanceof Arm.MovConstInstr) {
+            Arm.MovConstInstr movConstInstr = (Arm.MovConstInstr) instr;
+            out.writeByte(MOV_CONST);
+            writeReg(out, movConstInstr.dst);
+            out.writeInt(movConstInstr.i);
+        } else if (instr instanceof Arm.BInstr) {
+            Arm.BInstr bInstr = (Arm.BInstr) instr;
+            out.writeByte(B);
+            out.writeByte(bInstr.cond.ordinal());
+            writeString(out, bInstr.label);
+        } else if (instr instanceof Arm.BLInstr) {
+            Arm.BLInstr blInstr = (Arm.BLInstr) instr;
+            out.writeByte(BL);
+            out.writeByte(blInstr.cond.ordinal());
+            writeString(out, blInstr.label);
+        } else if (instr instanceof Arm.BXInstr) {
+            Arm.BXInstr bxInstr = (Arm.BXInstr) instr;
+            out.writeByte(BX);
+            out.writeByte(bxInstr.cond.ordinal());
+            writeReg(out, bxInstr.reg);
+        } else if (instr instanceof Arm.LdrInstr) {
+            Arm.LdrInstr ldrInstr = (Arm.LdrInstr) instr;
+            out.writeByte(LDR);
+            writeReg(out, ldrInstr.reg);
+            writeReg(out, ldrInstr.mem);
+            out.writeInt(ldrInstr.offset);
+        } else if (instr instanceof Arm.LdrConstInstr) {
+            Arm.LdrConstInstr ldrConstInstr = (Arm.LdrConstInstr) instr;
+            out.writeByte(LDR_CONST);
+            writeReg(out, ldrConstInstr.reg);
+            out.writeInt(ldrConstInstr.i);
+        } else if (instr instanceof Arm.LdrLabelInstr) {
+            Arm.LdrLabelInstr ldrLabelInstr = (Arm.LdrLabelInstr) instr;
+            out.writeByte(LDR_LABEL);
+            writeReg(out, ldrLabelInstr.reg);
+            writeString(out, ldrLabelInstr.label);
+        } else if (instr instanceof Arm.StrInstr) {
+            Arm.StrInstr strInstr = (Arm.StrInstr) instr;
+            out.writeByte(STR);
+            writeReg(out, strInstr.reg);
+            writeReg(out, strInstr.mem);
+            out.writeInt(strInstr.offset);
+        } else if (instr instanceof Arm.StrbInstr) {
+            Arm.StrbInstr strbInstr = (Arm.StrbInstr) instr;
+            out.writeByte(STRB);
+            writeReg(out, strbInstr.reg);
+            writeReg(out, strbInstr.mem);
+            writeReg(out, strbInstr.offset);
+        } else if (instr instanceof Arm.CmpInstr) {
+            Arm.CmpInstr cmpInstr = (Arm.CmpInstr) instr;
+            out.writeByte(CMP);
+            out.writeByte(cmpInstr.cond.ordinal());
+            writeReg(out, cmpInstr.a);
+            writeOperand2(out, cmpInstr.b);
+        } else if (instr instanceof Arm.CmnInstr) {
+            Arm.CmnInstr cmnInstr = (Arm.CmnInstr) instr;
+            out.writeByte(CMN);
+            writeReg(out, cmnInstr.a);
+            writeOperand2(out, cmnInstr.b);
+        } else if (instr instanceof Arm.PushInstr) {
+            out.writeByte(PUSH);
+            writeRegSet(out, ((Arm.PushInstr) instr).regs);
+        } else if (instr instanceof Arm.PopInstr) {
+            out.writeByte(POP);
+            writeRegSet(out, ((Arm.PopInstr) instr).regs);
+        } else if (instr instanceof Arm.AscizInstr) {
+            out.writeByte(ASCIZ);
+            writeString(out, ((Arm.AscizInstr) instr).s);
+        } else {
+            throw new AssertionError("BUG: unknown instr " + instr);
+        }
+    }
+
+    private static Arm.Instr readInstr(DataInput in) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+        case ADD:
+            return new Arm.AddInstr(readReg(in), readReg(in), readOperand2(in), in.readBoolean());
+        case SUB:
+            return new Arm.SubInstr(readReg(in), readReg(in), readOperand2(in), in.readBoolean());
+        case RSB:
+            return new Arm.RsbInstr(readReg(in), readReg(in), readOperand2(in), in.readBoolean());
+        case MUL:
+            return new Arm.MulInstr(readReg(in), readReg(in), readReg(in), in.readBoolean());
+        case MOV:
+            return new Arm.MovInstr(readCond(in), readReg(in), readOperand2(in));
+        case MOV_CONST:
+            return new Arm.MovConstInstr(readReg(in), in.readInt());
+        case B:
+            return new Arm.BInstr(readCond(in), readString(in));
+        case BL:
+            return new Arm.BLInstr(readCond(in), readString(in));
+        case BX:
+            return new Arm.BXInstr(readCond(in), readReg(in));
+        case LDR:
+            return new Arm.LdrInstr(readReg(in), readReg(in), in.readInt());
+        case LDR_CONST:
+            return new Arm.LdrConstInstr(readReg(in), in.readInt());
+        case LDR_LABEL:
+            return new Arm.LdrLabelInstr(readReg(in), readString(in));
+        case STR:
+            return new Arm.StrInstr(readReg(in), readReg(in), in.readInt());
+        case STRB:
+            return new Arm.StrbInstr(readReg(in), readReg(in), readReg(in));
+        case CMP:
+            return new Arm.CmpInstr(readCond(in), readReg(in), readOperand2(in));
+        case CMN:
+            return new Arm.CmnInstr(readReg(in), readOperand2(in));
+        case PUSH:
+            return new Arm.PushInstr(readRegSet(in));
+        case POP:
+            return new Arm.PopInstr(readRegSet(in));
+        case ASCIZ:
+            return new Arm.AscizInstr(readString(in));
+        default:
+            throw new IOException("unknown instr tag " + tag);
+        }
+    }
+
+    private static void writeArith(DataOutput out, Arm.Reg dst, Arm.Reg a, Arm.Operand2 b, boolean s)
+            throws IOException {
+        writeReg(out, dst);
+        writeReg(out, a);
+        writeOperand2(out, b);
+        out.writeBoolean(s);
+    }
+
+    private static void writeOperand2(DataOutput out, Arm.Operand2 op) throws IOException {
+        if (op instanceof Arm.Operand2Const) {
+            out.writeByte(0);
+            out.writeInt(((Arm.Operand2Const) op).i);
+        } else if (op instanceof Arm.Operand2Reg) {
+            out.writeByte(1);
+            writeReg(out, ((Arm.Operand2Reg) op).reg);
+        } else {
+            throw new AssertionError("BUG: unknown operand2 " + op);
+        }
+    }
+
+    private static Arm.Operand2 readOperand2(DataInput in) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+        case 0:
+            return new Arm.Operand2Const(in.readInt());
+        case 1:
+            return new Arm.Operand2Reg(readReg(in));
+        default:
+            throw new IOException("unknown operand2 tag " + tag);
+        }
+    }
+
+    private static void writeReg(DataOutput out, Arm.Reg reg) throws IOException {
+        out.writeByte(reg != null ? reg.ordinal() : NO_REG);
+    }
+
+    /**
+     * Returns the reg, or null for the optional reg of StrbInstr.
+     */
+    private static Arm.Reg readReg(DataInput in) throws IOException {
+        int i = in.readUnsignedByte();
+        if (i == NO_REG)
+            return null;
+        if (i >= Arm.Reg.values().length)
+            throw new IOException("invalid reg " + i);
+        return Arm.Reg.values()[i];
+    }
+
+    private static Arm.Cond readCond(DataInput in) throws IOException {
+        int i = in.readUnsignedByte();
+        if (i >= Arm.Cond.values().length)
+            throw new IOException("invalid cond " + i);
+        return Arm.Cond.values()[i];
+    }
+
+    private static void writeRegSet(DataOutput out, Set<Arm.Reg> regs) throws IOException {
+        int mask = 0;
+        for (Arm.Reg reg : regs)
+            mask |= 1 << reg.ordinal();
+        out.writeShort(mask);
+    }
+
+    private static EnumSet<Arm.Reg> readRegSet(DataInput in) throws IOException {
+        int mask = in.readUnsignedShort();
+        EnumSet<Arm.Reg> regs = EnumSet.noneOf(Arm.Reg.class);
+        for (Arm.Reg reg : Arm.Reg.values()) {
+            if ((mask & (1 << reg.ordinal())) != 0)
+                regs.add(reg);
+        }
+        return regs;
+    }
+
+    /**
+     * Unlike writeUTF(), allows string literals longer than 64KB.
+     */
+    private static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readCount(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readCount(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0)
+            throw new IOException("invalid count " + count);
+        return count;
+    }
+}
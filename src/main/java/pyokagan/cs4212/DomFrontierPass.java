@@ -7,8 +7,12 @@ import java.util.*;
  */
 public class DomFrontierPass {
     private HashMap<Ir.Block, HashSet<Ir.Block>> domFrontiers = new HashMap<>();
+    private final List<Ir.Block> blocksPo;
+    private final BitSet idfResult = new BitSet();
+    private final BitSet idfWorklist = new BitSet();
 
     public DomFrontierPass(Ir.Meth meth, DomPass dom) {
+        blocksPo = meth.blocksPo;
         for (Ir.Block block : meth.blocks)
             domFrontiers.put(block, new HashSet<>());
 
@@ -31,4 +35,31 @@ public class DomFrontierPass {
     public Set<Ir.Block> getDomFrontier(Ir.Block block) {
         return domFrontiers.get(block);
     }
+
+    /**
+     * Returns the iterated dominance frontier of a set of blocks, in postorder.
+     *
+     * The worklist and result are bit sets indexed by postorderIndex, which are reused across calls.
+     */
+    public List<Ir.Block> getIteratedDomFrontier(Collection<Ir.Block> blocks) {
+        idfResult.clear();
+        idfWorklist.clear();
+        for (Ir.Block block : blocks)
+            idfWorklist.set(block.postorderIndex);
+
+        for (int b = idfWorklist.nextSetBit(0); b >= 0; b = idfWorklist.nextSetBit(0)) {
+            idfWorklist.clear(b);
+            for (Ir.Block frontier : domFrontiers.get(blocksPo.get(b))) {
+                if (!idfResult.get(frontier.postorderIndex)) {
+                    idfResult.set(frontier.postorderIndex);
+                    idfWorklist.set(frontier.postorderIndex);
+                }
+            }
+        }
+
+        ArrayList<Ir.Block> result = new ArrayList<>();
+        for (int b = idfResult.nextSetBit(0); b >= 0; b = idfResult.nextSetBit(b + 1))
+            result.add(blocksPo.get(b));
+        return result;
+    }
 }
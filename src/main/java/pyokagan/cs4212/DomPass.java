@@ -5,108 +5,250 @@ import java.util.*;
 /**
  * Computes dom information for a method.
  *
- * A Simple, Fast Dominance Algorithm
+ * Blocks are identified by their postorderIndex, and the dom tree is stored in int arrays indexed by it.
+ * The dom tree is numbered with a pre/post order DFS, so that a dominance query is a constant-time interval check.
+ *
+ * Two construction algorithms are available:
+ *
+ * A Simple, Fast Dominance Algorithm (Cooper, Harvey, Kennedy)
  * https://www.cs.rice.edu/~keith/EMBED/dom.pdf
+ *
+ * Finding Dominators in Practice (Georgiadis, Werneck, Tarjan et al.), Section 2.3 (SEMI-NCA)
+ * http://jgaa.info/accepted/2006/GeorgiadisTarjanWerneck2006.10.1.pdf
+ *
+ * The iterative algorithm is faster on the small CFGs that most methods have, but may need many passes over the CFG
+ * when it is large and deeply nested. SEMI-NCA always runs in near-linear time.
  */
 public class DomPass {
-    // Mapping of block to idom block
-    private HashMap<Ir.Block, Ir.Block> idom = new HashMap<>();
+    public enum Algorithm {
+        ITERATIVE,
+        SEMI_NCA,
+    }
+
+    // CFGs with more blocks than this use SEMI_NCA by default
+    private static final int SEMI_NCA_THRESHOLD = 1000;
 
-    // Mapping of block to its children in dom tree
-    private HashMap<Ir.Block, ArrayList<Ir.Block>> idomChilds = new HashMap<>();
+    // Blocks indexed by postorderIndex
+    private final Ir.Block[] blocks;
+
+    // Postorder index of the idom of each block, or -1 for the root of the dom tree
+    private final int[] idoms;
+
+    // Pre and post order numbers of each block in the dom tree
+    private final int[] domPre;
+    private final int[] domPost;
 
     // Traversal of dom tree in pre-order
-    private ArrayList<Ir.Block> idomPreorder = new ArrayList<>();
+    private final ArrayList<Ir.Block> idomPreorder = new ArrayList<>();
 
     public DomPass(Ir.Meth meth) {
-        if (meth.blocks.isEmpty())
+        this(meth, meth.blocks.size() > SEMI_NCA_THRESHOLD ? Algorithm.SEMI_NCA : Algorithm.ITERATIVE);
+    }
+
+    public DomPass(Ir.Meth meth, Algorithm algorithm) {
+        int numBlocks = meth.blocks.size();
+        blocks = new Ir.Block[numBlocks];
+        idoms = new int[numBlocks];
+        domPre = new int[numBlocks];
+        domPost = new int[numBlocks];
+
+        if (numBlocks == 0)
             return;
 
-        Ir.Block firstBlock = meth.blocks.get(0);
-        idom.put(firstBlock, null);
+        if (meth.blocksPo.size() != numBlocks)
+            throw new AssertionError("BUG: stale blocksPo for " + meth.name);
+        for (Ir.Block block : meth.blocks) {
+            if (meth.blocksPo.get(block.postorderIndex) != block)
+                throw new AssertionError("BUG: stale postorderIndex for " + block);
+            blocks[block.postorderIndex] = block;
+        }
+
+        int root = meth.blocks.get(0).postorderIndex;
+        switch (algorithm) {
+        case ITERATIVE:
+            computeIterative(meth, root);
+            break;
+        case SEMI_NCA:
+            computeSemiNca(root);
+            break;
+        default:
+            throw new AssertionError("BUG: unknown algorithm " + algorithm);
+        }
+
+        numberDomTree(meth, root);
+    }
+
+    private void computeIterative(Ir.Meth meth, int root) {
+        Arrays.fill(idoms, -1);
+        idoms[root] = root;
 
         boolean changed = true;
         while (changed) {
             changed = false;
 
             for (Ir.Block block : meth.blocksRpo) {
-                if (block == firstBlock)
+                int b = block.postorderIndex;
+                if (b == root)
                     continue;
 
-                Ir.Block new_idom = null;
+                int newIdom = -1;
                 for (Ir.Block otherIncoming : block.incoming) {
-                    if (!idom.containsKey(otherIncoming))
+                    int p = otherIncoming.postorderIndex;
+                    if (idoms[p] < 0)
                         continue;
 
-                    if (new_idom == null)
-                        new_idom = otherIncoming;
+                    if (newIdom < 0)
+                        newIdom = p;
                     else
-                        new_idom = idomIntersect(otherIncoming, new_idom);
+                        newIdom = idomIntersect(p, newIdom);
                 }
 
-                if (!idom.containsKey(block) || idom.get(block) != new_idom) {
-                    idom.put(block, new_idom);
+                if (idoms[b] != newIdom) {
+                    idoms[b] = newIdom;
                     changed = true;
                 }
             }
         }
 
-        // Compute child list
-        for (Ir.Block block : meth.blocks)
-            idomChilds.put(block, new ArrayList<>());
-        for (Ir.Block block : meth.blocks) {
-            Ir.Block parent = idom.get(block);
-            if (parent != null)
-                idomChilds.get(parent).add(block);
-        }
-
-        // Compute idom tree traversal in preorder
-        HashSet<Ir.Block> visited = new HashSet<>();
-        idomDfs(meth.blocks.get(0), visited);
+        idoms[root] = -1;
     }
 
-    private Ir.Block idomIntersect(Ir.Block b1, Ir.Block b2) {
-        Ir.Block finger1 = b1;
-        Ir.Block finger2 = b2;
+    private int idomIntersect(int finger1, int finger2) {
         while (finger1 != finger2) {
-            if (finger2 == null)
-                finger1 = idom.get(finger1);
-            else if (finger1 == null)
-                finger2 = idom.get(finger2);
-            else if (finger1.postorderIndex < finger2.postorderIndex)
-                finger1 = idom.get(finger1);
-            else if (finger2.postorderIndex < finger1.postorderIndex)
-                finger2 = idom.get(finger2);
+            while (finger1 < finger2)
+                finger1 = idoms[finger1];
+            while (finger2 < finger1)
+                finger2 = idoms[finger2];
         }
         return finger1;
     }
 
-    private void idomDfs(Ir.Block block, HashSet<Ir.Block> visited) {
-        visited.add(block);
-        idomPreorder.add(block);
-        for (Ir.Block child : idomChilds.get(block)) {
-            if (!visited.contains(child))
-                idomDfs(child, visited);
+    private void computeSemiNca(int root) {
+        int numBlocks = blocks.length;
+
+        // DFS of the CFG. Everything below is in terms of DFS preorder numbers.
+        int[] succStart = new int[numBlocks + 1];
+        int[] succs = new int[numBlocks * 2];
+        for (int b = 0; b < numBlocks; b++) {
+            Ir.Block block = blocks[b];
+            int numSuccs = succStart[b];
+            if (block.outgoingDirect != null)
+                succs[numSuccs++] = block.outgoingDirect.postorderIndex;
+            if (block.outgoingCond != null)
+                succs[numSuccs++] = block.outgoingCond.postorderIndex;
+            succStart[b + 1] = numSuccs;
+        }
+        DfsOrder dfs = new DfsOrder(succStart, succs, root);
+        int n = dfs.numVisited;
+        int[] dfnum = dfs.preNum; // postorderIndex -> DFS number
+        int[] vertex = dfs.pre; // DFS number -> postorderIndex
+        int[] parent = new int[n];
+        for (int v = 1; v < n; v++)
+            parent[v] = dfnum[dfs.parent[vertex[v]]];
+
+        // Semidominators, with path compression over the forest of already processed vertices
+        int[] semi = new int[n];
+        int[] label = new int[n];
+        int[] ancestor = new int[n];
+        for (int v = 0; v < n; v++) {
+            semi[v] = v;
+            label[v] = v;
+            ancestor[v] = -1;
+        }
+        int[] path = new int[n];
+        for (int w = n - 1; w > 0; w--) {
+            for (Ir.Block pred : blocks[vertex[w]].incoming) {
+                int v = dfnum[pred.postorderIndex];
+                if (v < 0)
+                    continue; // Unreachable
+                int u = eval(v, semi, label, ancestor, path);
+                if (semi[u] < semi[w])
+                    semi[w] = semi[u];
+            }
+            ancestor[w] = parent[w];
+        }
+
+        // The idom is the nearest common ancestor of the parent and the semidominator in the dom tree
+        int[] idom = new int[n];
+        idom[0] = -1;
+        for (int w = 1; w < n; w++) {
+            int d = parent[w];
+            while (d > semi[w])
+                d = idom[d];
+            idom[w] = d;
+        }
+
+        Arrays.fill(idoms, -1);
+        for (int w = 1; w < n; w++)
+            idoms[vertex[w]] = vertex[idom[w]];
+    }
+
+    /**
+     * Returns the vertex with the minimum semidominator on the path from v to the root of its tree in the forest,
+     * compressing the path along the way.
+     */
+    private static int eval(int v, int[] semi, int[] label, int[] ancestor, int[] path) {
+        if (ancestor[v] < 0)
+            return v;
+
+        // Collect the path up to (but not including) the root of the tree
+        int len = 0;
+        for (int x = v; ancestor[ancestor[x]] >= 0; x = ancestor[x])
+            path[len++] = x;
+
+        // Compress from the top down
+        for (int i = len - 1; i >= 0; i--) {
+            int x = path[i];
+            int a = ancestor[x];
+            if (semi[label[a]] < semi[label[x]])
+                label[x] = label[a];
+            ancestor[x] = ancestor[a];
+        }
+        return label[v];
+    }
+
+    private void numberDomTree(Ir.Meth meth, int root) {
+        int numBlocks = blocks.length;
+
+        // Child lists, in the order of meth.blocks
+        int[] childStart = new int[numBlocks + 1];
+        for (int b = 0; b < numBlocks; b++) {
+            if (idoms[b] >= 0)
+                childStart[idoms[b] + 1]++;
+        }
+        for (int b = 0; b < numBlocks; b++)
+            childStart[b + 1] += childStart[b];
+        int[] childs = new int[numBlocks];
+        int[] childFill = Arrays.copyOf(childStart, numBlocks);
+        for (Ir.Block block : meth.blocks) {
+            int parent = idoms[block.postorderIndex];
+            if (parent >= 0)
+                childs[childFill[parent]++] = block.postorderIndex;
         }
+
+        // Pre/post order DFS of dom tree
+        DfsOrder dfs = new DfsOrder(childStart, childs, root);
+        System.arraycopy(dfs.preNum, 0, domPre, 0, numBlocks);
+        System.arraycopy(dfs.postNum, 0, domPost, 0, numBlocks);
+        for (int i = 0; i < dfs.numVisited; i++)
+            idomPreorder.add(blocks[dfs.pre[i]]);
     }
 
     /**
      * Returns true if a dominates b
      */
     public boolean isDominate(Ir.Block a, Ir.Block b) {
-        while (b != null) {
-            if (a == b)
-                return true;
-            b = getIdom(b);
-        }
-        return false;
+        int x = a.postorderIndex;
+        int y = b.postorderIndex;
+        return domPre[x] <= domPre[y] && domPost[y] <= domPost[x];
     }
 
     /**
      * Returns the immediate dominator of block, or null if it is the root of the dom tree.
      */
     public Ir.Block getIdom(Ir.Block block) {
-        return idom.get(block);
+        int idom = idoms[block.postorderIndex];
+        return idom >= 0 ? blocks[idom] : null;
     }
 
     /**
@@ -12,12 +12,7 @@ public class FlowPass {
     private HashSet<Ir.LabelStmt> usedLabels = new HashSet<>();
     private HashMap<Ir.LabelStmt, Ir.Block> labelToBlock = new HashMap<>();
     private ArrayList<Ir.Block> blocks = new ArrayList<>();
-    private ArrayList<Ir.Block> blocksPre = new ArrayList<>();
-    private ArrayList<Ir.Block> blocksPo = new ArrayList<>();
-    private ArrayList<Ir.Block> blocksRpo = new ArrayList<>();
-    private HashSet<Ir.Block> visited;
     private int blockIndex;
-    private int postorderIndex;
 
     public static void run(Ir.Meth meth) {
         FlowPass fp = new FlowPass();
@@ -97,20 +92,13 @@ public class FlowPass {
         }
 
         // Compute postorder and check for dead blocks
-        fp.visited = new HashSet<>();
-        fp.postorderIndex = 0;
-        if (!fp.blocks.isEmpty()) {
-            fp.dfs(fp.blocks.get(0));
-
-            for (int i = fp.blocksPo.size() - 1; i >= 0; i--)
-                fp.blocksRpo.add(fp.blocksPo.get(i));
-        }
+        DfsOrder dfs = DfsOrder.numberBlocks(meth, fp.blocks);
 
         // Remove dead blocks
         ArrayList<Ir.Block> newBlocks = new ArrayList<Ir.Block>();
-        for (Ir.Block block : fp.blocks) {
-            if (fp.visited.contains(block))
-                newBlocks.add(block);
+        for (int i = 0; i < fp.blocks.size(); i++) {
+            if (dfs.isVisited(i))
+                newBlocks.add(fp.blocks.get(i));
         }
         fp.blocks = newBlocks;
 
@@ -130,9 +118,6 @@ public class FlowPass {
         }
 
         meth.blocks = fp.blocks;
-        meth.blocksPre = fp.blocksPre;
-        meth.blocksPo = fp.blocksPo;
-        meth.blocksRpo = fp.blocksRpo;
     }
 
     private void makeBlock() {
@@ -159,15 +144,4 @@ public class FlowPass {
 
         blockLabels.add(label);
     }
-
-    private void dfs(Ir.Block block) {
-        visited.add(block);
-        blocksPre.add(block);
-        if (block.outgoingDirect != null && !visited.contains(block.outgoingDirect))
-            dfs(block.outgoingDirect);
-        if (block.outgoingCond != null && !visited.contains(block.outgoingCond))
-            dfs(block.outgoingCond);
-        blocksPo.add(block);
-        block.postorderIndex = postorderIndex++;
-    }
 }
@@ -0,0 +1,223 @@
+package pyokagan.cs4212;
+
+import java.util.*;
+
+/**
+ * Dominator-based global value numbering.
+ *
+ * Value Numbering (Briggs, Cooper, Simpson)
+ * https://www.cs.tufts.edu/~nr/cs257/archive/keith-cooper/value-numbering.pdf
+ *
+ * Walks the dom tree in preorder, and replaces each BinaryStmt, UnaryStmt and FieldAccessStmt that computes the same
+ * value as one in a dominating position with the var holding that value. Copies between vars are propagated along the
+ * way. A field is only considered the same value if no FieldAssignStmt or CallStmt can run between the two accesses.
+ *
+ * Vars that are phi dsts or phi args are never renamed, and never replace another var, so that the method stays in
+ * Conventional-SSA form for PhiWebPass. A redundant computation into such a var becomes a copy instead.
+ *
+ * Must be run on SSA form. Does not change the CFG.
+ */
+public class GvnPass {
+    private final Ir.Meth meth;
+    private final DomPass domPass;
+
+    // Vars that are phi dsts or phi args
+    private final HashSet<Ir.Var> phiVars = new HashSet<>();
+    // Replaced var -> var that replaces it
+    private final HashMap<Ir.Var, Ir.Var> renames = new HashMap<>();
+    private final HashMap<Ir.Var, Integer> varNums = new HashMap<>();
+    // Expression -> vars that hold its value, in the order they were defined
+    private final HashMap<String, ArrayList<Avail>> table = new HashMap<>();
+    // Memory state at the start of each block, and after each FieldAssignStmt and CallStmt. Two field accesses can only
+    // be the same value in the same state.
+    private final HashMap<Ir.Block, Integer> memIn = new HashMap<>();
+    private final HashMap<Ir.Stmt, Integer> memAfter = new HashMap<>();
+    private int numMemStates;
+    private boolean modified;
+
+    private static class Avail {
+        final Ir.Var v;
+        final Ir.Block block;
+
+        Avail(Ir.Var v, Ir.Block block) {
+            this.v = v;
+            this.block = block;
+        }
+    }
+
+    private GvnPass(Ir.Meth meth, DomPass domPass) {
+        this.meth = meth;
+        this.domPass = domPass;
+    }
+
+    /**
+     * Returns false if the method was not modified.
+     */
+    public static boolean run(Ir.Meth meth, DomPass domPass) {
+        GvnPass p = new GvnPass(meth, domPass);
+        p.findPhiVars();
+        p.numberMemStates();
+        for (Ir.Block block : domPass.getPreorder())
+            p.doBlock(block);
+        return p.modified;
+    }
+
+    private void findPhiVars() {
+        for (Ir.Block block : meth.blocks) {
+            for (Ir.Stmt stmt : block.stmts) {
+                if (!(stmt instanceof Ir.PhiStmt))
+                    break;
+                Ir.PhiStmt phiStmt = (Ir.PhiStmt) stmt;
+                phiVars.add(phiStmt.getDst());
+                for (Ir.Var v : phiStmt.args) {
+                    if (v != null)
+                        phiVars.add(v);
+                }
+            }
+        }
+    }
+
+    /**
+     * A block starts in the same memory state as its preds if they all end in the same state, and in a new state
+     * otherwise. Every FieldAssignStmt and CallStmt starts a new state. Back edges always give a new state.
+     */
+    private void numberMemStates() {
+        HashMap<Ir.Block, Integer> memOut = new HashMap<>();
+        for (Ir.Block block : meth.blocksRpo) {
+            Integer state = null;
+            for (Ir.Block pred : block.incoming) {
+                Integer predState = memOut.get(pred);
+                if (predState == null || (state != null && !state.equals(predState))) {
+                    state = null;
+                    break;
+                }
+                state = predState;
+            }
+            if (state == null)
+                state = numMemStates++;
+            memIn.put(block, state);
+            for (Ir.Stmt stmt : block.stmts) {
+                if (clobbersMem(stmt)) {
+                    state = numMemStates++;
+                    memAfter.put(stmt, state);
+                }
+            }
+            memOut.put(block, state);
+        }
+    }
+
+    private static boolean clobbersMem(Ir.Stmt stmt) {
+        return stmt instanceof Ir.FieldAssignStmt || stmt instanceof Ir.CallStmt;
+    }
+
+    private void doBlock(Ir.Block block) {
+        int memState = memIn.get(block);
+        for (int i = 0; i < block.stmts.size(); i++) {
+            Ir.Stmt stmt = block.stmts.get(i);
+            if (stmt instanceof Ir.PhiStmt)
+                continue;
+
+            // Defs dominate their uses, so the uses have already been visited if they are to be renamed
+            for (int j = 0; j < stmt.numUses(); j++) {
+                Ir.Var v = stmt.getUse(j);
+                if (v != null && renames.containsKey(v))
+                    stmt.setUse(j, renames.get(v));
+            }
+
+            if (clobbersMem(stmt)) {
+                memState = memAfter.get(stmt);
+                continue;
+            }
+
+            if (stmt instanceof Ir.AssignStmt) {
+                Ir.AssignStmt assignStmt = (Ir.AssignStmt) stmt;
+                if (assignStmt.src instanceof Ir.VarRval && canRename(assignStmt.getDst())
+                        && canRename(((Ir.VarRval) assignStmt.src).v)) {
+                    renames.put(assignStmt.getDst(), ((Ir.VarRval) assignStmt.src).v);
+                    block.stmts.remove(i--);
+                    modified = true;
+                }
+                continue;
+            }
+
+            String key = getKey(stmt, memState);
+            if (key == null)
+                continue;
+            Ir.Var dst = stmt.getDef(0);
+            Ir.Var avail = lookup(key, block);
+            if (avail == null) {
+                if (canRename(dst))
+                    table.computeIfAbsent(key, k -> new ArrayList<>()).add(new Avail(dst, block));
+            } else if (canRename(dst)) {
+                renames.put(dst, avail);
+                block.stmts.remove(i--);
+                modified = true;
+            } else {
+                block.stmts.set(i, new Ir.AssignStmt(dst, new Ir.VarRval(avail)));
+                modified = true;
+            }
+        }
+    }
+
+    private boolean canRename(Ir.Var v) {
+        return !phiVars.contains(v);
+    }
+
+    /**
+     * Returns the latest var holding the value of key that is defined in a block dominating block, or null.
+     */
+    private Ir.Var lookup(String key, Ir.Block block) {
+        ArrayList<Avail> avails = table.get(key);
+        if (avails == null)
+            return null;
+        for (int i = avails.size() - 1; i >= 0; i--) {
+            Avail avail = avails.get(i);
+            if (domPass.isDominate(avail.block, block))
+                return avail.v;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a string that is the same for stmts computing the same value, or null if the stmt is not numbered.
+     */
+    private String getKey(Ir.Stmt stmt, int memState) {
+        if (stmt instanceof Ir.BinaryStmt) {
+            Ir.BinaryStmt binaryStmt = (Ir.BinaryStmt) stmt;
+            String a = getKey(binaryStmt.a);
+            String b = getKey(binaryStmt.b);
+            if (a == null || b == null)
+                return null;
+            boolean commutative = binaryStmt.op == Ir.BinaryOp.PLUS || binaryStmt.op == Ir.BinaryOp.MUL;
+            if (commutative && a.compareTo(b) > 0) {
+                String tmp = a;
+                a = b;
+                b = tmp;
+            }
+            return binaryStmt.op + " " + a + " " + b;
+        } else if (stmt instanceof Ir.UnaryStmt) {
+            Ir.UnaryStmt unaryStmt = (Ir.UnaryStmt) stmt;
+            String a = getKey(unaryStmt.a);
+            return a != null ? unaryStmt.op + " " + a : null;
+        } else if (stmt instanceof Ir.FieldAccessStmt) {
+            Ir.FieldAccessStmt fieldAccessStmt = (Ir.FieldAccessStmt) stmt;
+            String target = getKey(fieldAccessStmt.target);
+            return target != null ? "FIELD " + target + "." + fieldAccessStmt.field + " @" + memState : null;
+        } else {
+            return null;
+        }
+    }
+
+    private String getKey(Ir.Rval rv) {
+        if (rv instanceof Ir.VarRval)
+            return "v" + varNums.computeIfAbsent(((Ir.VarRval) rv).v, k -> varNums.size());
+        else if (rv instanceof Ir.IntLitRval)
+            return "i" + ((Ir.IntLitRval) rv).i;
+        else if (rv instanceof Ir.BoolLitRval)
+            return "b" + ((Ir.BoolLitRval) rv).b;
+        else if (rv instanceof Ir.NullLitRval)
+            return "null";
+        else
+            return null;
+    }
+}
@@ -26,13 +26,27 @@ public class Ir {
 
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
+            render(sb, indent);
+            return sb.toString();
+        }
+
+        public void render(StringBuilder sb, int indent) {
             for (Data data : datas) {
                 sb.append(data.render(indent));
             }
             for (Meth meth : meths) {
-                sb.append(meth.render(indent));
+                meth.render(sb, indent);
             }
-            return sb.toString();
+        }
+
+        /**
+         * Returns a copy of the program, see Meth.copy(). The datas are shared with the original.
+         */
+        public Prog copy() {
+            ArrayList<Meth> methCopies = new ArrayList<>();
+            for (Meth meth : meths)
+                methCopies.add(meth.copy());
+            return new Prog(datas, methCopies);
         }
     }
 
@@ -100,6 +114,13 @@ public class Ir {
                 return name;
         }
 
+        // Unlike the identity hash code, this does not depend on which thread compiles the method,
+        // so iteration orders (and thus the generated code) are the same no matter how many threads are used.
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+
         @Override
         public String toString() {
             return "Var(" + name + ", " + reg + ")";
@@ -124,6 +145,11 @@ public class Ir {
 
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
+            render(sb, indent);
+            return sb.toString();
+        }
+
+        public void render(StringBuilder sb, int indent) {
             doIndent(sb, indent);
             sb.append(retTyp.render(0, 0));
             sb.append(" ");
@@ -147,11 +173,57 @@ public class Ir {
             }
             sb.append("\n");
             for (Block block : blocks) {
-                sb.append(block.render(indent + 1));
+                block.render(sb, indent + 1);
             }
             doIndent(sb, indent);
             sb.append("}\n");
-            return sb.toString();
+        }
+
+        /**
+         * Returns a deep copy of the method's code: its vars, blocks (with their CFG edges and orderings) and stmts
+         * are all copied, so that later passes on the method do not affect the copy.
+         * The types, callees, datas and phi webs are shared with the original.
+         */
+        public Meth copy() {
+            Copier c = new Copier();
+            Meth copy = new Meth(retTyp, name);
+            copy.args = c.vars(args);
+            copy.locals = c.vars(locals);
+            if (phiWebs != null)
+                copy.phiWebs = new ArrayList<>(phiWebs);
+
+            HashMap<Block, Block> blockCopies = new HashMap<>();
+            copy.blocks = new ArrayList<>();
+            for (Block block : blocks) {
+                ArrayList<Stmt> stmtCopies = new ArrayList<>();
+                for (Stmt stmt : block.stmts)
+                    stmtCopies.add(stmt.copy(c));
+                Block blockCopy = new Block(stmtCopies);
+                blockCopy.label = block.label != null ? c.label(block.label) : null;
+                blockCopy.postorderIndex = block.postorderIndex;
+                blockCopies.put(block, blockCopy);
+                copy.blocks.add(blockCopy);
+            }
+            for (Block block : blocks) {
+                Block blockCopy = blockCopies.get(block);
+                for (Block pred : block.incoming)
+                    blockCopy.incoming.add(blockCopies.get(pred));
+                blockCopy.outgoingDirect = blockCopies.get(block.outgoingDirect);
+                blockCopy.outgoingCond = blockCopies.get(block.outgoingCond);
+            }
+            copy.blocksPre = copyBlockList(blocksPre, blockCopies);
+            copy.blocksPo = copyBlockList(blocksPo, blockCopies);
+            copy.blocksRpo = copyBlockList(blocksRpo, blockCopies);
+            return copy;
+        }
+
+        private static ArrayList<Block> copyBlockList(List<Block> blocks, Map<Block, Block> blockCopies) {
+            if (blocks == null)
+                return null;
+            ArrayList<Block> out = new ArrayList<>();
+            for (Block block : blocks)
+                out.add(blockCopies.get(block));
+            return out;
         }
 
         public String renderCfg() {
@@ -187,12 +259,16 @@ public class Ir {
 
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
+            render(sb, indent);
+            return sb.toString();
+        }
+
+        public void render(StringBuilder sb, int indent) {
             if (label != null)
                 sb.append(label.render(indent));
             for (Stmt stmt : stmts) {
                 sb.append(stmt.render(indent));
             }
-            return sb.toString();
         }
 
         public List<Block> getOutgoing() {
@@ -210,20 +286,128 @@ public class Ir {
         }
     }
 
+    /**
+     * Maps the vars and labels of a method to their copies, creating each copy on first use.
+     */
+    public static class Copier {
+        private final HashMap<Var, Var> vars = new HashMap<>();
+        private final HashMap<LabelStmt, LabelStmt> labels = new HashMap<>();
+
+        public Var var(Var v) {
+            if (v == null)
+                return null;
+            Var copy = vars.get(v);
+            if (copy == null) {
+                copy = new Var(v.typ, v.name);
+                copy.reg = v.reg;
+                copy.phiWeb = v.phiWeb;
+                vars.put(v, copy);
+            }
+            return copy;
+        }
+
+        public ArrayList<Var> vars(List<Var> vs) {
+            ArrayList<Var> out = new ArrayList<>();
+            for (Var v : vs)
+                out.add(var(v));
+            return out;
+        }
+
+        public LabelStmt label(LabelStmt label) {
+            if (label == null)
+                return null;
+            LabelStmt copy = labels.get(label);
+            if (copy == null) {
+                copy = new LabelStmt(label.name);
+                labels.put(label, copy);
+            }
+            return copy;
+        }
+
+        /**
+         * Literal rvals are immutable, so only VarRvals need to be copied.
+         */
+        public Rval rval(Rval rv) {
+            if (rv instanceof VarRval)
+                return new VarRval(var(((VarRval) rv).v));
+            return rv;
+        }
+
+        public ArrayList<Rval> rvals(List<Rval> rvs) {
+            ArrayList<Rval> out = new ArrayList<>();
+            for (Rval rv : rvs)
+                out.add(rval(rv));
+            return out;
+        }
+    }
+
     public static abstract class Stmt {
         public abstract String render(int indent);
         public abstract List<Ir.Rval> getRvals();
 
+        /**
+         * Returns a copy of the stmt, with vars and labels mapped through c.
+         */
+        public abstract Stmt copy(Copier c);
+
+        // The indexed accessors below do not allocate, unlike getRvals(), getUses() and getDefs(), and are meant for
+        // inner loops.
+
+        public int numRvals() {
+            return 0;
+        }
+
+        public Ir.Rval getRval(int i) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        public void setRval(int i, Ir.Rval rv) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        /**
+         * Returns the number of use operands: the rvals, followed by any vars that the stmt reads directly.
+         */
+        public int numUses() {
+            return numRvals();
+        }
+
+        /**
+         * Returns the i-th use operand, or null if it is not a var.
+         */
+        public Ir.Var getUse(int i) {
+            Ir.Rval rv = getRval(i);
+            return rv instanceof Ir.VarRval ? ((Ir.VarRval) rv).v : null;
+        }
+
+        /**
+         * Replaces the i-th use operand, which must be a var.
+         */
+        public void setUse(int i, Ir.Var v) {
+            ((Ir.VarRval) getRval(i)).v = v;
+        }
+
         public ArrayList<Ir.Var> getUses() {
             ArrayList<Ir.Var> out = new ArrayList<>();
-            for (Ir.Rval rv : getRvals()) {
-                if (!(rv instanceof Ir.VarRval))
-                    continue;
-                out.add(((Ir.VarRval) rv).v);
+            for (int i = 0; i < numUses(); i++) {
+                Ir.Var v = getUse(i);
+                if (v != null)
+                    out.add(v);
             }
             return out;
         }
 
+        public int numDefs() {
+            return 0;
+        }
+
+        /**
+         * Returns the i-th def, which is null for calls whose result is discarded.
+         */
+        public Ir.Var getDef(int i) {
+            throw new IndexOutOfBoundsException();
+        }
+
         public List<Ir.Var> getDefs() {
             return Collections.emptyList();
         }
@@ -247,6 +431,11 @@ public class Ir {
             return Collections.emptyList();
         }
 
+        @Override
+        public LabelStmt copy(Copier c) {
+            return c.label(this);
+        }
+
         @Override
         public String render(int indent) {
             return name + ":\n";
@@ -269,6 +458,42 @@ public class Ir {
             return Arrays.asList(a, b);
         }
 
+        @Override
+        public int numRvals() {
+            return 2;
+        }
+
+        @Override
+        public Ir.Rval getRval(int i) {
+            switch (i) {
+            case 0:
+                return a;
+            case 1:
+                return b;
+            default:
+                throw new IndexOutOfBoundsException();
+            }
+        }
+
+        @Override
+        public void setRval(int i, Ir.Rval rv) {
+            switch (i) {
+            case 0:
+                a = rv;
+                break;
+            case 1:
+                b = rv;
+                break;
+            default:
+                throw new IndexOutOfBoundsException();
+            }
+        }
+
+        @Override
+        public Stmt copy(Copier c) {
+            return new CmpStmt(op, c.rval(a), c.rval(b), c.label(label));
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -295,6 +520,11 @@ public class Ir {
             return Collections.emptyList();
         }
 
+        @Override
+        public Stmt copy(Copier c) {
+            return new GotoStmt(c.label(label));
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -314,6 +544,16 @@ public class Ir {
             return defs.get(0);
         }
 
+        @Override
+        public int numDefs() {
+            return defs.size();
+        }
+
+        @Override
+        public Ir.Var getDef(int i) {
+            return defs.get(i);
+        }
+
         @Override
         public List<Ir.Var> getDefs() {
             return Collections.unmodifiableList(defs);
@@ -329,6 +569,11 @@ public class Ir {
             return Collections.emptyList();
         }
 
+        @Override
+        public Stmt copy(Copier c) {
+            return new ReadlnStmt(c.var(getDst()));
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -349,6 +594,30 @@ public class Ir {
             return Arrays.asList(rv);
         }
 
+        @Override
+        public int numRvals() {
+            return 1;
+        }
+
+        @Override
+        public Ir.Rval getRval(int i) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            return rv;
+        }
+
+        @Override
+        public void setRval(int i, Ir.Rval rv) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            this.rv = rv;
+        }
+
+        @Override
+        public Stmt copy(Copier c) {
+            return new PrintlnStmt(c.rval(rv));
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -374,6 +643,16 @@ public class Ir {
             return defs.get(0);
         }
 
+        @Override
+        public int numDefs() {
+            return defs.size();
+        }
+
+        @Override
+        public Ir.Var getDef(int i) {
+            return defs.get(i);
+        }
+
         @Override
         public List<Ir.Var> getDefs() {
             return Collections.unmodifiableList(defs);
@@ -389,6 +668,42 @@ public class Ir {
             return Arrays.asList(a, b);
         }
 
+        @Override
+        public int numRvals() {
+            return 2;
+        }
+
+        @Override
+        public Ir.Rval getRval(int i) {
+            switch (i) {
+            case 0:
+                return a;
+            case 1:
+                return b;
+            default:
+                throw new IndexOutOfBoundsException();
+            }
+        }
+
+        @Override
+        public void setRval(int i, Ir.Rval rv) {
+            switch (i) {
+            case 0:
+                a = rv;
+                break;
+            case 1:
+                b = rv;
+                break;
+            default:
+                throw new IndexOutOfBoundsException();
+            }
+        }
+
+        @Override
+        public Stmt copy(Copier c) {
+            return new BinaryStmt(c.var(getDst()), op, c.rval(a), c.rval(b));
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -416,6 +731,16 @@ public class Ir {
             return defs.get(0);
         }
 
+        @Override
+        public int numDefs() {
+            return defs.size();
+        }
+
+        @Override
+        public Ir.Var getDef(int i) {
+            return defs.get(i);
+        }
+
         @Override
         public List<Ir.Var> getDefs() {
             return Collections.unmodifiableList(defs);
@@ -431,6 +756,30 @@ public class Ir {
             return Arrays.asList(a);
         }
 
+        @Override
+        public int numRvals() {
+            return 1;
+        }
+
+        @Override
+        public Ir.Rval getRval(int i) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            return a;
+        }
+
+        @Override
+        public void setRval(int i, Ir.Rval rv) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            a = rv;
+        }
+
+        @Override
+        public Stmt copy(Copier c) {
+            return new UnaryStmt(c.var(getDst()), op, c.rval(a));
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -457,6 +806,16 @@ public class Ir {
             return defs.get(0);
         }
 
+        @Override
+        public int numDefs() {
+            return defs.size();
+        }
+
+        @Override
+        public Ir.Var getDef(int i) {
+            return defs.get(i);
+        }
+
         @Override
         public List<Ir.Var> getDefs() {
             return Collections.unmodifiableList(defs);
@@ -472,6 +831,30 @@ public class Ir {
             return Arrays.asList(target);
         }
 
+        @Override
+        public int numRvals() {
+            return 1;
+        }
+
+        @Override
+        public Ir.Rval getRval(int i) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            return target;
+        }
+
+        @Override
+        public void setRval(int i, Ir.Rval rv) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            target = rv;
+        }
+
+        @Override
+        public Stmt copy(Copier c) {
+            return new FieldAccessStmt(c.var(getDst()), c.rval(target), field);
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -498,10 +881,45 @@ public class Ir {
         }
 
         @Override
-        public ArrayList<Ir.Var> getUses() {
-            ArrayList<Ir.Var> out = super.getUses();
-            out.add(dst);
-            return out;
+        public int numRvals() {
+            return 1;
+        }
+
+        @Override
+        public Ir.Rval getRval(int i) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            return src;
+        }
+
+        @Override
+        public void setRval(int i, Ir.Rval rv) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            src = rv;
+        }
+
+        @Override
+        public int numUses() {
+            return 2;
+        }
+
+        @Override
+        public Ir.Var getUse(int i) {
+            return i == 1 ? dst : super.getUse(i);
+        }
+
+        @Override
+        public void setUse(int i, Ir.Var v) {
+            if (i == 1)
+                dst = v;
+            else
+                super.setUse(i, v);
+        }
+
+        @Override
+        public Stmt copy(Copier c) {
+            return new FieldAssignStmt(c.var(dst), field, c.rval(src));
         }
 
         @Override
@@ -526,6 +944,16 @@ public class Ir {
             return defs.get(0);
         }
 
+        @Override
+        public int numDefs() {
+            return defs.size();
+        }
+
+        @Override
+        public Ir.Var getDef(int i) {
+            return defs.get(i);
+        }
+
         @Override
         public List<Ir.Var> getDefs() {
             return Collections.unmodifiableList(defs);
@@ -541,6 +969,30 @@ public class Ir {
             return Arrays.asList(src);
         }
 
+        @Override
+        public int numRvals() {
+            return 1;
+        }
+
+        @Override
+        public Ir.Rval getRval(int i) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            return src;
+        }
+
+        @Override
+        public void setRval(int i, Ir.Rval rv) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            src = rv;
+        }
+
+        @Override
+        public Stmt copy(Copier c) {
+            return new AssignStmt(c.var(getDst()), c.rval(src));
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -561,6 +1013,30 @@ public class Ir {
             return rv == null ? Collections.emptyList() : Arrays.asList(rv);
         }
 
+        @Override
+        public int numRvals() {
+            return rv == null ? 0 : 1;
+        }
+
+        @Override
+        public Ir.Rval getRval(int i) {
+            if (i != 0 || rv == null)
+                throw new IndexOutOfBoundsException();
+            return rv;
+        }
+
+        @Override
+        public void setRval(int i, Ir.Rval rv) {
+            if (i != 0 || this.rv == null)
+                throw new IndexOutOfBoundsException();
+            this.rv = rv;
+        }
+
+        @Override
+        public Stmt copy(Copier c) {
+            return new ReturnStmt(c.rval(rv));
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -590,6 +1066,16 @@ public class Ir {
             setDef(0, v);
         }
 
+        @Override
+        public int numDefs() {
+            return defs.size();
+        }
+
+        @Override
+        public Ir.Var getDef(int i) {
+            return defs.get(i);
+        }
+
         @Override
         public List<Var> getDefs() {
             return Collections.unmodifiableList(defs);
@@ -604,6 +1090,21 @@ public class Ir {
         public List<Rval> getRvals() {
             return args;
         }
+
+        @Override
+        public int numRvals() {
+            return args.size();
+        }
+
+        @Override
+        public Ir.Rval getRval(int i) {
+            return args.get(i);
+        }
+
+        @Override
+        public void setRval(int i, Ir.Rval rv) {
+            args.set(i, rv);
+        }
     }
     public static class MethCallStmt extends CallStmt {
         public Meth meth;
@@ -614,6 +1115,11 @@ public class Ir {
             this.args = args;
         }
 
+        @Override
+        public Stmt copy(Copier c) {
+            return new MethCallStmt(c.var(getDst()), meth, c.rvals(args));
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -641,6 +1147,11 @@ public class Ir {
             this.args = args;
         }
 
+        @Override
+        public Stmt copy(Copier c) {
+            return new ExternCallStmt(c.var(getDst()), target, c.rvals(args));
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -664,6 +1175,16 @@ public class Ir {
         public ArrayList<Ir.Var> srcs = new ArrayList<>();
         public int numArgs; // First numArgs defs are assigned registers r0-r3
 
+        @Override
+        public int numDefs() {
+            return defs.size();
+        }
+
+        @Override
+        public Ir.Var getDef(int i) {
+            return defs.get(i);
+        }
+
         @Override
         public List<Ir.Var> getDefs() {
             return Collections.unmodifiableList(defs);
@@ -675,8 +1196,18 @@ public class Ir {
         }
 
         @Override
-        public ArrayList<Ir.Var> getUses() {
-            return new ArrayList<>(srcs);
+        public int numUses() {
+            return srcs.size();
+        }
+
+        @Override
+        public Ir.Var getUse(int i) {
+            return srcs.get(i);
+        }
+
+        @Override
+        public void setUse(int i, Ir.Var v) {
+            srcs.set(i, v);
         }
 
         @Override
@@ -684,6 +1215,15 @@ public class Ir {
             return Collections.emptyList();
         }
 
+        @Override
+        public Stmt copy(Copier c) {
+            CallPrepStmt copy = new CallPrepStmt();
+            copy.defs = c.vars(defs);
+            copy.srcs = c.vars(srcs);
+            copy.numArgs = numArgs;
+            return copy;
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -718,6 +1258,16 @@ public class Ir {
             return defs.get(0);
         }
 
+        @Override
+        public int numDefs() {
+            return defs.size();
+        }
+
+        @Override
+        public Ir.Var getDef(int i) {
+            return defs.get(i);
+        }
+
         @Override
         public List<Ir.Var> getDefs() {
             return Collections.unmodifiableList(defs);
@@ -733,6 +1283,11 @@ public class Ir {
             return Collections.emptyList();
         }
 
+        @Override
+        public Stmt copy(Copier c) {
+            return new NewStmt(c.var(getDst()), data);
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -760,6 +1315,16 @@ public class Ir {
             return defs.get(0);
         }
 
+        @Override
+        public int numDefs() {
+            return defs.size();
+        }
+
+        @Override
+        public Ir.Var getDef(int i) {
+            return defs.get(i);
+        }
+
         @Override
         public List<Var> getDefs() {
             return Collections.unmodifiableList(defs);
@@ -775,6 +1340,15 @@ public class Ir {
             return Collections.emptyList();
         }
 
+        @Override
+        public Stmt copy(Copier c) {
+            PhiStmt copy = new PhiStmt(c.var(getDst()), 0);
+            copy.originalVar = c.var(originalVar);
+            copy.args = c.vars(args);
+            copy.memory = memory;
+            return copy;
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -801,10 +1375,22 @@ public class Ir {
         }
 
         @Override
-        public ArrayList<Ir.Var> getUses() {
-            ArrayList<Ir.Var> out = new ArrayList<>();
-            out.add(v);
-            return out;
+        public int numUses() {
+            return 1;
+        }
+
+        @Override
+        public Ir.Var getUse(int i) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            return v;
+        }
+
+        @Override
+        public void setUse(int i, Ir.Var v) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            this.v = v;
         }
 
         @Override
@@ -812,6 +1398,11 @@ public class Ir {
             return Collections.emptyList();
         }
 
+        @Override
+        public Stmt copy(Copier c) {
+            return new SpillStmt(c.var(v));
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -831,6 +1422,16 @@ public class Ir {
             return defs.get(0);
         }
 
+        @Override
+        public int numDefs() {
+            return defs.size();
+        }
+
+        @Override
+        public Ir.Var getDef(int i) {
+            return defs.get(i);
+        }
+
         @Override
         public List<Ir.Var> getDefs() {
             return Collections.unmodifiableList(defs);
@@ -846,6 +1447,11 @@ public class Ir {
             return Collections.emptyList();
         }
 
+        @Override
+        public Stmt copy(Copier c) {
+            return new ReloadStmt(c.var(getDst()));
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -864,10 +1470,22 @@ public class Ir {
         }
 
         @Override
-        public ArrayList<Ir.Var> getUses() {
-            ArrayList<Ir.Var> out = new ArrayList<>();
-            out.add(v);
-            return out;
+        public int numUses() {
+            return 1;
+        }
+
+        @Override
+        public Ir.Var getUse(int i) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            return v;
+        }
+
+        @Override
+        public void setUse(int i, Ir.Var v) {
+            if (i != 0)
+                throw new IndexOutOfBoundsException();
+            this.v = v;
         }
 
         @Override
@@ -875,6 +1493,11 @@ public class Ir {
             return Collections.emptyList();
         }
 
+        @Override
+        public Stmt copy(Copier c) {
+            return new StackArgStmt(c.var(v), idx);
+        }
+
         @Override
         public String render(int indent) {
             StringBuilder sb = new StringBuilder();
@@ -39,6 +39,14 @@ public class IrGen {
     }
 
     public static Ir.Prog run(Ast.Prog prog) {
+        return run(prog, null);
+    }
+
+    /**
+     * Generates the IR of only the given methods (or of all methods if meths is null).
+     * The datas of all classes are always generated.
+     */
+    public static Ir.Prog run(Ast.Prog prog, Set<Ast.Meth> meths) {
         IrGen pass = new IrGen();
 
         // Create data
@@ -52,7 +60,24 @@ public class IrGen {
             pass.dataMap.put(clazz.cname, irData);
         }
 
-        // Fill in stub methods, while generating unique names for them
+        // Fill in stub methods
+        for (Map.Entry<Ast.Meth, String> entry : getMethNames(prog).entrySet()) {
+            Ast.Meth meth = entry.getKey();
+            pass.methMap.put(meth, new Ir.Meth(meth.retTyp, entry.getValue()));
+        }
+
+        for (Ast.Clazz clazz : prog.clazzes) {
+            pass.doClazz(clazz, meths);
+        }
+
+        return new Ir.Prog(pass.datas, pass.meths);
+    }
+
+    /**
+     * Returns the unique IR name of each method.
+     */
+    public static IdentityHashMap<Ast.Meth, String> getMethNames(Ast.Prog prog) {
+        IdentityHashMap<Ast.Meth, String> methNames = new IdentityHashMap<>();
         for (Ast.Clazz clazz : prog.clazzes) {
             HashMap<String, Integer> seenNames = new HashMap<>();
             for (Ast.Meth meth : clazz.meths) {
@@ -72,18 +97,13 @@ public class IrGen {
                     name = "%" + clazz.cname + "_" + meth.name;
                 }
 
-                pass.methMap.put(meth, new Ir.Meth(meth.retTyp, name));
+                methNames.put(meth, name);
             }
         }
-
-        for (Ast.Clazz clazz : prog.clazzes) {
-            pass.doClazz(clazz);
-        }
-
-        return new Ir.Prog(pass.datas, pass.meths);
+        return methNames;
     }
 
-    private void doClazz(Ast.Clazz clazz) {
+    private void doClazz(Ast.Clazz clazz, Set<Ast.Meth> methsToGen) {
         // Fill in fields for ident translation
         varDeclToField = new IdentityHashMap<>();
         for (Ast.VarDecl varDecl : clazz.varDecls) {
@@ -92,6 +112,9 @@ public class IrGen {
 
         // Process methods
         for (Ast.Meth meth : clazz.meths) {
+            if (methsToGen != null && !methsToGen.contains(meth))
+                continue;
+
             Ir.Meth irMeth = methMap.get(meth);
             meths.add(irMeth);
 
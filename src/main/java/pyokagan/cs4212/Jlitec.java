@@ -0,0 +1,208 @@
+package pyokagan.cs4212;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Command-line (headless) compiler.
+ *
+ * Usage: jlitec [-O0|-O1|-O2] [-j N] [-o out.s] [--metrics out.json|out.csv] [--cache-dir DIR] [--stream] in.j...
+ *
+ * --metrics writes the time, allocations and code size of each pass on each method, as JSON if the file name ends with
+ * .json and as CSV otherwise.
+ *
+ * --cache-dir stores the code of each method in DIR, and reuses it in later runs for methods that did not change
+ * (see {@link DiskCache}).
+ *
+ * --stream writes the code of each method as soon as it is generated, which needs much less memory for large programs
+ * (see {@link Compiler#compile(Ir.Prog, Appendable)}).
+ *
+ * Given several input files, compiles them concurrently with {@link BatchCompiler}, writing each in.j to in.s.
+ * -o and --metrics are not supported then.
+ */
+public class Jlitec {
+    private static final String USAGE = "usage: jlitec [-O0|-O1|-O2] [-j N] [-o out.s] [--metrics out.json|out.csv] "
+            + "[--cache-dir DIR] [--stream] in.j...";
+
+    public static void main(String[] args) throws Exception {
+        ArrayList<String> inputFiles = new ArrayList<>();
+        String outputFile = null;
+        String metricsFile = null;
+        String cacheDir = null;
+        boolean stream = false;
+        int optLevel = 0;
+        int jobs = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-o") && i + 1 < args.length) {
+                outputFile = args[++i];
+            } else if (arg.equals("--metrics") && i + 1 < args.length) {
+                metricsFile = args[++i];
+            } else if (arg.equals("--cache-dir") && i + 1 < args.length) {
+                cacheDir = args[++i];
+            } else if (arg.equals("--stream")) {
+                stream = true;
+            } else if (arg.equals("-j") && i + 1 < args.length) {
+                jobs = parseJobs(args[++i]);
+            } else if (arg.startsWith("-j") && arg.length() > 2) {
+                jobs = parseJobs(arg.substring(2));
+            } else if (arg.equals("-O")) {
+                optLevel = 1;
+            } else if (arg.equals("-O0") || arg.equals("-O1") || arg.equals("-O2")) {
+                optLevel = arg.charAt(2) - '0';
+            } else if (arg.startsWith("-")) {
+                usage();
+            } else {
+                inputFiles.add(arg);
+            }
+        }
+        if (inputFiles.isEmpty() || (inputFiles.size() > 1 && (outputFile != null || metricsFile != null)))
+            usage();
+
+        DiskCache diskCache = null;
+        if (cacheDir != null) {
+            try {
+                diskCache = new DiskCache(Paths.get(cacheDir));
+            } catch (IOException e) {
+                System.err.println("error: cannot use cache directory " + cacheDir + ": " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+        }
+
+        if (inputFiles.size() > 1) {
+            System.exit(compileAll(inputFiles, optLevel, jobs, diskCache));
+            return;
+        }
+        String inputFile = inputFiles.get(0);
+
+        Metrics metrics = metricsFile != null ? new Metrics() : Metrics.DISABLED;
+        Ast.Prog prog;
+        Metrics.Timer timer = metrics.start("Parser", null);
+        try (Reader reader = new BufferedReader(new FileReader(inputFile))) {
+            prog = Parser.parse(reader);
+        } catch (FileNotFoundException e) {
+            System.err.println("error: " + e.getMessage());
+            System.exit(1);
+            return;
+        } catch (Exception e) {
+            System.err.println("error:" + inputFile + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        timer.stop();
+        timer = metrics.start("StaticCheck", null);
+        try {
+            StaticCheck.run(prog);
+        } catch (StaticCheck.SemErrors e) {
+            for (StaticCheck.SemError err : e.getErrors()) {
+                System.err.println("error:" + err.location + ": " + err.getMessage());
+            }
+            System.exit(1);
+        }
+
+        timer.stop();
+        timer = metrics.start("IrGen", null);
+        Ir.Prog irProg = IrGen.run(prog);
+        timer.stop();
+        prog = null; // Not needed anymore, let it be freed while streaming
+
+        Compiler compiler = new Compiler(optLevel, jobs, metrics, null, diskCache);
+        if (outputFile == null || outputFile.equals("-")) {
+            write(compiler, irProg, stream, Channels.newChannel(System.out));
+            System.out.flush();
+        } else {
+            try (FileChannel channel = FileChannel.open(Paths.get(outputFile), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                write(compiler, irProg, stream, channel);
+            }
+        }
+
+        if (metricsFile != null) {
+            try (Writer writer = new BufferedWriter(new FileWriter(metricsFile))) {
+                if (metricsFile.endsWith(".json"))
+                    metrics.writeJson(writer);
+                else
+                    metrics.writeCsv(writer);
+            }
+        }
+    }
+
+    private static void write(Compiler compiler, Ir.Prog irProg, boolean stream, WritableByteChannel channel)
+            throws IOException {
+        if (stream) {
+            Writer writer = Arm.newWriter(channel);
+            compiler.compile(irProg, writer);
+            writer.flush();
+        } else {
+            compiler.compile(irProg).writeTo(channel);
+        }
+    }
+
+    /**
+     * Compiles each in.j to in.s, and returns the exit status.
+     */
+    private static int compileAll(List<String> inputFiles, int optLevel, int jobs, DiskCache diskCache)
+            throws IOException {
+        ArrayList<String> readFiles = new ArrayList<>();
+        ArrayList<String> sources = new ArrayList<>();
+        int status = 0;
+        for (String inputFile : inputFiles) {
+            try {
+                sources.add(new String(Files.readAllBytes(Paths.get(inputFile)), StandardCharsets.UTF_8));
+                readFiles.add(inputFile);
+            } catch (IOException e) {
+                System.err.println("error: cannot read " + inputFile + ": " + e.getMessage());
+                status = 1;
+            }
+        }
+
+        List<BatchCompiler.Result> results = new BatchCompiler(optLevel, jobs, diskCache).compile(sources);
+        for (int i = 0; i < results.size(); i++) {
+            String inputFile = readFiles.get(i);
+            BatchCompiler.Result result = results.get(i);
+            if (result.prog != null) {
+                String outputFile = (inputFile.endsWith(".j") ? inputFile.substring(0, inputFile.length() - 2)
+                        : inputFile) + ".s";
+                try (FileChannel channel = FileChannel.open(Paths.get(outputFile), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    result.prog.writeTo(channel);
+                }
+            } else if (result.error instanceof StaticCheck.SemErrors) {
+                for (StaticCheck.SemError err : ((StaticCheck.SemErrors) result.error).getErrors())
+                    System.err.println("error:" + inputFile + ":" + err.location + ": " + err.getMessage());
+                status = 1;
+            } else if (result.error instanceof Exception) {
+                System.err.println("error:" + inputFile + ": " + result.error.getMessage());
+                status = 1;
+            } else {
+                System.err.println("internal error:" + inputFile + ":");
+                result.error.printStackTrace();
+                status = 1;
+            }
+        }
+        return status;
+    }
+
+    private static int parseJobs(String s) {
+        try {
+            int jobs = Integer.parseInt(s);
+            if (jobs >= 1)
+                return jobs;
+        } catch (NumberFormatException e) {
+            // Fallthrough
+        }
+        System.err.println("error: invalid number of jobs: " + s);
+        System.exit(2);
+        return 1;
+    }
+
+    private static void usage() {
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
@@ -0,0 +1,143 @@
+package pyokagan.cs4212;
+
+import java.util.*;
+
+/**
+ * Loop-invariant code motion.
+ *
+ * Moves the AssignStmts, BinaryStmts and UnaryStmts of a loop whose operands are all defined outside of it into its
+ * preheader, so that they are computed once rather than on every iteration. These have no side effects, so they can
+ * be moved even if the loop body never runs, except for divisions which are only moved if the divisor is a non-zero
+ * literal. Inner loops are done first, so code can move out of several loops at once.
+ *
+ * Int literals that do not fit in an operand2 are loaded into a register by every BinaryStmt and CmpStmt that uses
+ * them (see IrLowerPass). Those in loops are loaded once in the preheader instead.
+ *
+ * Vars that are phi dsts or phi args are never moved, as that would make them live at the same time as the other vars
+ * in their phi webs.
+ *
+ * Must be run on SSA form, after PreheaderPass. Does not change the CFG.
+ */
+public class LicmPass {
+    private final Ir.Meth meth;
+    private final HashSet<Ir.Var> phiVars = new HashSet<>();
+    // Var -> block containing its def
+    private final HashMap<Ir.Var, Ir.Block> defBlocks = new HashMap<>();
+    private int tmpCounter;
+    private boolean modified;
+
+    private LicmPass(Ir.Meth meth) {
+        this.meth = meth;
+    }
+
+    /**
+     * Returns false if the method was not modified.
+     */
+    public static boolean run(Ir.Meth meth, LoopPass loopPass) {
+        LicmPass p = new LicmPass(meth);
+        p.findDefs();
+        List<LoopPass.Loop> loops = loopPass.getLoops();
+        for (int i = loops.size() - 1; i >= 0; i--) {
+            LoopPass.Loop loop = loops.get(i);
+            if (loop.preheader == null)
+                throw new AssertionError("BUG: " + loop + " has no preheader. Was PreheaderPass run?");
+            p.hoist(loop);
+            p.hoistLiterals(loop);
+        }
+        return p.modified;
+    }
+
+    private void findDefs() {
+        for (Ir.Block block : meth.blocks) {
+            for (Ir.Stmt stmt : block.stmts) {
+                for (int i = 0; i < stmt.numDefs(); i++) {
+                    if (stmt.getDef(i) != null)
+                        defBlocks.put(stmt.getDef(i), block);
+                }
+                if (stmt instanceof Ir.PhiStmt) {
+                    Ir.PhiStmt phiStmt = (Ir.PhiStmt) stmt;
+                    phiVars.add(phiStmt.getDst());
+                    for (Ir.Var v : phiStmt.args) {
+                        if (v != null)
+                            phiVars.add(v);
+                    }
+                }
+            }
+        }
+    }
+
+    private void hoist(LoopPass.Loop loop) {
+        // Defs come before their uses in reverse postorder, except through phis
+        for (Ir.Block block : loop.blocks) {
+            for (int i = 0; i < block.stmts.size(); i++) {
+                Ir.Stmt stmt = block.stmts.get(i);
+                if (!canHoist(stmt, loop))
+                    continue;
+                block.stmts.remove(i--);
+                addToPreheader(loop, stmt);
+                defBlocks.put(stmt.getDef(0), loop.preheader);
+                modified = true;
+            }
+        }
+    }
+
+    private boolean canHoist(Ir.Stmt stmt, LoopPass.Loop loop) {
+        if (!(stmt instanceof Ir.AssignStmt || stmt instanceof Ir.BinaryStmt || stmt instanceof Ir.UnaryStmt))
+            return false;
+        if (phiVars.contains(stmt.getDef(0)))
+            return false;
+        if (stmt instanceof Ir.BinaryStmt && ((Ir.BinaryStmt) stmt).op == Ir.BinaryOp.DIV) {
+            Ir.Rval b = ((Ir.BinaryStmt) stmt).b;
+            if (!ArmGen.isConstant(b) || ArmGen.toIntConstant(b) == 0)
+                return false;
+        }
+        for (int i = 0; i < stmt.numRvals(); i++) {
+            Ir.Rval rv = stmt.getRval(i);
+            if (rv instanceof Ir.VarRval && loop.contains(defBlocks.get(((Ir.VarRval) rv).v)))
+                return false;
+        }
+        return true;
+    }
+
+    private void hoistLiterals(LoopPass.Loop loop) {
+        HashMap<Integer, Ir.Var> literalVars = new HashMap<>();
+        for (Ir.Block block : loop.blocks) {
+            for (Ir.Stmt stmt : block.stmts) {
+                if (!(stmt instanceof Ir.BinaryStmt || stmt instanceof Ir.CmpStmt))
+                    continue;
+                if (ArmGen.isConstant(stmt.getRval(0)) && ArmGen.isConstant(stmt.getRval(1)))
+                    continue; // Resolved at ArmGen time
+                if (stmt instanceof Ir.BinaryStmt && ((Ir.BinaryStmt) stmt).op == Ir.BinaryOp.DIV)
+                    continue; // Becomes a call, whose args are handled by RegTargetPass
+                for (int i = 0; i < stmt.numRvals(); i++) {
+                    Ir.Rval rv = stmt.getRval(i);
+                    if (!(rv instanceof Ir.IntLitRval) || ArmGen.isValidOperand2Const(rv))
+                        continue;
+                    int value = ((Ir.IntLitRval) rv).i;
+                    Ir.Var v = literalVars.get(value);
+                    if (v == null) {
+                        v = genTemp(rv.getTyp());
+                        addToPreheader(loop, new Ir.AssignStmt(v, rv));
+                        defBlocks.put(v, loop.preheader);
+                        literalVars.put(value, v);
+                    }
+                    stmt.setRval(i, new Ir.VarRval(v));
+                    modified = true;
+                }
+            }
+        }
+    }
+
+    private static void addToPreheader(LoopPass.Loop loop, Ir.Stmt stmt) {
+        List<Ir.Stmt> stmts = loop.preheader.stmts;
+        stmts.add(stmts.size() - 1, stmt);
+    }
+
+    private Ir.Var genTemp(Ast.Typ typ) {
+        String name = "%licm" + tmpCounter;
+        tmpCounter++;
+        Ir.Var v = new Ir.Var(typ, name);
+        meth.locals.add(v);
+        return v;
+    }
+}
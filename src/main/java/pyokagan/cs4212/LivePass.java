@@ -4,94 +4,156 @@ import java.util.*;
 
 /**
  * Global liveness analysis.
+ *
+ * Vars and blocks are numbered densely, and each live set is stored as a bit vector (one bit per var),
+ * so that the fixpoint iteration can update the sets in place with word-wide operations.
  */
 public class LivePass {
     private final Ir.Meth meth;
-    private HashMap<Ir.Block, HashSet<Ir.Var>> liveIns = new HashMap<>();
-    private HashMap<Ir.Block, HashSet<Ir.Var>> liveOuts = new HashMap<>();
-    private HashMap<Ir.Block, HashSet<Ir.Var>> blockUses = new HashMap<>();
-    private HashMap<Ir.Block, HashSet<Ir.Var>> blockDefs = new HashMap<>();
-    private HashMap<Ir.Block, HashMap<Ir.Var, Ir.Stmt>> lastUses = new HashMap<>();
+    private final HashMap<Ir.Var, Integer> varIndices = new HashMap<>();
+    private final ArrayList<Ir.Var> vars = new ArrayList<>();
+    private final HashMap<Ir.Block, Integer> blockIndices = new HashMap<>();
+    private final long[][] liveIns;
+    private final long[][] liveOuts;
+    private final long[][] blockUses;
+    private final long[][] blockDefs;
+    private final ArrayList<HashMap<Ir.Var, Ir.Stmt>> lastUses = new ArrayList<>();
 
     public LivePass(Ir.Meth meth) {
         this.meth = meth;
 
+        // Number vars and blocks
+        for (Ir.Var v : meth.args)
+            addVar(v);
         for (Ir.Block block : meth.blocks) {
-            liveIns.put(block, new HashSet<>());
-            liveOuts.put(block, new HashSet<>());
+            blockIndices.put(block, blockIndices.size());
+            for (Ir.Stmt stmt : block.stmts) {
+                for (int i = 0; i < stmt.numDefs(); i++)
+                    addVar(stmt.getDef(i));
+                for (int i = 0; i < stmt.numUses(); i++) {
+                    Ir.Var v = stmt.getUse(i);
+                    if (v != null)
+                        addVar(v);
+                }
+                if (stmt instanceof Ir.PhiStmt) {
+                    for (Ir.Var v : ((Ir.PhiStmt) stmt).args) {
+                        if (v != null)
+                            addVar(v);
+                    }
+                }
+            }
         }
 
+        int numBlocks = meth.blocks.size();
+        int numWords = (vars.size() + 63) >>> 6;
+        liveIns = new long[numBlocks][numWords];
+        liveOuts = new long[numBlocks][numWords];
+        blockUses = new long[numBlocks][numWords];
+        blockDefs = new long[numBlocks][numWords];
+
         // Compute blockUses and blockDefs
-        for (Ir.Block block : meth.blocks) {
-            HashSet<Ir.Var> blockUses = new HashSet<>();
-            HashSet<Ir.Var> blockDefs = new HashSet<>();
+        for (int b = 0; b < numBlocks; b++) {
+            Ir.Block block = meth.blocks.get(b);
+            long[] uses = blockUses[b];
+            long[] defs = blockDefs[b];
             HashMap<Ir.Var, Ir.Stmt> blockLastUses = new HashMap<>();
 
             for (int i = block.stmts.size() - 1; i >= 0; i--) {
                 Ir.Stmt stmt = block.stmts.get(i);
 
-                for (Ir.Var v : stmt.getDefs())
-                    blockUses.remove(v);
-
-                // Compute stmt uses
-                HashSet<Ir.Var> uses = new HashSet<>(stmt.getUses());
-                if (stmt instanceof Ir.JumpStmt)
-                    uses.addAll(getJumpUses(block));
+                for (int j = 0; j < stmt.numDefs(); j++) {
+                    int idx = varIndices.get(stmt.getDef(j));
+                    clearBit(uses, idx);
+                    setBit(defs, idx);
+                }
 
-                for (Ir.Var v : uses) {
-                    if (!blockLastUses.containsKey(v))
-                        blockLastUses.put(v, stmt);
+                for (int j = 0; j < stmt.numUses(); j++) {
+                    Ir.Var v = stmt.getUse(j);
+                    if (v == null)
+                        continue;
+                    setBit(uses, varIndices.get(v));
+                    blockLastUses.putIfAbsent(v, stmt);
+                }
+                if (stmt instanceof Ir.JumpStmt) {
+                    for (Ir.Var v : getJumpUses(block)) {
+                        setBit(uses, varIndices.get(v));
+                        blockLastUses.putIfAbsent(v, stmt);
+                    }
                 }
-                blockUses.addAll(uses);
-                blockDefs.addAll(stmt.getDefs());
             }
 
-            this.blockUses.put(block, blockUses);
-            this.blockDefs.put(block, blockDefs);
-            this.lastUses.put(block, blockLastUses);
+            lastUses.add(blockLastUses);
+
+            // The phi nodes of successors use their args at the end of this block
+            for (Ir.Var v : getJumpUses(block))
+                setBit(liveOuts[b], varIndices.get(v));
         }
 
-        // Iteration
-        boolean hasChange = true;
-        while (hasChange) {
-            hasChange = false;
+        new DataflowSolver<>(meth, new DataflowSolver.Problem<long[]>() {
+            @Override
+            public boolean isBackward() {
+                return true;
+            }
+
+            @Override
+            public long[] initMerge(Ir.Block block) {
+                return liveOuts[blockIndices.get(block)];
+            }
 
-            for (Ir.Block block : meth.blocksPo) {
-                HashSet<Ir.Var> liveOut = liveOuts.get(block);
-                HashSet<Ir.Var> liveIn = liveIns.get(block);
+            @Override
+            public long[] initResult(Ir.Block block) {
+                return liveIns[blockIndices.get(block)];
+            }
 
+            @Override
+            public void meet(Ir.Block block, long[] liveOut, long[] succIn) {
                 // OUT[block] = union of IN[succ] + their PHI nodes
-                for (Ir.Block succ : block.getOutgoing())
-                    liveOut.addAll(liveIns.get(succ));
-                liveOut.addAll(getJumpUses(block));
+                for (int w = 0; w < numWords; w++)
+                    liveOut[w] |= succIn[w];
+            }
 
+            @Override
+            public boolean transfer(Ir.Block block, long[] liveOut, long[] liveIn) {
                 // IN[block] = f(OUT[block])
-                HashSet<Ir.Var> newLiveIn = new HashSet<>();
-                newLiveIn.addAll(liveOut);
-                newLiveIn.removeAll(blockDefs.get(block));
-                newLiveIn.addAll(blockUses.get(block));
-                if (!hasChange && !newLiveIn.equals(liveIn))
-                    hasChange = true;
-                liveIns.put(block, newLiveIn);
+                int b = blockIndices.get(block);
+                long[] uses = blockUses[b];
+                long[] defs = blockDefs[b];
+                boolean changed = false;
+                for (int w = 0; w < numWords; w++) {
+                    long newWord = uses[w] | (liveOut[w] & ~defs[w]);
+                    if (newWord != liveIn[w]) {
+                        liveIn[w] = newWord;
+                        changed = true;
+                    }
+                }
+                return changed;
             }
-        }
+        });
     }
 
     public Set<Ir.Var> getLiveIn(Ir.Block block) {
-        return liveIns.get(block);
+        return new VarSet(liveIns[blockIndices.get(block)]);
     }
 
     public Set<Ir.Var> getLiveOut(Ir.Block block) {
-        return liveOuts.get(block);
+        return new VarSet(liveOuts[blockIndices.get(block)]);
     }
 
     public Ir.Stmt getLastUse(Ir.Block block, Ir.Var v) {
-        return lastUses.get(block).get(v);
+        return lastUses.get(blockIndices.get(block)).get(v);
     }
 
     @Override
     public String toString() {
-        return "LivePass(IN=" + liveIns + ", OUT=" + liveOuts + ")";
+        StringBuilder sb = new StringBuilder();
+        sb.append("LivePass(");
+        for (Ir.Block block : meth.blocks) {
+            int b = blockIndices.get(block);
+            sb.append(block).append(": IN=").append(new VarSet(liveIns[b]))
+                .append(", OUT=").append(new VarSet(liveOuts[b])).append("; ");
+        }
+        sb.append(")");
+        return sb.toString();
     }
 
     /**
@@ -111,4 +173,68 @@ public class LivePass {
         }
         return uses;
     }
+
+    private void addVar(Ir.Var v) {
+        if (!varIndices.containsKey(v)) {
+            varIndices.put(v, vars.size());
+            vars.add(v);
+        }
+    }
+
+    private static void setBit(long[] words, int idx) {
+        words[idx >>> 6] |= 1L << idx;
+    }
+
+    private static void clearBit(long[] words, int idx) {
+        words[idx >>> 6] &= ~(1L << idx);
+    }
+
+    /**
+     * Read-only view of a bit vector as a set of vars.
+     */
+    private class VarSet extends AbstractSet<Ir.Var> {
+        private final long[] words;
+
+        private VarSet(long[] words) {
+            this.words = words;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            Integer idx = varIndices.get(o);
+            return idx != null && (words[idx >>> 6] & (1L << idx)) != 0;
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (long word : words)
+                size += Long.bitCount(word);
+            return size;
+        }
+
+        @Override
+        public Iterator<Ir.Var> iterator() {
+            return new Iterator<Ir.Var>() {
+                private int w = 0;
+                private long word = words.length > 0 ? words[0] : 0;
+
+                @Override
+                public boolean hasNext() {
+                    while (word == 0 && w + 1 < words.length)
+                        word = words[++w];
+                    return word != 0;
+                }
+
+                @Override
+                public Ir.Var next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    int bit = Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    return vars.get((w << 6) + bit);
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,136 @@
+package pyokagan.cs4212;
+
+import java.util.*;
+
+/**
+ * Finds the natural loops of a method and how they nest.
+ *
+ * An edge from a latch to a header is a back edge if the header dominates the latch. The loop of a header is the
+ * header together with every block that can reach one of its latches without going through the header. As JLite only
+ * has structured control flow, every cycle in the CFG goes through such a header.
+ *
+ * Loops with different headers are either disjoint or nested, and form a forest. The depth of a block is the number of
+ * loops it is in.
+ */
+public class LoopPass {
+    public static class Loop {
+        public final Ir.Block header;
+        public final ArrayList<Ir.Block> latches = new ArrayList<>();
+        // Blocks in the loop (including those of nested loops), in reverse postorder
+        public final ArrayList<Ir.Block> blocks = new ArrayList<>();
+        public final Loop parent;
+        public final ArrayList<Loop> children = new ArrayList<>();
+        public final int depth; // 1 for loops that are not nested in another loop
+        // The only pred of the header from outside the loop, if it has no other successors. Otherwise null.
+        public Ir.Block preheader;
+
+        private final HashSet<Ir.Block> blockSet = new HashSet<>();
+
+        private Loop(Ir.Block header, Loop parent) {
+            this.header = header;
+            this.parent = parent;
+            this.depth = parent != null ? parent.depth + 1 : 1;
+        }
+
+        public boolean contains(Ir.Block block) {
+            return blockSet.contains(block);
+        }
+
+        @Override
+        public String toString() {
+            return "Loop(" + header.label.name + ", depth " + depth + ")";
+        }
+    }
+
+    // All loops, outer loops before the loops nested in them
+    private final ArrayList<Loop> loops = new ArrayList<>();
+    private final ArrayList<Loop> topLevelLoops = new ArrayList<>();
+    // Block -> innermost loop containing it
+    private final HashMap<Ir.Block, Loop> blockToLoop = new HashMap<>();
+
+    public LoopPass(Ir.Meth meth, DomPass domPass) {
+        // Headers dominate the blocks in their loops, so an enclosing loop is always found before the loops in it
+        for (Ir.Block header : domPass.getPreorder()) {
+            ArrayList<Ir.Block> latches = new ArrayList<>();
+            for (Ir.Block pred : header.incoming) {
+                if (domPass.isDominate(header, pred) && !latches.contains(pred))
+                    latches.add(pred);
+            }
+            if (latches.isEmpty())
+                continue;
+
+            Loop loop = new Loop(header, blockToLoop.get(header));
+            loop.latches.addAll(latches);
+            findBlocks(loop);
+            for (Ir.Block block : meth.blocksRpo) {
+                if (loop.contains(block)) {
+                    loop.blocks.add(block);
+                    blockToLoop.put(block, loop);
+                }
+            }
+            loop.preheader = findPreheader(loop);
+
+            loops.add(loop);
+            if (loop.parent != null)
+                loop.parent.children.add(loop);
+            else
+                topLevelLoops.add(loop);
+        }
+    }
+
+    private static void findBlocks(Loop loop) {
+        ArrayDeque<Ir.Block> worklist = new ArrayDeque<>();
+        loop.blockSet.add(loop.header);
+        for (Ir.Block latch : loop.latches) {
+            if (loop.blockSet.add(latch))
+                worklist.add(latch);
+        }
+        while (!worklist.isEmpty()) {
+            Ir.Block block = worklist.removeFirst();
+            for (Ir.Block pred : block.incoming) {
+                if (loop.blockSet.add(pred))
+                    worklist.add(pred);
+            }
+        }
+    }
+
+    private static Ir.Block findPreheader(Loop loop) {
+        Ir.Block preheader = null;
+        for (Ir.Block pred : loop.header.incoming) {
+            if (loop.contains(pred))
+                continue;
+            if (preheader != null && preheader != pred)
+                return null;
+            preheader = pred;
+        }
+        if (preheader == null || preheader.outgoingCond != null)
+            return null;
+        return preheader;
+    }
+
+    /**
+     * Returns all loops, with outer loops before the loops nested in them.
+     */
+    public List<Loop> getLoops() {
+        return Collections.unmodifiableList(loops);
+    }
+
+    public List<Loop> getTopLevelLoops() {
+        return Collections.unmodifiableList(topLevelLoops);
+    }
+
+    /**
+     * Returns the innermost loop containing block, or null if it is not in a loop.
+     */
+    public Loop getLoop(Ir.Block block) {
+        return blockToLoop.get(block);
+    }
+
+    /**
+     * Returns the number of loops containing block.
+     */
+    public int getDepth(Ir.Block block) {
+        Loop loop = blockToLoop.get(block);
+        return loop != null ? loop.depth : 0;
+    }
+}
@@ -5,6 +5,7 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.io.*;
+import java.util.*;
 import javax.swing.*;
 
 import org.fife.ui.rsyntaxtextarea.RSyntaxTextArea;
@@ -12,13 +13,13 @@ import org.fife.ui.rtextarea.RTextScrollPane;
 
 public class Main {
     // Examples
-    private static String EXAMPLE_HELLO_WORLD = "class Main {\n"
+    private static final String EXAMPLE_HELLO_WORLD = "class Main {\n"
             + "    Void main() {\n"
             + "        println(\"Hello World!\");\n"
             + "    }\n"
             + "}\n";
 
-    private static String EXAMPLE_LINKEDLIST = "// Linked list\n"
+    private static final String EXAMPLE_LINKEDLIST = "// Linked list\n"
         + "\n"
         + "class MainC {\n"
         + "    Void main() {\n"
@@ -66,7 +67,7 @@ public class Main {
         + "    }\n"
         + "}\n";
 
-    private static String EXAMPLE_FIZZBUZZ = "// FizzBuzz\n"
+    private static final String EXAMPLE_FIZZBUZZ = "// FizzBuzz\n"
                     + "\n"
                     + "class Main {\n"
                     + "    Void main() {\n"
@@ -248,8 +249,11 @@ public class Main {
     private final JPanel resultPanel;
     private final RSyntaxTextArea resultTextArea;
 
-    // Results
-    private String[] results = new String[] { "", "", "", "", "", "", "", "", "", "", "", "", "", "", "", "" };
+    // Results. Each pass only records a snapshot of the program, which is rendered when it is selected.
+    private Snapshot[] results = new Snapshot[NUM_RESULTS];
+    private final StringBuilder resultBuilder = new StringBuilder();
+    private Metrics metrics = new Metrics();
+    private final MethCache<CachedMeth> methCache = new MethCache<>();
     private static final int AST_RESULT = 0;
     private static final int IR_GEN_RESULT = 1;
     private static final int FLOW_PASS_RESULT = 2;
@@ -266,6 +270,35 @@ public class Main {
     private static final int ARM_FALLTHRU_OPT_RESULT = 13;
     private static final int ARM_LABEL_OPT_RESULT = 14;
     private static final int ARM_RUNTIME_RESULT = 15;
+    private static final int NUM_RESULTS = 16;
+
+    /**
+     * Deferred rendering of the result of a pass.
+     */
+    private interface Snapshot {
+        void render(StringBuilder sb);
+    }
+
+    /**
+     * Copies of each method after a per-method IR pass.
+     */
+    private static class MethsSnapshot implements Snapshot {
+        private final ArrayList<Ir.Meth> meths = new ArrayList<>();
+
+        @Override
+        public void render(StringBuilder sb) {
+            for (Ir.Meth meth : meths)
+                meth.render(sb, 0);
+        }
+    }
+
+    /**
+     * The results of compiling a single method, which are reused until the method (or what it depends on) changes.
+     */
+    private static class CachedMeth {
+        private final Ir.Meth[] snapshots = new Ir.Meth[COLOR_PASS_RESULT + 1];
+        private ArmGen.Fragment fragment;
+    }
 
     private Main() {
         frame = new JFrame("JLite Compiler");
@@ -289,7 +322,7 @@ public class Main {
                 return;
             }
             int idx = list.getSelectedIndex();
-            resultTextArea.setText(results[idx]);
+            resultTextArea.setText(renderResult(idx));
         });
         JScrollPane listScroller = new JScrollPane(list);
         listScroller.setMaximumSize(new Dimension(200, Short.MAX_VALUE));
@@ -322,7 +355,7 @@ public class Main {
             }
             if (list.getSelectedIndex() < 0)
                 list.setSelectedIndex(0);
-            resultTextArea.setText(results[list.getSelectedIndex()]);
+            resultTextArea.setText(renderResult(list.getSelectedIndex()));
         });
         compilePanel.add(compileButton);
         compilePanel.add(optimizeCheckbox);
@@ -361,6 +394,12 @@ public class Main {
         item.addActionListener(action -> editorTextArea.setText(EXAMPLE_FACT));
         newExampleMenu.add(item);
 
+        JMenu viewMenu = new JMenu("View");
+        menuBar.add(viewMenu);
+        item = new JMenuItem("Pass Metrics");
+        item.addActionListener(action -> showMetrics());
+        viewMenu.add(item);
+
         // Display the window
         frame.setJMenuBar(menuBar);
         frame.pack();
@@ -368,19 +407,53 @@ public class Main {
         frame.setLocationRelativeTo(null);
     }
 
+    private String renderResult(int idx) {
+        if (results[idx] == null)
+            return "";
+        resultBuilder.setLength(0);
+        results[idx].render(resultBuilder);
+        return resultBuilder.toString();
+    }
+
+    private static Snapshot textSnapshot(String text) {
+        return sb -> sb.append(text);
+    }
+
+    /**
+     * Shows the metrics of each pass of the last compile in a table, which can be sorted by any column.
+     */
+    private void showMetrics() {
+        JTable table = new JTable(metrics.toRows(), Metrics.COLUMNS.toArray()) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        table.setAutoCreateRowSorter(true);
+        JDialog dialog = new JDialog(frame, "Pass Metrics");
+        dialog.setContentPane(new JScrollPane(table));
+        dialog.setSize(900, 500);
+        dialog.setLocationRelativeTo(frame);
+        dialog.setVisible(true);
+    }
+
     private boolean run() {
         final Ast.Prog prog;
         boolean optimize = optimizeCheckbox.isSelected();
         StringReader reader = new StringReader(editorTextArea.getText());
+        metrics = new Metrics();
+        Metrics.Timer timer = metrics.start("Parser", null);
         try {
             prog = Parser.parse(reader);
         } catch (Exception e) {
-            String x = "Failed to parse input.\n\n" + e.getMessage();
-            for (int i = 0; i < results.length; i++)
-                results[i] = x;
+            Arrays.fill(results, textSnapshot("Failed to parse input.\n\n" + e.getMessage()));
             return false;
         }
-        results[AST_RESULT] = prog.render(0, 0);
+        timer.stop();
+        results[AST_RESULT] = sb -> sb.append(prog.render(0, 0));
+        timer = metrics.start("StaticCheck", null);
         try {
             StaticCheck.run(prog);
         } catch (StaticCheck.SemErrors e) {
@@ -388,63 +461,123 @@ public class Main {
             sb.append("Type checking failed.\n\n");
             for (StaticCheck.SemError err : e.getErrors())
                 sb.append("error:").append(err.location).append(": ").append(err.getMessage()).append('\n');
-            String x = sb.toString();
-            for (int i = AST_RESULT + 1; i < results.length; i++)
-                results[i] = x;
+            Arrays.fill(results, AST_RESULT + 1, results.length, textSnapshot(sb.toString()));
             return false;
         }
-        Ir.Prog irProg = IrGen.run(prog);
-        results[IR_GEN_RESULT] = irProg.render(0);
-        for (int i = IR_GEN_RESULT + 1; i < results.length; i++)
-            results[i] = "";
-        for (Ir.Meth meth : irProg.meths) {
-            FlowPass.run(meth);
-            results[FLOW_PASS_RESULT] += meth.render(0);
-            DomPass domPass = new DomPass(meth);
-            DomFrontierPass domFrontierPass = new DomFrontierPass(meth, domPass);
-            SsaPass.run(meth, domPass, domFrontierPass);
-            results[SSA_PASS_RESULT] += meth.render(0);
-            if (CritEdgePass.run(meth)) {
-                // CFG modified, need to recompute dom info
-                domPass = new DomPass(meth);
-                domFrontierPass = new DomFrontierPass(meth, domPass);
+        timer.stop();
+        // Only the methods that changed since the last compile go through IrGen and the backend
+        timer = metrics.start("MethCache", null);
+        IdentityHashMap<Ast.Meth, String> keys = MethCache.getKeys(prog, optimize ? 2 : 0);
+        Set<Ast.Meth> dirtyMeths = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Map.Entry<Ast.Meth, String> entry : keys.entrySet()) {
+            if (methCache.get(entry.getValue()) == null)
+                dirtyMeths.add(entry.getKey());
+        }
+        timer.stop();
+        timer = metrics.start("IrGen", null);
+        Ir.Prog irProg = IrGen.run(prog, dirtyMeths);
+        timer.stop();
+        HashMap<String, HashMap<String, Integer>> fieldOffsets = ArmGen.getFieldOffsets(irProg);
+        Iterator<Ir.Meth> dirtyIrMeths = irProg.meths.iterator();
+        MethsSnapshot[] methsSnapshots = new MethsSnapshot[COLOR_PASS_RESULT + 1];
+        for (int i = IR_GEN_RESULT; i <= COLOR_PASS_RESULT; i++) {
+            methsSnapshots[i] = new MethsSnapshot();
+            results[i] = methsSnapshots[i];
+        }
+        ArrayList<ArmGen.Fragment> fragments = new ArrayList<>();
+        for (Ast.Clazz clazz : prog.clazzes) {
+            for (Ast.Meth meth : clazz.meths) {
+                String key = keys.get(meth);
+                CachedMeth cachedMeth = methCache.get(key);
+                if (cachedMeth == null) {
+                    cachedMeth = compileMeth(dirtyIrMeths.next(), fieldOffsets, optimize ? 2 : 0);
+                    methCache.put(key, cachedMeth);
+                }
+                for (int i = IR_GEN_RESULT; i <= COLOR_PASS_RESULT; i++)
+                    methsSnapshots[i].meths.add(cachedMeth.snapshots[i]);
+                fragments.add(cachedMeth.fragment.copy());
             }
-            results[CRIT_EDGE_PASS_RESULT] += meth.render(0);
-            IrLowerPass.run(meth);
-            results[IR_LOWER_PASS_RESULT] += meth.render(0);
-            PhiWebPass.run(meth);
-            results[PHI_WEB_PASS_RESULT] += meth.render(0);
-            SpillPass.run(meth, domPass, domFrontierPass);
-            results[SPILL_PASS_RESULT] += meth.render(0);
-            RegTargetPass.run(meth, domPass, domFrontierPass);
-            results[REG_TARGET_PASS_RESULT] += meth.render(0);
-            LivePass livePass = new LivePass(meth);
-            ColorPass.run(meth, domPass, livePass);
-            results[COLOR_PASS_RESULT] += meth.render(0);
         }
-        Arm.Prog armProg = ArmGen.run(irProg);
-        results[ARM_GEN_RESULT] = armProg.render();
+        methCache.retainAll(keys.values());
+        Ir.Prog irGenProg = new Ir.Prog(irProg.datas, methsSnapshots[IR_GEN_RESULT].meths);
+        results[IR_GEN_RESULT] = sb -> irGenProg.render(sb, 0);
+        timer = metrics.start("ArmGen.link", null);
+        Arm.Prog armProg = ArmGen.link(fragments);
+        timer.stop(armProg.textBlocks);
+        results[ARM_GEN_RESULT] = armSnapshot(armProg);
         if (optimize) {
+            timer = metrics.start("ArmJumpOpt", null);
             ArmJumpOpt.run(armProg);
-            results[ARM_JUMP_OPT_RESULT] = armProg.render();
+            timer.stop(armProg.textBlocks);
+            results[ARM_JUMP_OPT_RESULT] = armSnapshot(armProg);
+            timer = metrics.start("ArmDeadBlockElim", null);
             ArmDeadBlockElim.run(armProg);
-            results[ARM_DEAD_BLOCK_ELIM_RESULT] = armProg.render();
+            timer.stop(armProg.textBlocks);
+            results[ARM_DEAD_BLOCK_ELIM_RESULT] = armSnapshot(armProg);
+            timer = metrics.start("ArmFallthruOpt", null);
             ArmFallthruOpt.run(armProg);
-            results[ARM_FALLTHRU_OPT_RESULT] = armProg.render();
+            timer.stop(armProg.textBlocks);
+            results[ARM_FALLTHRU_OPT_RESULT] = armSnapshot(armProg);
+            timer = metrics.start("ArmLabelOpt", null);
             ArmLabelOpt.run(armProg);
-            results[ARM_LABEL_OPT_RESULT] = armProg.render();
+            timer.stop(armProg.textBlocks);
+            results[ARM_LABEL_OPT_RESULT] = armSnapshot(armProg);
         } else {
-            String msg = "Optimization not enabled.";
+            Snapshot msg = textSnapshot("Optimization not enabled.");
             results[ARM_JUMP_OPT_RESULT] = msg;
             results[ARM_DEAD_BLOCK_ELIM_RESULT] = msg;
             results[ARM_FALLTHRU_OPT_RESULT] = msg;
             results[ARM_LABEL_OPT_RESULT] = msg;
         }
+        timer = metrics.start("ArmRuntime", null);
         ArmRuntime.run(armProg);
-        results[ARM_RUNTIME_RESULT] = armProg.render();
+        timer.stop(armProg.textBlocks);
+        results[ARM_RUNTIME_RESULT] = armProg::render;
         return true;
     }
 
+    /**
+     * Runs the backend passes on a single method, recording a snapshot of the method after each of them.
+     */
+    private CachedMeth compileMeth(Ir.Meth meth, Map<String, HashMap<String, Integer>> fieldOffsets, int optLevel) {
+        CachedMeth cachedMeth = new CachedMeth();
+        cachedMeth.snapshots[IR_GEN_RESULT] = meth.copy();
+        PassManager pm = new PassManager(meth, metrics);
+        for (PassManager.Pass pass : PassManager.getBackendPasses(optLevel)) {
+            pm.run(pass);
+            int result = getPassResult(pass.name);
+            if (result >= 0)
+                cachedMeth.snapshots[result] = meth.copy();
+        }
+        LivePass livePass = pm.getLivePass();
+        Metrics.Timer timer = metrics.start("ArmGen", meth);
+        cachedMeth.fragment = ArmGen.run(meth, fieldOffsets, livePass);
+        timer.stop(cachedMeth.fragment.textBlocks);
+        return cachedMeth;
+    }
+
+    /**
+     * Returns the result that shows the method after the given backend pass, or -1 if there is none.
+     */
+    private static int getPassResult(String passName) {
+        switch (passName) {
+        case "FlowPass": return FLOW_PASS_RESULT;
+        case "SsaPass": return SSA_PASS_RESULT;
+        case "CritEdgePass": return CRIT_EDGE_PASS_RESULT;
+        case "IrLowerPass": return IR_LOWER_PASS_RESULT;
+        case "PhiWebPass": return PHI_WEB_PASS_RESULT;
+        case "SpillPass": return SPILL_PASS_RESULT;
+        case "RegTargetPass": return REG_TARGET_PASS_RESULT;
+        case "ColorPass": return COLOR_PASS_RESULT;
+        default: return -1;
+        }
+    }
+
+    private static Snapshot armSnapshot(Arm.Prog armProg) {
+        Arm.Prog copy = armProg.copy();
+        return copy::render;
+    }
+
     public static void main(String[] args) {
         javax.swing.SwingUtilities.invokeLater(() -> {
             new Main();
@@ -0,0 +1,177 @@
+package pyokagan.cs4212;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Caches the results of compiling each method across compilations, so that after editing one method of a large
+ * program only that method needs to be compiled again.
+ *
+ * Methods are keyed by a hash of their source together with everything else that their code depends on: the
+ * optimization level, their IR name, the layouts of the classes they refer to, and the IR names and signatures of the
+ * methods they call.
+ * Only the entries of the last program compiled with the cache are kept (see {@link #retainAll(Collection)}).
+ *
+ * Cached values are shared, so callers should store and hand out copies of anything that is modified later.
+ * The cache may be used from several threads, but programs compiled concurrently with the same cache evict each
+ * other's entries.
+ */
+public class MethCache<V> {
+    private HashMap<String, V> entries = new HashMap<>();
+
+    public synchronized V get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized void put(String key, V value) {
+        entries.put(key, value);
+    }
+
+    /**
+     * Drops all entries except those with the given keys.
+     */
+    public synchronized void retainAll(Collection<String> keys) {
+        entries.keySet().retainAll(new HashSet<>(keys));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the key of each method of a program that has passed StaticCheck, when compiled at optLevel.
+     */
+    public static IdentityHashMap<Ast.Meth, String> getKeys(Ast.Prog prog, int optLevel) {
+        IdentityHashMap<Ast.Meth, String> methNames = IrGen.getMethNames(prog);
+        HashMap<String, Ast.Clazz> clazzes = new HashMap<>();
+        for (Ast.Clazz clazz : prog.clazzes)
+            clazzes.put(clazz.cname, clazz);
+
+        IdentityHashMap<Ast.Meth, String> keys = new IdentityHashMap<>();
+        for (Ast.Clazz clazz : prog.clazzes) {
+            for (Ast.Meth meth : clazz.meths) {
+                DepCollector deps = new DepCollector();
+                deps.cnames.add(clazz.cname);
+                for (Ast.Stmt stmt : meth.stmts)
+                    deps.doStmt(stmt);
+
+                StringBuilder sb = new StringBuilder();
+                sb.append("-O").append(optLevel).append(' ').append(methNames.get(meth)).append('\n');
+                sb.append(meth.render(0, 0));
+                for (String cname : deps.cnames) {
+                    sb.append("class ").append(cname).append(" {");
+                    Ast.Clazz depClazz = clazzes.get(cname);
+                    if (depClazz != null) {
+                        for (Ast.VarDecl varDecl : depClazz.varDecls)
+                            sb.append(varDecl.typ.render(0, 0)).append(' ').append(varDecl.name).append(';');
+                    }
+                    sb.append("}\n");
+                }
+                TreeMap<String, Ast.Meth> callees = new TreeMap<>();
+                for (Ast.Meth callee : deps.callees)
+                    callees.put(methNames.get(callee), callee);
+                for (Map.Entry<String, Ast.Meth> entry : callees.entrySet()) {
+                    Ast.Meth callee = entry.getValue();
+                    sb.append(entry.getKey()).append(": ").append(callee.retTyp.render(0, 0)).append('(');
+                    for (Ast.VarDecl arg : callee.args)
+                        sb.append(arg.typ.render(0, 0)).append(',');
+                    sb.append(")\n");
+                }
+                keys.put(meth, hash(sb.toString()));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the SHA-256 hash of s, in hex.
+     */
+    static String hash(String s) {
+        return hash(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String hash(byte[] bytes) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("BUG: SHA-256 is not available", e);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest(bytes))
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    /**
+     * Collects the classes and methods that a method refers to.
+     */
+    private static class DepCollector {
+        private final TreeSet<String> cnames = new TreeSet<>();
+        private final Set<Ast.Meth> callees = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        private void doStmt(Ast.Stmt stmt) {
+            if (stmt instanceof Ast.IfStmt) {
+                Ast.IfStmt ifStmt = (Ast.IfStmt) stmt;
+                doExpr(ifStmt.cond);
+                for (Ast.Stmt s : ifStmt.thenStmts)
+                    doStmt(s);
+                for (Ast.Stmt s : ifStmt.elseStmts)
+                    doStmt(s);
+            } else if (stmt instanceof Ast.WhileStmt) {
+                Ast.WhileStmt whileStmt = (Ast.WhileStmt) stmt;
+                doExpr(whileStmt.cond);
+                for (Ast.Stmt s : whileStmt.stmts)
+                    doStmt(s);
+            } else if (stmt instanceof Ast.ReadlnStmt) {
+                // Nothing to do
+            } else if (stmt instanceof Ast.PrintlnStmt) {
+                doExpr(((Ast.PrintlnStmt) stmt).expr);
+            } else if (stmt instanceof Ast.VarAssignStmt) {
+                doExpr(((Ast.VarAssignStmt) stmt).rhs);
+            } else if (stmt instanceof Ast.FieldAssignStmt) {
+                Ast.FieldAssignStmt fieldAssignStmt = (Ast.FieldAssignStmt) stmt;
+                doExpr(fieldAssignStmt.lhsExpr);
+                doExpr(fieldAssignStmt.rhs);
+            } else if (stmt instanceof Ast.ReturnStmt) {
+                Ast.Expr expr = ((Ast.ReturnStmt) stmt).expr;
+                if (expr != null)
+                    doExpr(expr);
+            } else if (stmt instanceof Ast.CallStmt) {
+                Ast.CallStmt callStmt = (Ast.CallStmt) stmt;
+                doCall(callStmt.target, callStmt.args, callStmt.targetMeth);
+            } else {
+                throw new AssertionError("BUG: unknown stmt " + stmt);
+            }
+        }
+
+        private void doExpr(Ast.Expr expr) {
+            if (expr.typ instanceof Ast.ClazzTyp)
+                cnames.add(((Ast.ClazzTyp) expr.typ).cname);
+
+            if (expr instanceof Ast.UnaryExpr) {
+                doExpr(((Ast.UnaryExpr) expr).expr);
+            } else if (expr instanceof Ast.BinaryExpr) {
+                doExpr(((Ast.BinaryExpr) expr).lhs);
+                doExpr(((Ast.BinaryExpr) expr).rhs);
+            } else if (expr instanceof Ast.DotExpr) {
+                doExpr(((Ast.DotExpr) expr).target);
+            } else if (expr instanceof Ast.CallExpr) {
+                Ast.CallExpr callExpr = (Ast.CallExpr) expr;
+                doCall(callExpr.target, callExpr.args, callExpr.meth);
+            } else if (expr instanceof Ast.NewExpr) {
+                cnames.add(((Ast.NewExpr) expr).cname);
+            }
+        }
+
+        private void doCall(Ast.Expr target, List<Ast.Expr> args, Ast.Meth meth) {
+            // The target is either a method name or a DotExpr, whose own target is the object
+            if (target instanceof Ast.DotExpr)
+                doExpr(((Ast.DotExpr) target).target);
+            for (Ast.Expr arg : args)
+                doExpr(arg);
+            callees.add(meth);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package pyokagan.cs4212;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+/**
+ * Records the wall time, allocated bytes and size of the code after each pass, for each method.
+ *
+ * Allocated bytes are measured for the current thread, so they are exact even when methods are compiled in parallel,
+ * as long as each pass runs on a single thread. They are -1 if the JVM cannot measure them.
+ *
+ * A Metrics instance is not thread-safe: each thread should record into its own fork(), which is then merged back
+ * with addAll().
+ */
+public class Metrics {
+    public static final List<String> COLUMNS = Collections.unmodifiableList(Arrays.asList("pass", "meth", "wallNanos",
+        "allocatedBytes", "blocks", "stmts", "vars", "phis", "spills", "reloads", "armInstrs"));
+
+    /**
+     * Metrics that are never recorded.
+     */
+    public static final Metrics DISABLED = new Metrics(false);
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    public static class Record {
+        public final String pass;
+        public final String meth; // Empty for passes on the whole program
+        public final long wallNanos;
+        public final long allocatedBytes;
+        // Size of the code after the pass, or -1 if not applicable
+        public final int blocks;
+        public final int stmts;
+        public final int vars;
+        public final int phis;
+        public final int spills;
+        public final int reloads;
+        public final int armInstrs;
+
+        private Record(String pass, String meth, long wallNanos, long allocatedBytes, int blocks, int stmts, int vars,
+                       int phis, int spills, int reloads, int armInstrs) {
+            this.pass = pass;
+            this.meth = meth;
+            this.wallNanos = wallNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.blocks = blocks;
+            this.stmts = stmts;
+            this.vars = vars;
+            this.phis = phis;
+            this.spills = spills;
+            this.reloads = reloads;
+            this.armInstrs = armInstrs;
+        }
+
+        /**
+         * Returns the values of the record in the order of COLUMNS, with null for values that are not applicable.
+         */
+        public Object[] toRow() {
+            return new Object[] {pass, meth, wallNanos, allocatedBytes < 0 ? null : allocatedBytes, count(blocks),
+                count(stmts), count(vars), count(phis), count(spills), count(reloads), count(armInstrs)};
+        }
+
+        private static Integer count(int x) {
+            return x < 0 ? null : x;
+        }
+    }
+
+    /**
+     * Measures a single run of a pass. Call one of the stop() methods once the pass is done.
+     */
+    public class Timer {
+        private final String pass;
+        private final String meth;
+        private final long startNanos;
+        private final long startBytes;
+
+        private Timer(String pass, String meth) {
+            this.pass = pass;
+            this.meth = meth;
+            this.startBytes = enabled ? getAllocatedBytes() : -1;
+            this.startNanos = System.nanoTime();
+        }
+
+        /**
+         * Stops the timer, without recording any code size.
+         */
+        public void stop() {
+            if (!enabled)
+                return;
+            long wallNanos = System.nanoTime() - startNanos;
+            long allocatedBytes = getAllocatedBytes(startBytes);
+            add(new Record(pass, meth, wallNanos, allocatedBytes, -1, -1, -1, -1, -1, -1, -1));
+        }
+
+        /**
+         * Stops the timer, recording the size of the IR of the method.
+         */
+        public void stop(Ir.Meth irMeth) {
+            if (!enabled)
+                return;
+            long wallNanos = System.nanoTime() - startNanos;
+            long allocatedBytes = getAllocatedBytes(startBytes);
+            int blocks = 0, stmts = 0, phis = 0, spills = 0, reloads = 0;
+            int vars = irMeth.args.size() + irMeth.locals.size();
+            if (irMeth.blocks != null) {
+                blocks = irMeth.blocks.size();
+                for (Ir.Block block : irMeth.blocks) {
+                    stmts += block.stmts.size();
+                    for (Ir.Stmt stmt : block.stmts) {
+                        if (stmt instanceof Ir.PhiStmt)
+                            phis++;
+                        else if (stmt instanceof Ir.SpillStmt)
+                            spills++;
+                        else if (stmt instanceof Ir.ReloadStmt)
+                            reloads++;
+                    }
+                }
+            }
+            add(new Record(pass, meth, wallNanos, allocatedBytes, blocks, stmts, vars, phis, spills, reloads, -1));
+        }
+
+        /**
+         * Stops the timer, recording the number of ARM instrs in the blocks.
+         */
+        public void stop(List<Arm.Block> armBlocks) {
+            if (!enabled)
+                return;
+            long wallNanos = System.nanoTime() - startNanos;
+            long allocatedBytes = getAllocatedBytes(startBytes);
+            int armInstrs = 0;
+            for (Arm.Block block : armBlocks)
+                armInstrs += block.instrs.size();
+            add(new Record(pass, meth, wallNanos, allocatedBytes, armBlocks.size(), -1, -1, -1, -1, -1, armInstrs));
+        }
+    }
+
+    private final boolean enabled;
+    private final ArrayList<Record> records = new ArrayList<>();
+
+    public Metrics() {
+        this(true);
+    }
+
+    private Metrics(boolean enabled) {
+        this.enabled = enabled;
+        if (enabled && threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (bean.isThreadAllocatedMemorySupported() && !bean.isThreadAllocatedMemoryEnabled())
+                bean.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing a pass on a method. meth may be null for passes on the whole program.
+     */
+    public Timer start(String pass, Ir.Meth meth) {
+        return new Timer(pass, meth != null ? meth.name : "");
+    }
+
+    /**
+     * Returns new empty Metrics for recording on another thread, or DISABLED if these metrics are disabled.
+     */
+    public Metrics fork() {
+        return enabled ? new Metrics() : DISABLED;
+    }
+
+    public void addAll(Metrics other) {
+        if (enabled)
+            records.addAll(other.records);
+    }
+
+    private void add(Record record) {
+        if (enabled)
+            records.add(record);
+    }
+
+    public List<Record> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    public Object[][] toRows() {
+        Object[][] rows = new Object[records.size()][];
+        for (int i = 0; i < records.size(); i++)
+            rows[i] = records.get(i).toRow();
+        return rows;
+    }
+
+    public void writeCsv(Appendable out) throws IOException {
+        out.append(String.join(",", COLUMNS)).append('\n');
+        for (Record record : records) {
+            Object[] row = record.toRow();
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0)
+                    out.append(',');
+                if (row[i] instanceof String)
+                    out.append(csvQuote((String) row[i]));
+                else if (row[i] != null)
+                    out.append(row[i].toString());
+            }
+            out.append('\n');
+        }
+    }
+
+    public void writeJson(Appendable out) throws IOException {
+        out.append("[\n");
+        for (int r = 0; r < records.size(); r++) {
+            Object[] row = records.get(r).toRow();
+            out.append("  {");
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0)
+                    out.append(", ");
+                out.append('"').append(COLUMNS.get(i)).append("\": ");
+                if (row[i] instanceof String)
+                    out.append(jsonQuote((String) row[i]));
+                else
+                    out.append(String.valueOf(row[i]));
+            }
+            out.append(r + 1 < records.size() ? "},\n" : "}\n");
+        }
+        out.append("]\n");
+    }
+
+    private static String csvQuote(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0)
+            return s;
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String jsonQuote(String s) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+    private static long getAllocatedBytes() {
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+        if (!bean.isThreadAllocatedMemoryEnabled())
+            return -1;
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long getAllocatedBytes(long startBytes) {
+        if (startBytes < 0)
+            return -1;
+        long endBytes = getAllocatedBytes();
+        return endBytes < 0 ? -1 : endBytes - startBytes;
+    }
+}
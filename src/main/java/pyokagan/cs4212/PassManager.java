@@ -0,0 +1,212 @@
+package pyokagan.cs4212;
+
+import java.util.*;
+
+/**
+ * Runs passes on a method, computing the analyses that they need at most once.
+ *
+ * Analyses are computed when first requested and cached until a pass that does not preserve them modifies the method.
+ * Each pass declares the analyses it requires, which are computed (and timed) before the pass itself, and the
+ * analyses it preserves. A pass may also report that it did not modify the method at all, which preserves everything.
+ *
+ * {@link #getBackendPasses(int)} is the backend pipeline, shared by the CLI, the GUI and the benchmarks.
+ */
+public class PassManager {
+    public enum Analysis {
+        DOM,
+        DOM_FRONTIER,
+        LIVE,
+        LOOP,
+    }
+
+    public static final Set<Analysis> NONE = Collections.unmodifiableSet(EnumSet.noneOf(Analysis.class));
+    public static final Set<Analysis> ALL = Collections.unmodifiableSet(EnumSet.allOf(Analysis.class));
+    // Analyses that only depend on the CFG, which are preserved by passes that do not add or remove blocks or edges
+    public static final Set<Analysis> CFG = Collections.unmodifiableSet(EnumSet.of(Analysis.DOM,
+        Analysis.DOM_FRONTIER, Analysis.LOOP));
+
+    public interface Transform {
+        /**
+         * Returns false if the method was not modified.
+         */
+        boolean run(Ir.Meth meth, PassManager pm);
+    }
+
+    public static class Pass {
+        public final String name;
+        public final Set<Analysis> requires;
+        public final Set<Analysis> preserves;
+        public final Transform transform;
+
+        public Pass(String name, Set<Analysis> requires, Set<Analysis> preserves, Transform transform) {
+            this.name = name;
+            this.requires = requires;
+            this.preserves = preserves;
+            this.transform = transform;
+        }
+    }
+
+    private static final List<Pass> FRONTEND_PASSES = Arrays.asList(
+        new Pass("FlowPass", NONE, NONE, (meth, pm) -> {
+            FlowPass.run(meth);
+            return true;
+        }),
+        new Pass("SsaPass", EnumSet.of(Analysis.DOM, Analysis.DOM_FRONTIER), CFG, (meth, pm) -> {
+            SsaPass.run(meth, pm.getDomPass(), pm.getDomFrontierPass());
+            return true;
+        })
+    );
+
+    // Optimizations on SSA form, enabled at -O2
+    private static final List<Pass> OPT_PASSES = Arrays.asList(
+        new Pass("SccpPass", NONE, NONE, (meth, pm) -> SccpPass.run(meth)),
+        new Pass("GvnPass", EnumSet.of(Analysis.DOM), CFG, (meth, pm) -> GvnPass.run(meth, pm.getDomPass())),
+        new Pass("AdcePass", EnumSet.of(Analysis.LOOP), NONE, (meth, pm) -> AdcePass.run(meth, pm.getLoopPass())),
+        new Pass("PreheaderPass", EnumSet.of(Analysis.LOOP), NONE,
+            (meth, pm) -> PreheaderPass.run(meth, pm.getLoopPass())),
+        new Pass("LicmPass", EnumSet.of(Analysis.LOOP), CFG, (meth, pm) -> LicmPass.run(meth, pm.getLoopPass()))
+    );
+
+    private static final List<Pass> LOWERING_PASSES = Arrays.asList(
+        new Pass("CritEdgePass", NONE, NONE, (meth, pm) -> CritEdgePass.run(meth)),
+        new Pass("IrLowerPass", NONE, CFG, (meth, pm) -> {
+            IrLowerPass.run(meth);
+            return true;
+        }),
+        new Pass("PhiWebPass", NONE, CFG, (meth, pm) -> {
+            PhiWebPass.run(meth);
+            return true;
+        }),
+        new Pass("SpillPass", EnumSet.of(Analysis.DOM, Analysis.DOM_FRONTIER), CFG, (meth, pm) -> {
+            SpillPass.run(meth, pm.getDomPass(), pm.getDomFrontierPass());
+            return true;
+        }),
+        new Pass("RegTargetPass", EnumSet.of(Analysis.DOM, Analysis.DOM_FRONTIER, Analysis.LIVE), CFG, (meth, pm) -> {
+            RegTargetPass.run(meth, pm.getDomPass(), pm.getDomFrontierPass(), pm.getLivePass());
+            return true;
+        }),
+        // Only assigns registers to vars
+        new Pass("ColorPass", EnumSet.of(Analysis.DOM, Analysis.LIVE), ALL, (meth, pm) -> {
+            ColorPass.run(meth, pm.getDomPass(), pm.getLivePass());
+            return true;
+        })
+    );
+
+    private static final List<Pass> BACKEND_PASSES = concat(FRONTEND_PASSES, LOWERING_PASSES);
+    private static final List<Pass> OPT_BACKEND_PASSES = concat(FRONTEND_PASSES, OPT_PASSES, LOWERING_PASSES);
+
+    private final Ir.Meth meth;
+    private final Metrics metrics;
+    private DomPass domPass;
+    private DomFrontierPass domFrontierPass;
+    private LivePass livePass;
+    private LoopPass loopPass;
+
+    public PassManager(Ir.Meth meth, Metrics metrics) {
+        this.meth = meth;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the passes from FlowPass up to ColorPass, after which the method is ready for ArmGen.
+     *
+     * @param optLevel 2 or above adds the optimizations on SSA form.
+     */
+    public static List<Pass> getBackendPasses(int optLevel) {
+        return optLevel >= 2 ? OPT_BACKEND_PASSES : BACKEND_PASSES;
+    }
+
+    @SafeVarargs
+    private static List<Pass> concat(List<Pass>... lists) {
+        ArrayList<Pass> out = new ArrayList<>();
+        for (List<Pass> list : lists)
+            out.addAll(list);
+        return Collections.unmodifiableList(out);
+    }
+
+    public void run(Pass pass) {
+        for (Analysis analysis : pass.requires)
+            get(analysis);
+        Metrics.Timer timer = metrics.start(pass.name, meth);
+        boolean modified = pass.transform.run(meth, this);
+        timer.stop(meth);
+        if (modified)
+            invalidate(pass.preserves);
+    }
+
+    public void run(List<Pass> passes) {
+        for (Pass pass : passes)
+            run(pass);
+    }
+
+    /**
+     * Drops the cached analyses, except the preserved ones.
+     */
+    public void invalidate(Set<Analysis> preserved) {
+        if (!preserved.contains(Analysis.DOM))
+            domPass = null;
+        if (!preserved.contains(Analysis.DOM_FRONTIER))
+            domFrontierPass = null;
+        if (!preserved.contains(Analysis.LIVE))
+            livePass = null;
+        if (!preserved.contains(Analysis.LOOP))
+            loopPass = null;
+    }
+
+    public DomPass getDomPass() {
+        if (domPass == null) {
+            Metrics.Timer timer = metrics.start("DomPass", meth);
+            domPass = new DomPass(meth);
+            timer.stop(meth);
+        }
+        return domPass;
+    }
+
+    public DomFrontierPass getDomFrontierPass() {
+        if (domFrontierPass == null) {
+            DomPass domPass = getDomPass();
+            Metrics.Timer timer = metrics.start("DomFrontierPass", meth);
+            domFrontierPass = new DomFrontierPass(meth, domPass);
+            timer.stop(meth);
+        }
+        return domFrontierPass;
+    }
+
+    public LivePass getLivePass() {
+        if (livePass == null) {
+            Metrics.Timer timer = metrics.start("LivePass", meth);
+            livePass = new LivePass(meth);
+            timer.stop(meth);
+        }
+        return livePass;
+    }
+
+    public LoopPass getLoopPass() {
+        if (loopPass == null) {
+            DomPass domPass = getDomPass();
+            Metrics.Timer timer = metrics.start("LoopPass", meth);
+            loopPass = new LoopPass(meth, domPass);
+            timer.stop(meth);
+        }
+        return loopPass;
+    }
+
+    private void get(Analysis analysis) {
+        switch (analysis) {
+        case DOM:
+            getDomPass();
+            break;
+        case DOM_FRONTIER:
+            getDomFrontierPass();
+            break;
+        case LIVE:
+            getLivePass();
+            break;
+        case LOOP:
+            getLoopPass();
+            break;
+        default:
+            throw new AssertionError("BUG: unknown analysis " + analysis);
+        }
+    }
+}
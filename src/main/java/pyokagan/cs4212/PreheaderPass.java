@@ -0,0 +1,117 @@
+package pyokagan.cs4212;
+
+import java.util.*;
+
+/**
+ * Gives every loop a preheader: a block whose only successor is the loop header, and which is the only pred of the
+ * header from outside the loop. Code that needs to run once before the loop can then go there.
+ *
+ * When a new preheader is inserted, the edges into the header from outside the loop are moved to it. If there are
+ * several of them, the phis of the header are split: the args from outside the loop go to new phis in the preheader,
+ * whose dsts become the header phi args for the preheader. The new phis are in the same phi webs as the old ones.
+ */
+public class PreheaderPass {
+    private final Ir.Meth meth;
+    private int tmpCounter;
+    private boolean modified;
+
+    private PreheaderPass(Ir.Meth meth, LoopPass loopPass) {
+        this.meth = meth;
+        int blockIndex = meth.blocks.size();
+        for (LoopPass.Loop loop : loopPass.getLoops()) {
+            if (loop.preheader != null)
+                continue;
+            Ir.Block preheader = new Ir.Block(Arrays.asList(new Ir.GotoStmt(loop.header.label)));
+            preheader.label = new Ir.LabelStmt("B" + (blockIndex++));
+            insertPreheader(loop, preheader);
+            meth.blocks.add(preheader);
+            modified = true;
+        }
+
+        if (!modified)
+            return;
+
+        DfsOrder dfs = DfsOrder.numberBlocks(meth, meth.blocks);
+        if (dfs.numVisited != meth.blocks.size())
+            throw new AssertionError("BUG: PreheaderPass left unreachable blocks in " + meth.name);
+    }
+
+    /**
+     * Returns false if the method was not modified.
+     */
+    public static boolean run(Ir.Meth meth, LoopPass loopPass) {
+        PreheaderPass p = new PreheaderPass(meth, loopPass);
+        return p.modified;
+    }
+
+    private void insertPreheader(LoopPass.Loop loop, Ir.Block preheader) {
+        Ir.Block header = loop.header;
+
+        // Split the incoming edges of the header into those from inside and outside the loop
+        ArrayList<Integer> entryIdxs = new ArrayList<>();
+        ArrayList<Ir.Block> newIncoming = new ArrayList<>();
+        for (int i = 0; i < header.incoming.size(); i++) {
+            Ir.Block pred = header.incoming.get(i);
+            if (loop.contains(pred)) {
+                newIncoming.add(pred);
+            } else {
+                entryIdxs.add(i);
+                preheader.incoming.add(pred);
+            }
+        }
+        if (entryIdxs.isEmpty())
+            throw new AssertionError("BUG: loop header " + header + " has no entry");
+
+        // Move the args from outside the loop to the preheader
+        ArrayList<Ir.Stmt> preheaderPhis = new ArrayList<>();
+        for (Ir.Stmt stmt : header.stmts) {
+            if (!(stmt instanceof Ir.PhiStmt))
+                break;
+            Ir.PhiStmt phiStmt = (Ir.PhiStmt) stmt;
+            Ir.Var entryArg;
+            if (entryIdxs.size() == 1) {
+                entryArg = phiStmt.args.get(entryIdxs.get(0));
+            } else {
+                entryArg = genTemp(phiStmt.getDst().typ);
+                Ir.PhiStmt preheaderPhi = new Ir.PhiStmt(entryArg, entryIdxs.size());
+                preheaderPhi.originalVar = phiStmt.originalVar;
+                for (int i = 0; i < entryIdxs.size(); i++)
+                    preheaderPhi.args.set(i, phiStmt.args.get(entryIdxs.get(i)));
+                preheaderPhis.add(preheaderPhi);
+            }
+            ArrayList<Ir.Var> newArgs = new ArrayList<>();
+            for (int i = 0; i < phiStmt.args.size(); i++) {
+                if (loop.contains(header.incoming.get(i)))
+                    newArgs.add(phiStmt.args.get(i));
+            }
+            newArgs.add(entryArg);
+            phiStmt.args = newArgs;
+        }
+        preheader.stmts.addAll(0, preheaderPhis);
+        newIncoming.add(preheader);
+        header.incoming = newIncoming;
+
+        // Point the entry edges at the preheader
+        for (Ir.Block pred : preheader.incoming) {
+            Ir.JumpStmt jumpStmt = (Ir.JumpStmt) pred.stmts.get(pred.stmts.size() - 1);
+            if (pred.outgoingCond == header) {
+                pred.outgoingCond = preheader;
+                jumpStmt.label = preheader.label;
+            }
+            if (pred.outgoingDirect == header) {
+                pred.outgoingDirect = preheader;
+                if (jumpStmt instanceof Ir.GotoStmt)
+                    jumpStmt.label = preheader.label;
+            }
+        }
+        preheader.outgoingDirect = header;
+    }
+
+    private Ir.Var genTemp(Ast.Typ typ) {
+        String name = "%ph" + tmpCounter;
+        tmpCounter++;
+        Ir.Var v = new Ir.Var(typ, name);
+        meth.locals.add(v);
+        return v;
+    }
+}
@@ -0,0 +1,446 @@
+package pyokagan.cs4212;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Generates random, type-correct JLite programs for benchmarking and stress testing the compiler.
+ *
+ * Usage: jlitegen [--seed N] [--classes N] [--meths N] [--overloads N] [--length N] [--loop-depth N]
+ *                 [--pressure N] [--call-density PERCENT] [--call-depth N] [--max-args N] [-o out.j]
+ *
+ * The same options and seed always generate the same program.
+ *
+ * Generated programs always terminate and do not read any input, so their output can be compared across compilers
+ * and optimization levels:
+ * - Loops count up to a small constant.
+ * - Methods are split into call levels by name, and a method only calls methods of the next level, so there is no
+ *   recursion.
+ * - Division is only by nonzero constants.
+ * - All fields are initialized by main() before any method is called.
+ */
+public class ProgramGenerator {
+    private static final String USAGE = "usage: jlitegen [--seed N] [--classes N] [--meths N] [--overloads N] "
+        + "[--length N] [--loop-depth N] [--pressure N] [--call-density PERCENT] [--call-depth N] [--max-args N] "
+        + "[-o out.j]";
+
+    private static final int NUM_FIELDS = 3;
+    private static final int MAX_TRIP_COUNT = 3;
+    private static final int MAX_EXPR_DEPTH = 3;
+
+    public static class Options {
+        public long seed = 0;
+        // Number of classes, not counting the Main class
+        public int numClasses = 2;
+        // Number of method names in each class
+        public int methsPerClass = 4;
+        // Number of overloads of each method name. Overloads differ in the number of args or the type of the first.
+        public int overloads = 2;
+        // Approximate number of stmts in each method body, including those nested in ifs and loops
+        public int methLength = 20;
+        // Maximum nesting depth of while loops
+        public int loopDepth = 2;
+        // Number of Int vars that are live at the same time throughout each method
+        public int pressure = 8;
+        // Percentage of stmts that are calls
+        public int callDensity = 15;
+        // Number of call levels. Methods of the last level do not call any other method.
+        public int callDepth = 3;
+        // Maximum number of args of a method. Anything above 4 is passed on the stack.
+        public int maxArgs = 6;
+
+        public int getNumMeths() {
+            return numClasses * methsPerClass * overloads;
+        }
+
+        private void validate() {
+            if (numClasses < 1 || methsPerClass < 1 || overloads < 1 || methLength < 1 || loopDepth < 0
+                    || pressure < 1 || callDensity < 0 || callDensity > 100 || callDepth < 1 || maxArgs < 0)
+                throw new IllegalArgumentException("invalid generator options");
+            if (overloads > 1 && maxArgs < 1 + (overloads - 1) / 2)
+                throw new IllegalArgumentException("maxArgs is too small for " + overloads + " overloads");
+        }
+    }
+
+    private static class MethSig {
+        private final String name;
+        private final int level;
+        // Whether each arg is a Bool (otherwise Int)
+        private final boolean[] boolArgs;
+
+        private MethSig(String name, int level, boolean[] boolArgs) {
+            this.name = name;
+            this.level = level;
+            this.boolArgs = boolArgs;
+        }
+    }
+
+    private final Options opts;
+    private final Random random;
+    private final StringBuilder sb = new StringBuilder();
+    private int indent;
+
+    // Method signatures of each class
+    private final ArrayList<ArrayList<MethSig>> classMeths = new ArrayList<>();
+
+    // State of the method being generated
+    private int currClass;
+    private MethSig currMeth;
+    private ArrayList<MethSig> currCallees;
+    // Vars v0, v1, ... that have been assigned so far, and can be used
+    private int numAssignedVars;
+
+    private ProgramGenerator(Options opts) {
+        opts.validate();
+        this.opts = opts;
+        this.random = new Random(opts.seed);
+
+        for (int c = 0; c < opts.numClasses; c++) {
+            ArrayList<MethSig> meths = new ArrayList<>();
+            for (int j = 0; j < opts.methsPerClass; j++) {
+                int level = j % opts.callDepth;
+                // Overloads 2k and 2k+1 have the same number of args, and differ in the type of the first arg
+                int minBaseArgs = opts.overloads > 1 ? 1 : 0;
+                int maxBaseArgs = opts.maxArgs - (opts.overloads - 1) / 2;
+                int baseArgs = minBaseArgs + random.nextInt(maxBaseArgs - minBaseArgs + 1);
+                for (int o = 0; o < opts.overloads; o++) {
+                    boolean[] boolArgs = new boolean[baseArgs + o / 2];
+                    for (int i = 1; i < boolArgs.length; i++)
+                        boolArgs[i] = random.nextInt(4) == 0;
+                    if (boolArgs.length > 0)
+                        boolArgs[0] = o % 2 == 1;
+                    meths.add(new MethSig("m" + j, level, boolArgs));
+                }
+            }
+            classMeths.add(meths);
+        }
+
+        genMain();
+        for (int c = 0; c < opts.numClasses; c++)
+            genClass(c);
+    }
+
+    private void genMain() {
+        line("class Main {");
+        indent++;
+        line("Void main() {");
+        indent++;
+        for (int c = 0; c < opts.numClasses; c++)
+            line(className(c) + " o" + c + ";");
+        line("");
+        for (int c = 0; c < opts.numClasses; c++)
+            line("o" + c + " = new " + className(c) + "();");
+        for (int c = 0; c < opts.numClasses; c++) {
+            for (int f = 0; f < NUM_FIELDS; f++)
+                line("o" + c + ".f" + f + " = " + genLiteral() + ";");
+            line("o" + c + ".next = o" + ((c + 1) % opts.numClasses) + ";");
+        }
+        for (int c = 0; c < opts.numClasses; c++) {
+            for (MethSig meth : classMeths.get(c)) {
+                if (meth.level != 0)
+                    continue;
+                StringBuilder call = new StringBuilder();
+                call.append("println(o").append(c).append('.').append(meth.name).append('(');
+                for (int i = 0; i < meth.boolArgs.length; i++) {
+                    if (i > 0)
+                        call.append(", ");
+                    call.append(meth.boolArgs[i] ? (random.nextBoolean() ? "true" : "false") : genLiteral());
+                }
+                call.append("));");
+                line(call.toString());
+            }
+        }
+        indent--;
+        line("}");
+        indent--;
+        line("}");
+    }
+
+    private void genClass(int c) {
+        currClass = c;
+        line("");
+        line("class " + className(c) + " {");
+        indent++;
+        for (int f = 0; f < NUM_FIELDS; f++)
+            line("Int f" + f + ";");
+        line(className((c + 1) % opts.numClasses) + " next;");
+        for (MethSig meth : classMeths.get(c))
+            genMeth(meth);
+        indent--;
+        line("}");
+    }
+
+    private void genMeth(MethSig meth) {
+        currMeth = meth;
+
+        // Callees are the methods of the next level, in this class or the next one
+        currCallees = new ArrayList<>();
+        for (int c : new int[] {currClass, (currClass + 1) % opts.numClasses}) {
+            for (MethSig callee : classMeths.get(c)) {
+                if (callee.level == meth.level + 1)
+                    currCallees.add(callee);
+            }
+            if (opts.numClasses == 1)
+                break;
+        }
+
+        StringBuilder sig = new StringBuilder();
+        sig.append("Int ").append(meth.name).append('(');
+        for (int i = 0; i < meth.boolArgs.length; i++) {
+            if (i > 0)
+                sig.append(", ");
+            sig.append(meth.boolArgs[i] ? "Bool" : "Int").append(" a").append(i);
+        }
+        sig.append(") {");
+        line("");
+        line(sig.toString());
+        indent++;
+        for (int v = 0; v < opts.pressure; v++)
+            line("Int v" + v + ";");
+        for (int d = 0; d < opts.loopDepth; d++)
+            line("Int i" + d + ";");
+        line("");
+        numAssignedVars = 0;
+        for (int v = 0; v < opts.pressure; v++) {
+            line("v" + v + " = " + genIntExpr(1) + ";");
+            numAssignedVars++;
+        }
+        genStmts(opts.methLength, 0);
+        // Every var is used at the end, so they are all live throughout the method
+        StringBuilder ret = new StringBuilder("return v0");
+        for (int v = 1; v < opts.pressure; v++)
+            ret.append(" + v").append(v);
+        ret.append(';');
+        line(ret.toString());
+        indent--;
+        line("}");
+    }
+
+    /**
+     * Generates about n stmts (at least one), with loopLevel enclosing loops.
+     */
+    private void genStmts(int n, int loopLevel) {
+        do {
+            n -= genStmt(n, loopLevel);
+        } while (n > 0);
+    }
+
+    /**
+     * Generates a stmt with at most (about) n nested stmts, and returns the number of stmts generated.
+     */
+    private int genStmt(int n, int loopLevel) {
+        int r = random.nextInt(100);
+        if (n >= 3 && loopLevel < opts.loopDepth && r < 15) {
+            int bodySize = 1 + random.nextInt(n - 2);
+            String i = "i" + loopLevel;
+            line(i + " = 0;");
+            line("while (" + i + " < " + (1 + random.nextInt(MAX_TRIP_COUNT)) + ") {");
+            indent++;
+            genStmts(bodySize, loopLevel + 1);
+            line(i + " = " + i + " + 1;");
+            indent--;
+            line("}");
+            return bodySize + 2;
+        } else if (n >= 3 && r < 30) {
+            int thenSize = 1 + random.nextInt(n - 2);
+            int elseSize = 1 + random.nextInt(Math.max(1, n - 1 - thenSize));
+            line("if (" + genBoolExpr(MAX_EXPR_DEPTH) + ") {");
+            indent++;
+            genStmts(thenSize, loopLevel);
+            indent--;
+            line("} else {");
+            indent++;
+            genStmts(elseSize, loopLevel);
+            indent--;
+            line("}");
+            return thenSize + elseSize + 1;
+        }
+
+        r = random.nextInt(100);
+        if (r < opts.callDensity && !currCallees.isEmpty()) {
+            line(genVar() + " = " + genCall() + ";");
+        } else if (r < opts.callDensity + 10) {
+            String recv = random.nextInt(4) == 0 ? "next." : "";
+            line(recv + "f" + random.nextInt(NUM_FIELDS) + " = " + genIntExpr(MAX_EXPR_DEPTH) + ";");
+        } else if (r < opts.callDensity + 13) {
+            line("println(" + genVar() + ");");
+        } else {
+            line(genVar() + " = " + genIntExpr(MAX_EXPR_DEPTH) + ";");
+        }
+        return 1;
+    }
+
+    private String genCall() {
+        MethSig callee = currCallees.get(random.nextInt(currCallees.size()));
+        StringBuilder call = new StringBuilder();
+        if (classMeths.get(currClass).contains(callee))
+            call.append(callee.name);
+        else
+            call.append("next.").append(callee.name);
+        call.append('(');
+        for (int i = 0; i < callee.boolArgs.length; i++) {
+            if (i > 0)
+                call.append(", ");
+            call.append(callee.boolArgs[i] ? genBoolExpr(1) : genIntExpr(1));
+        }
+        call.append(')');
+        return call.toString();
+    }
+
+    private String genIntExpr(int depth) {
+        int r = random.nextInt(100);
+        if (depth <= 0 || r < 40) {
+            r = random.nextInt(100);
+            if (r < 55 && numAssignedVars > 0)
+                return "v" + random.nextInt(numAssignedVars);
+            ArrayList<Integer> intArgs = getArgs(false);
+            if (r < 70 && !intArgs.isEmpty())
+                return "a" + intArgs.get(random.nextInt(intArgs.size()));
+            if (r < 80)
+                return "f" + random.nextInt(NUM_FIELDS);
+            if (r < 85)
+                return "next.f" + random.nextInt(NUM_FIELDS);
+            return genLiteral();
+        }
+
+        r = random.nextInt(100);
+        if (r < 5)
+            return "-(" + genIntExpr(depth - 1) + ")";
+        if (r < 15)
+            return "(" + genIntExpr(depth - 1) + ") / " + (2 + random.nextInt(8));
+        String op = r < 50 ? " + " : r < 80 ? " - " : " * ";
+        return "(" + genIntExpr(depth - 1) + ")" + op + "(" + genIntExpr(depth - 1) + ")";
+    }
+
+    private String genBoolExpr(int depth) {
+        int r = random.nextInt(100);
+        ArrayList<Integer> boolArgs = getArgs(true);
+        if (r < 15 && !boolArgs.isEmpty())
+            return "a" + boolArgs.get(random.nextInt(boolArgs.size()));
+        if (depth > 1 && r < 25)
+            return "!(" + genBoolExpr(depth - 1) + ")";
+        if (depth > 1 && r < 40) {
+            String op = random.nextBoolean() ? " && " : " || ";
+            return "(" + genBoolExpr(depth - 1) + ")" + op + "(" + genBoolExpr(depth - 1) + ")";
+        }
+        String[] ops = {" < ", " > ", " <= ", " >= ", " == ", " != "};
+        String op = ops[random.nextInt(ops.length)];
+        return genIntExpr(depth - 1) + op + genIntExpr(depth - 1);
+    }
+
+    private ArrayList<Integer> getArgs(boolean bool) {
+        ArrayList<Integer> args = new ArrayList<>();
+        for (int i = 0; i < currMeth.boolArgs.length; i++) {
+            if (currMeth.boolArgs[i] == bool)
+                args.add(i);
+        }
+        return args;
+    }
+
+    private String genVar() {
+        return "v" + random.nextInt(opts.pressure);
+    }
+
+    private String genLiteral() {
+        return Integer.toString(random.nextInt(100) - 10);
+    }
+
+    private static String className(int c) {
+        return "C" + c;
+    }
+
+    private void line(String s) {
+        if (!s.isEmpty()) {
+            for (int i = 0; i < indent; i++)
+                sb.append("    ");
+        }
+        sb.append(s).append('\n');
+    }
+
+    public static String generate(Options opts) {
+        return new ProgramGenerator(opts).sb.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options opts = new Options();
+        String outputFile = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-o") && i + 1 < args.length) {
+                outputFile = args[++i];
+                continue;
+            }
+            if (!arg.startsWith("--") || i + 1 >= args.length)
+                usage();
+            long value = parseNum(args[++i]);
+            switch (arg) {
+            case "--seed":
+                opts.seed = value;
+                break;
+            case "--classes":
+                opts.numClasses = (int) value;
+                break;
+            case "--meths":
+                opts.methsPerClass = (int) value;
+                break;
+            case "--overloads":
+                opts.overloads = (int) value;
+                break;
+            case "--length":
+                opts.methLength = (int) value;
+                break;
+            case "--loop-depth":
+                opts.loopDepth = (int) value;
+                break;
+            case "--pressure":
+                opts.pressure = (int) value;
+                break;
+            case "--call-density":
+                opts.callDensity = (int) value;
+                break;
+            case "--call-depth":
+                opts.callDepth = (int) value;
+                break;
+            case "--max-args":
+                opts.maxArgs = (int) value;
+                break;
+            default:
+                usage();
+            }
+        }
+
+        String prog;
+        try {
+            prog = generate(opts);
+        } catch (IllegalArgumentException e) {
+            System.err.println("error: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        if (outputFile == null || outputFile.equals("-")) {
+            System.out.print(prog);
+            System.out.flush();
+        } else {
+            try (Writer writer = new BufferedWriter(new FileWriter(outputFile))) {
+                writer.write(prog);
+            }
+        }
+    }
+
+    private static long parseNum(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            System.err.println("error: not a number: " + s);
+            System.exit(2);
+            return 0;
+        }
+    }
+
+    private static void usage() {
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
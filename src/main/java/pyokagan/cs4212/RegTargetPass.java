@@ -12,9 +12,9 @@ public class RegTargetPass {
 
     private LivePass livePass;
 
-    private RegTargetPass(Ir.Meth meth, DomPass domPass, DomFrontierPass domFrontierPass) {
+    private RegTargetPass(Ir.Meth meth, DomPass domPass, DomFrontierPass domFrontierPass, LivePass livePass) {
         this.meth = meth;
-        this.livePass = new LivePass(meth);
+        this.livePass = livePass;
 
         for (Ir.Block block : meth.blocks) {
             HashSet<Ir.Var> liveVars = new HashSet<>();
@@ -24,10 +24,13 @@ public class RegTargetPass {
                 Ir.Stmt stmt = block.stmts.get(i);
 
                 HashSet<Ir.Var> liveVarsAfterStmt = new HashSet<>(liveVars);
-                for (Ir.Var v : stmt.getDefs())
-                    liveVars.remove(v);
-                for (Ir.Var v : stmt.getUses())
-                    liveVars.add(v);
+                for (int j = 0; j < stmt.numDefs(); j++)
+                    liveVars.remove(stmt.getDef(j));
+                for (int j = 0; j < stmt.numUses(); j++) {
+                    Ir.Var v = stmt.getUse(j);
+                    if (v != null)
+                        liveVars.add(v);
+                }
 
                 if (stmt instanceof Ir.CallStmt) {
                     Ir.CallStmt callStmt = (Ir.CallStmt) stmt;
@@ -64,13 +67,11 @@ public class RegTargetPass {
         }
 
         // Reconstruct SSA
-        for (Ir.Var v : modifiedVars) {
-            SsaReconstructPass.run(meth, v, domPass, domFrontierPass);
-        }
+        SsaReconstructPass.run(meth, modifiedVars, domPass, domFrontierPass);
     }
 
-    public static void run(Ir.Meth meth, DomPass domPass, DomFrontierPass domFrontierPass) {
-        new RegTargetPass(meth, domPass, domFrontierPass);
+    public static void run(Ir.Meth meth, DomPass domPass, DomFrontierPass domFrontierPass, LivePass livePass) {
+        new RegTargetPass(meth, domPass, domFrontierPass, livePass);
     }
 
     private Ir.Var genTemp(Ast.Typ typ) {
@@ -0,0 +1,393 @@
+package pyokagan.cs4212;
+
+import java.util.*;
+
+/**
+ * Sparse conditional constant propagation.
+ *
+ * Constant Propagation with Conditional Branches (Wegman, Zadeck)
+ * https://dl.acm.org/doi/10.1145/103135.103136
+ *
+ * Propagates int, bool and null literals through AssignStmts, BinaryStmts, UnaryStmts and PhiStmts, considering only
+ * the CFG edges that can be taken. Uses of constant vars are then replaced with literals, CmpStmts that always go the
+ * same way become GotoStmts, and blocks that can never be reached are removed.
+ *
+ * Must be run on SSA form. Leaves the blocks in SSA form, with fresh orderings.
+ */
+public class SccpPass {
+    private final Ir.Meth meth;
+
+    // Lattice value of each var: absent if it has no value yet (top), a literal if it is constant, or a VarRval of the
+    // var itself if it is not constant (bottom).
+    private final HashMap<Ir.Var, Ir.Rval> values = new HashMap<>();
+
+    private final HashMap<Ir.Var, ArrayList<Ir.Stmt>> varUses = new HashMap<>();
+    private final HashMap<Ir.Stmt, Ir.Block> stmtBlocks = new HashMap<>();
+    private final HashSet<Ir.Block> executable = new HashSet<>();
+    private final HashSet<Ir.Block> directExecutable = new HashSet<>(); // outgoingDirect edge can be taken
+    private final HashSet<Ir.Block> condExecutable = new HashSet<>(); // outgoingCond edge can be taken
+    private final ArrayDeque<Ir.Block> blockWorklist = new ArrayDeque<>(); // Blocks with a newly executable edge in
+    private final ArrayDeque<Ir.Var> varWorklist = new ArrayDeque<>();
+    private boolean modified;
+
+    private SccpPass(Ir.Meth meth) {
+        this.meth = meth;
+    }
+
+    /**
+     * Returns false if the method was not modified.
+     */
+    public static boolean run(Ir.Meth meth) {
+        SccpPass p = new SccpPass(meth);
+        if (meth.blocks.isEmpty())
+            return false;
+        p.buildUses();
+        p.propagate();
+        p.rewrite();
+        return p.modified;
+    }
+
+    private void buildUses() {
+        HashSet<Ir.Var> defined = new HashSet<>();
+        for (Ir.Block block : meth.blocks) {
+            for (Ir.Stmt stmt : block.stmts) {
+                stmtBlocks.put(stmt, block);
+                for (int i = 0; i < stmt.numUses(); i++) {
+                    Ir.Var v = stmt.getUse(i);
+                    if (v != null)
+                        varUses.computeIfAbsent(v, k -> new ArrayList<>()).add(stmt);
+                }
+                if (stmt instanceof Ir.PhiStmt) {
+                    for (Ir.Var v : ((Ir.PhiStmt) stmt).args) {
+                        if (v != null)
+                            varUses.computeIfAbsent(v, k -> new ArrayList<>()).add(stmt);
+                    }
+                }
+                for (int i = 0; i < stmt.numDefs(); i++) {
+                    if (stmt.getDef(i) != null)
+                        defined.add(stmt.getDef(i));
+                }
+            }
+        }
+
+        // Args, and locals that are read before being assigned, are not constant
+        for (Ir.Var v : varUses.keySet()) {
+            if (!defined.contains(v))
+                values.put(v, new Ir.VarRval(v));
+        }
+    }
+
+    private void propagate() {
+        markExecutable(meth.blocks.get(0));
+        while (!blockWorklist.isEmpty() || !varWorklist.isEmpty()) {
+            while (!blockWorklist.isEmpty()) {
+                Ir.Block block = blockWorklist.remove();
+                if (executable.add(block)) {
+                    for (Ir.Stmt stmt : block.stmts)
+                        visit(stmt, block);
+                } else {
+                    // Only the phis can change when another edge into the block becomes executable
+                    for (Ir.Stmt stmt : block.stmts) {
+                        if (!(stmt instanceof Ir.PhiStmt))
+                            break;
+                        visit(stmt, block);
+                    }
+                }
+            }
+            while (!varWorklist.isEmpty() && blockWorklist.isEmpty()) {
+                Ir.Var v = varWorklist.remove();
+                ArrayList<Ir.Stmt> uses = varUses.get(v);
+                if (uses == null)
+                    continue;
+                for (Ir.Stmt stmt : uses) {
+                    Ir.Block block = stmtBlocks.get(stmt);
+                    if (executable.contains(block))
+                        visit(stmt, block);
+                }
+            }
+        }
+    }
+
+    private void markExecutable(Ir.Block block) {
+        blockWorklist.add(block);
+    }
+
+    private void visit(Ir.Stmt stmt, Ir.Block block) {
+        if (stmt instanceof Ir.PhiStmt) {
+            Ir.PhiStmt phiStmt = (Ir.PhiStmt) stmt;
+            Ir.Rval value = null;
+            for (int i = 0; i < phiStmt.args.size(); i++) {
+                if (!isEdgeExecutable(block.incoming.get(i), block))
+                    continue;
+                Ir.Var arg = phiStmt.args.get(i);
+                value = meet(value, arg == null ? new Ir.VarRval(phiStmt.getDst()) : values.get(arg),
+                        phiStmt.getDst());
+            }
+            setValue(phiStmt.getDst(), value);
+        } else if (stmt instanceof Ir.AssignStmt) {
+            Ir.AssignStmt assignStmt = (Ir.AssignStmt) stmt;
+            setValue(assignStmt.getDst(), getValue(assignStmt.src, assignStmt.getDst()));
+        } else if (stmt instanceof Ir.BinaryStmt) {
+            Ir.BinaryStmt binaryStmt = (Ir.BinaryStmt) stmt;
+            Ir.Var dst = binaryStmt.getDst();
+            Ir.Rval a = getValue(binaryStmt.a, dst);
+            Ir.Rval b = getValue(binaryStmt.b, dst);
+            if (a == null || b == null)
+                return; // Wait for the operands
+            if (isConstant(a) && isConstant(b))
+                setValue(dst, fold(binaryStmt.op, ArmGen.toIntConstant(a), ArmGen.toIntConstant(b), dst));
+            else
+                setValue(dst, new Ir.VarRval(dst));
+        } else if (stmt instanceof Ir.UnaryStmt) {
+            Ir.UnaryStmt unaryStmt = (Ir.UnaryStmt) stmt;
+            Ir.Var dst = unaryStmt.getDst();
+            Ir.Rval a = getValue(unaryStmt.a, dst);
+            if (isConstant(a)) {
+                if (unaryStmt.op != Ir.UnaryOp.NEG)
+                    throw new AssertionError("BUG: unknown unary op " + unaryStmt.op);
+                setValue(dst, new Ir.IntLitRval(-ArmGen.toIntConstant(a)));
+            } else {
+                setValue(dst, a);
+            }
+        } else if (stmt instanceof Ir.CmpStmt) {
+            Ir.CmpStmt cmpStmt = (Ir.CmpStmt) stmt;
+            Ir.Rval a = getValue(cmpStmt.a, null);
+            Ir.Rval b = getValue(cmpStmt.b, null);
+            if (isConstant(a) && isConstant(b) && block.outgoingDirect != block.outgoingCond) {
+                if (evalCond(cmpStmt.op, ArmGen.toIntConstant(a), ArmGen.toIntConstant(b)))
+                    setCondExecutable(block);
+                else
+                    setDirectExecutable(block);
+            } else {
+                setCondExecutable(block);
+                setDirectExecutable(block);
+            }
+        } else if (stmt instanceof Ir.GotoStmt) {
+            setDirectExecutable(block);
+        } else {
+            // Anything else defined (calls, field accesses, readln, new) is not constant
+            for (int i = 0; i < stmt.numDefs(); i++) {
+                Ir.Var def = stmt.getDef(i);
+                if (def != null)
+                    setValue(def, new Ir.VarRval(def));
+            }
+        }
+    }
+
+    private void setDirectExecutable(Ir.Block block) {
+        if (directExecutable.add(block))
+            markExecutable(block.outgoingDirect);
+    }
+
+    private void setCondExecutable(Ir.Block block) {
+        if (condExecutable.add(block))
+            markExecutable(block.outgoingCond);
+    }
+
+    private boolean isEdgeExecutable(Ir.Block from, Ir.Block to) {
+        return (from.outgoingDirect == to && directExecutable.contains(from))
+                || (from.outgoingCond == to && condExecutable.contains(from));
+    }
+
+    /**
+     * Returns the lattice value of rv, where a non-constant value is represented by a VarRval of dst.
+     */
+    private Ir.Rval getValue(Ir.Rval rv, Ir.Var dst) {
+        if (rv instanceof Ir.IntLitRval || rv instanceof Ir.BoolLitRval || rv instanceof Ir.NullLitRval)
+            return rv;
+        if (rv instanceof Ir.VarRval) {
+            Ir.Rval value = values.get(((Ir.VarRval) rv).v);
+            if (value == null || isConstant(value))
+                return value;
+        }
+        return new Ir.VarRval(dst);
+    }
+
+    /**
+     * Lowers the value of v to its meet with value. Values only ever go down the lattice, so each var is put on the
+     * worklist at most twice.
+     */
+    private void setValue(Ir.Var v, Ir.Rval value) {
+        if (value == null)
+            return;
+        Ir.Rval oldValue = values.get(v);
+        Ir.Rval newValue = isConstant(value) ? value : new Ir.VarRval(v);
+        if (oldValue != null) {
+            if (!isConstant(oldValue) || (isConstant(newValue) && isSameConstant(oldValue, newValue)))
+                return;
+            newValue = new Ir.VarRval(v);
+        }
+        values.put(v, newValue);
+        varWorklist.add(v);
+    }
+
+    private static Ir.Rval meet(Ir.Rval a, Ir.Rval b, Ir.Var dst) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        if (isConstant(a) && isConstant(b) && isSameConstant(a, b))
+            return a;
+        return new Ir.VarRval(dst);
+    }
+
+    private static boolean isConstant(Ir.Rval value) {
+        return value != null && !(value instanceof Ir.VarRval);
+    }
+
+    private static boolean isSameConstant(Ir.Rval a, Ir.Rval b) {
+        return a.getClass() == b.getClass() && ArmGen.toIntConstant(a) == ArmGen.toIntConstant(b);
+    }
+
+    private static Ir.Rval fold(Ir.BinaryOp op, int a, int b, Ir.Var dst) {
+        switch (op) {
+        case PLUS:
+            return new Ir.IntLitRval(a + b);
+        case MINUS:
+            return new Ir.IntLitRval(a - b);
+        case MUL:
+            return new Ir.IntLitRval(a * b);
+        case DIV:
+            // Leave division by zero to the runtime
+            return b == 0 ? new Ir.VarRval(dst) : new Ir.IntLitRval(a / b);
+        case RSB:
+            return new Ir.IntLitRval(b - a);
+        default:
+            throw new AssertionError("BUG: unknown binary op " + op);
+        }
+    }
+
+    private static boolean evalCond(Ir.CondOp op, int a, int b) {
+        switch (op) {
+        case LT:
+            return a < b;
+        case GT:
+            return a > b;
+        case LE:
+            return a <= b;
+        case GE:
+            return a >= b;
+        case EQ:
+            return a == b;
+        case NE:
+            return a != b;
+        default:
+            throw new AssertionError("BUG: unknown cond op " + op);
+        }
+    }
+
+    private void rewrite() {
+        // Replace uses of constant vars with literals
+        for (Ir.Block block : meth.blocks) {
+            if (!executable.contains(block))
+                continue;
+            for (Ir.Stmt stmt : block.stmts) {
+                // The target of a FieldAccessStmt must stay a var, as its class is needed to find the field
+                if (stmt instanceof Ir.FieldAccessStmt)
+                    continue;
+                for (int i = 0; i < stmt.numRvals(); i++) {
+                    Ir.Rval rv = stmt.getRval(i);
+                    if (!(rv instanceof Ir.VarRval))
+                        continue;
+                    Ir.Rval value = values.get(((Ir.VarRval) rv).v);
+                    if (isConstant(value)) {
+                        stmt.setRval(i, value);
+                        modified = true;
+                    }
+                }
+            }
+        }
+
+        // Fold branches that always go the same way
+        for (Ir.Block block : meth.blocks) {
+            if (!executable.contains(block) || block.outgoingCond == null)
+                continue;
+            if (directExecutable.contains(block) && condExecutable.contains(block))
+                continue;
+            Ir.Block target = directExecutable.contains(block) ? block.outgoingDirect : block.outgoingCond;
+            Ir.Block dropped = directExecutable.contains(block) ? block.outgoingCond : block.outgoingDirect;
+            removeIncoming(dropped, block);
+            block.stmts.set(block.stmts.size() - 1, new Ir.GotoStmt(target.label));
+            block.outgoingDirect = target;
+            block.outgoingCond = null;
+            modified = true;
+        }
+
+        // Remove unreachable blocks, and their edges into reachable ones
+        ArrayList<Ir.Block> newBlocks = new ArrayList<>();
+        for (Ir.Block block : meth.blocks) {
+            if (executable.contains(block)) {
+                newBlocks.add(block);
+                continue;
+            }
+            if (block.outgoingDirect != null && executable.contains(block.outgoingDirect))
+                removeIncoming(block.outgoingDirect, block);
+            if (block.outgoingCond != null && executable.contains(block.outgoingCond))
+                removeIncoming(block.outgoingCond, block);
+            modified = true;
+        }
+        meth.blocks = newBlocks;
+
+        // Remove the defs of constant vars, unless they are still used as vars (e.g. by phis)
+        HashSet<Ir.Var> usedVars = new HashSet<>();
+        for (Ir.Block block : meth.blocks) {
+            for (Ir.Stmt stmt : block.stmts) {
+                for (int i = 0; i < stmt.numUses(); i++)
+                    usedVars.add(stmt.getUse(i));
+                if (stmt instanceof Ir.PhiStmt)
+                    usedVars.addAll(((Ir.PhiStmt) stmt).args);
+            }
+        }
+        for (Ir.Block block : meth.blocks) {
+            ArrayList<Ir.Stmt> newStmts = new ArrayList<>();
+            ArrayList<Ir.Stmt> phiAssigns = new ArrayList<>(); // Must go after all phis
+            int numPhis = 0;
+            for (Ir.Stmt stmt : block.stmts) {
+                boolean pure = stmt instanceof Ir.PhiStmt || stmt instanceof Ir.AssignStmt
+                        || stmt instanceof Ir.BinaryStmt || stmt instanceof Ir.UnaryStmt;
+                Ir.Var def = pure ? stmt.getDef(0) : null;
+                Ir.Rval value = def != null ? values.get(def) : null;
+                if (!isConstant(value) || (stmt instanceof Ir.AssignStmt && usedVars.contains(def))) {
+                    newStmts.add(stmt);
+                    if (stmt instanceof Ir.PhiStmt)
+                        numPhis++;
+                    continue;
+                }
+                modified = true;
+                if (!usedVars.contains(def))
+                    continue;
+                if (stmt instanceof Ir.PhiStmt)
+                    phiAssigns.add(new Ir.AssignStmt(def, value));
+                else
+                    newStmts.add(new Ir.AssignStmt(def, value));
+            }
+            newStmts.addAll(numPhis, phiAssigns);
+            block.stmts = newStmts;
+        }
+
+        if (!modified)
+            return;
+
+        // Re-number blocks, as new blocks are named after the number of blocks
+        int blockIndex = 0;
+        for (Ir.Block block : meth.blocks)
+            block.label.name = "B" + (blockIndex++);
+
+        DfsOrder dfs = DfsOrder.numberBlocks(meth, meth.blocks);
+        if (dfs.numVisited != meth.blocks.size())
+            throw new AssertionError("BUG: SccpPass left unreachable blocks in " + meth.name);
+    }
+
+    /**
+     * Removes the edge from pred into block, along with the corresponding phi args.
+     */
+    private static void removeIncoming(Ir.Block block, Ir.Block pred) {
+        int idx = block.incoming.indexOf(pred);
+        block.incoming.remove(idx);
+        for (Ir.Stmt stmt : block.stmts) {
+            if (!(stmt instanceof Ir.PhiStmt))
+                break;
+            ((Ir.PhiStmt) stmt).args.remove(idx);
+        }
+    }
+}
@@ -9,7 +9,7 @@ import java.util.*;
  */
 public class SpillPass {
 
-    private static int NUM_REGISTERS = 13;
+    private static final int NUM_REGISTERS = 13;
 
     private final Ir.Meth meth;
     private final DomPass domPass;
@@ -17,6 +17,7 @@ public class SpillPass {
     private HashMap<Ir.Var, Ir.Block> defLocations = new HashMap<>();
     private HashMap<Ir.Block, BlockInfo> blockInfos = new HashMap<>();
     private HashSet<Ir.Var> modifiedVars = new HashSet<>();
+    private DataflowSolver<HashMap<Ir.Var, Integer>> nextUse;
 
     private SpillPass(Ir.Meth meth, DomPass domPass, DomFrontierPass domFrontierPass) {
         this.meth = meth;
@@ -34,9 +35,7 @@ public class SpillPass {
         sp.computeWexit(NUM_REGISTERS);
         sp.doSpilling(NUM_REGISTERS);
         // Reconstruct SSA
-        for (Ir.Var v : sp.modifiedVars) {
-            SsaReconstructPass.run(meth, v, domPass, domFrontierPass);
-        }
+        SsaReconstructPass.run(meth, sp.modifiedVars, domPass, domFrontierPass);
     }
 
     private void computeDefLocations() {
@@ -46,7 +45,8 @@ public class SpillPass {
         }
         for (Ir.Block block : meth.blocks) {
             for (Ir.Stmt stmt : block.stmts) {
-                for (Ir.Var def : stmt.getDefs()) {
+                for (int i = 0; i < stmt.numDefs(); i++) {
+                    Ir.Var def = stmt.getDef(i);
                     if (defLocations.containsKey(def))
                         throw new AssertionError("BUG: multiple defs of " + def + ", last loc in " + defLocations.get(def));
                     defLocations.put(def, block);
@@ -56,81 +56,99 @@ public class SpillPass {
     }
 
     private void computeNextUse() {
-        boolean hasChange = true;
-        while (hasChange) {
-            hasChange = false;
-
-            for (Ir.Block block : meth.blocksPo) {
-                BlockInfo blockInfo = blockInfos.get(block);
-
-                // Compute OUT[B]
-                for (Ir.Block succ : block.getOutgoing()) {
-                    // Add nextUseIns
-                    for (Map.Entry<Ir.Var, Integer> entry : blockInfos.get(succ).nextUseIns.entrySet()) {
-                        Ir.Var k = entry.getKey();
-                        int v = entry.getValue();
-
-                        if (!blockInfo.nextUseOuts.containsKey(k) || v < blockInfo.nextUseOuts.get(k)) {
-                            blockInfo.nextUseOuts.put(k, v);
-                        }
-                    }
-                }
+        nextUse = new DataflowSolver<>(meth, new DataflowSolver.Problem<HashMap<Ir.Var, Integer>>() {
+            // Vars that are used before being defined in the block, and vars that are defined in the block
+            private HashMap<Ir.Block, HashSet<Ir.Var>> definedOrSeens = new HashMap<>();
+
+            @Override
+            public boolean isBackward() {
+                return true;
+            }
+
+            @Override
+            public HashMap<Ir.Var, Integer> initMerge(Ir.Block block) {
+                return new HashMap<>();
+            }
 
+            @Override
+            public HashMap<Ir.Var, Integer> initResult(Ir.Block block) {
+                // Record down the first usage of vars used before being defined in the block.
+                // These do not depend on OUT[B].
+                HashMap<Ir.Var, Integer> nextUseIns = new HashMap<>();
                 HashSet<Ir.Var> definedOrSeen = new HashSet<>();
                 for (int i = 0; i < block.stmts.size(); i++) {
                     Ir.Stmt stmt = block.stmts.get(i);
-                    HashSet<Ir.Var> uses = new HashSet<>(stmt.getUses());
-                    if (stmt instanceof Ir.JumpStmt)
-                        uses.addAll(LivePass.getJumpUses(block));
-                    for (Ir.Var use : uses) {
-                        // Ignore vars already defined or seen
-                        if (definedOrSeen.contains(use))
-                            continue;
-
-                        // Record down first usage of the var
-                        if (!blockInfo.nextUseIns.containsKey(use) || i < blockInfo.nextUseIns.get(use)) {
-                            hasChange = true;
-                            blockInfo.nextUseIns.put(use, i);
+                    // Ignore vars already defined or seen
+                    for (int j = 0; j < stmt.numUses(); j++) {
+                        Ir.Var use = stmt.getUse(j);
+                        if (use != null && definedOrSeen.add(use))
+                            nextUseIns.put(use, i);
+                    }
+                    if (stmt instanceof Ir.JumpStmt) {
+                        for (Ir.Var use : getPhiUses(block)) {
+                            if (definedOrSeen.add(use))
+                                nextUseIns.put(use, i);
                         }
-                        definedOrSeen.add(use);
                     }
 
-                    for (Ir.Var def : stmt.getDefs()) {
+                    for (int j = 0; j < stmt.numDefs(); j++) {
+                        Ir.Var def = stmt.getDef(j);
                         if (def != null)
                             definedOrSeen.add(def);
                     }
                 }
+                definedOrSeens.put(block, definedOrSeen);
+                return nextUseIns;
+            }
+
+            @Override
+            public void meet(Ir.Block block, HashMap<Ir.Var, Integer> nextUseOuts, HashMap<Ir.Var, Integer> succNextUseIns) {
+                for (Map.Entry<Ir.Var, Integer> entry : succNextUseIns.entrySet()) {
+                    Ir.Var k = entry.getKey();
+                    int v = entry.getValue();
+
+                    if (!nextUseOuts.containsKey(k) || v < nextUseOuts.get(k)) {
+                        nextUseOuts.put(k, v);
+                    }
+                }
+            }
 
-                // Calculate the rest
-                for (Map.Entry<Ir.Var, Integer> entry : blockInfo.nextUseOuts.entrySet()) {
+            @Override
+            public boolean transfer(Ir.Block block, HashMap<Ir.Var, Integer> nextUseOuts, HashMap<Ir.Var, Integer> nextUseIns) {
+                HashSet<Ir.Var> definedOrSeen = definedOrSeens.get(block);
+                boolean hasChange = false;
+                for (Map.Entry<Ir.Var, Integer> entry : nextUseOuts.entrySet()) {
                     Ir.Var k = entry.getKey();
                     if (definedOrSeen.contains(k))
-                        continue; // Already handled in the loop above
+                        continue; // Already handled by initResult()
                     int newV = entry.getValue() + block.stmts.size();
-                    if (!blockInfo.nextUseIns.containsKey(k) || newV != blockInfo.nextUseIns.get(k)) {
+                    if (!nextUseIns.containsKey(k) || newV != nextUseIns.get(k)) {
                         hasChange = true;
-                        blockInfo.nextUseIns.put(k, newV);
+                        nextUseIns.put(k, newV);
                     }
                 }
+                return hasChange;
             }
-        }
+        });
     }
 
     private void minAlgorithm(Ir.Block block, HashSet<Ir.Var> W, HashSet<Ir.Var> S, int K, boolean dry) {
         // W: variables in a register. |W| < k
         // S: variables that have already been spilled
 
+        NextUseTable nextUseDist = new NextUseTable(block);
         int i = 0;
         // Handle phi stmts first
         ArrayList<Ir.PhiStmt> phiStmts = new ArrayList<>();
         for (; i < block.stmts.size() && block.stmts.get(i) instanceof Ir.PhiStmt; i++) {
             phiStmts.add((Ir.PhiStmt) block.stmts.get(i));
+            nextUseDist.advance();
         }
         if (dry) {
             // Greedily allocate registers to phiStmts for now
             for (Ir.PhiStmt phiStmt : phiStmts)
                 W.addAll(phiStmt.getDefs());
-            limit(block, W, S, i, K, dry);
+            limit(nextUseDist, W, S, K, dry);
         } else {
             int memoryPressure = phiStmts.size();
             // If memoryPressure > K, some of the incoming vars are already spilled.
@@ -153,7 +171,13 @@ public class SpillPass {
             if (memoryPressure > K)
                 throw new AssertionError("BUG: memoryPressure > K");
 
-            limit(block, W, S, i, K, dry);
+            limit(nextUseDist, W, S, K, dry);
+
+            // Phi nodes that did not make it into a register live in memory instead
+            for (Ir.PhiStmt phiStmt : phiStmts) {
+                if (!phiStmt.memory && !W.contains(phiStmt.getDst()))
+                    phiStmt.memory = true;
+            }
         }
 
         // Handle the rest of the stmts
@@ -161,7 +185,11 @@ public class SpillPass {
             Ir.Stmt stmt = block.stmts.get(i);
 
             HashSet<Ir.Var> R = new HashSet<>();
-            R.addAll(stmt.getUses());
+            for (int j = 0; j < stmt.numUses(); j++) {
+                Ir.Var use = stmt.getUse(j);
+                if (use != null)
+                    R.add(use);
+            }
             // Ensure that the vars used by successive phi nodes are loaded into registers
             //if (stmt instanceof Ir.JumpStmt)
             //    R.addAll(LivePass.getJumpUses(block));
@@ -172,14 +200,14 @@ public class SpillPass {
             }
             int m = K;
             if (stmt instanceof Ir.CallStmt)
-                m -= 4; // r0, r1, r2, r3 will be overwritten by the called function
+                m -= 5; // r0, r1, r2, r3 and r12 (ip) may be overwritten by the called function
             else
-                m -= stmt.getDefs().size();
-            ArrayList<Ir.SpillStmt> spillStmts = limit(block, W, S, i, m, dry);
+                m -= stmt.numDefs();
+            ArrayList<Ir.SpillStmt> spillStmts = limit(nextUseDist, W, S, m, dry);
             block.stmts.addAll(i, spillStmts);
             i += spillStmts.size();
-            for (Ir.Var def : stmt.getDefs()) {
-                W.add(Objects.requireNonNull(def));
+            for (int j = 0; j < stmt.numDefs(); j++) {
+                W.add(Objects.requireNonNull(stmt.getDef(j)));
             }
 
             // Add reloads for vars in R in front of insn
@@ -191,43 +219,20 @@ public class SpillPass {
                     i++;
                 }
             }
-        }
-    }
 
-    private HashMap<Ir.Var, Integer> computeNextUseDist(Ir.Block block, int insnIdx) {
-        HashMap<Ir.Var, Integer> nextUseDist = new HashMap<>();
-        BlockInfo blockInfo = blockInfos.get(block);
-
-        for (int i = insnIdx; i < block.stmts.size(); i++) {
-            Ir.Stmt stmt = block.stmts.get(i);
-            HashSet<Ir.Var> uses = new HashSet<>(stmt.getUses());
-            if (stmt instanceof Ir.JumpStmt)
-                uses.addAll(LivePass.getJumpUses(block));
-            for (Ir.Var use : uses) {
-                if (!nextUseDist.containsKey(use))
-                    nextUseDist.put(use, i - insnIdx);
-            }
+            nextUseDist.advance();
         }
-        for (Map.Entry<Ir.Var, Integer> entry : blockInfo.nextUseOuts.entrySet()) {
-            Ir.Var k = entry.getKey();
-            int v = entry.getValue();
-            if (!nextUseDist.containsKey(k))
-                nextUseDist.put(k, block.stmts.size() - insnIdx + v);
-        }
-        return nextUseDist;
     }
 
-    private ArrayList<Ir.SpillStmt> limit(Ir.Block block, HashSet<Ir.Var> W, HashSet<Ir.Var> S, int insnIdx, int m, boolean dry) {
+    private ArrayList<Ir.SpillStmt> limit(NextUseTable nextUseDist, HashSet<Ir.Var> W, HashSet<Ir.Var> S, int m, boolean dry) {
         if (W.size() <= m)
             return new ArrayList<>(); // No need to perform any spilling
 
-        final HashMap<Ir.Var, Integer> nextUseDist = computeNextUseDist(block, insnIdx);
-
         // Sort according to next use distance
         ArrayList<Ir.Var> sortedW = new ArrayList<>(W);
         Collections.sort(sortedW, new Comparator<Ir.Var>() {
             public int compare(Ir.Var a, Ir.Var b) {
-                return nextUseDist.getOrDefault(a, Integer.MAX_VALUE) - nextUseDist.getOrDefault(b, Integer.MAX_VALUE);
+                return nextUseDist.getDist(a) - nextUseDist.getDist(b);
             }
         });
 
@@ -235,7 +240,7 @@ public class SpillPass {
 
         for (int i = m; i < sortedW.size(); i++) {
             Ir.Var v = sortedW.get(i);
-            if (!dry && !S.contains(v) && nextUseDist.getOrDefault(v, Integer.MAX_VALUE) < Integer.MAX_VALUE) {
+            if (!dry && !S.contains(v) && nextUseDist.getDist(v) < Integer.MAX_VALUE) {
                 spillStmts.add(new Ir.SpillStmt(v));
                 v.phiWeb.needStack = true;
                 modifiedVars.add(v);
@@ -307,8 +312,13 @@ public class SpillPass {
                 // Temporarily remove last stmt
                 Ir.Stmt lastStmt = pred.stmts.remove(pred.stmts.size() - 1);
 
-                // All vars in ((block.Sentry - pred.Sexit) + block.phiMem) intersect pred.Wexit must be spilled
+                // All vars in ((block.Sentry - pred.Sexit) + block.phiMem) intersect pred.Wexit must be spilled, as well
+                // as the vars live into the block that are not in block.Wentry, as they will be reloaded before use.
                 HashSet<Ir.Var> needSpill = new HashSet<>(blockInfo.Sentry);
+                for (Ir.Var v : nextUse.getIn(block).keySet()) {
+                    if (!blockInfo.Wentry.contains(v))
+                        needSpill.add(v);
+                }
                 needSpill.removeAll(predInfo.Sexit);
                 int incomingIdx = block.incoming.indexOf(pred);
                 for (Ir.Stmt stmt : block.stmts) {
@@ -323,11 +333,21 @@ public class SpillPass {
                     pred.stmts.add(new Ir.SpillStmt(v));
                 }
 
-                // All vars in block.Wentry - pred.Wexit must be reloaded
+                // All vars in block.Wentry - pred.Wexit must be reloaded, as well as the args of register phis
+                // that are not in pred.Wexit. (The phi may have been decided to be in a register using the
+                // approximate Wexit of a pred that had not been visited yet, e.g. along a back edge)
                 HashSet<Ir.Var> needReload = new HashSet<>(blockInfo.Wentry);
+                for (Ir.Stmt stmt : block.stmts) {
+                    if (!(stmt instanceof Ir.PhiStmt))
+                        break;
+                    Ir.PhiStmt phiStmt = (Ir.PhiStmt) stmt;
+                    if (!phiStmt.memory && phiStmt.args.get(incomingIdx) != null)
+                        needReload.add(phiStmt.args.get(incomingIdx));
+                }
                 needReload.removeAll(predInfo.Wexit);
                 for (Ir.Var v : needReload) {
                     pred.stmts.add(new Ir.ReloadStmt(v));
+                    v.phiWeb.needStack = true;
                     modifiedVars.add(v);
                 }
 
@@ -359,13 +379,35 @@ public class SpillPass {
             }
         }
 
-        final HashMap<Ir.Var, Integer> nextUseDist = computeNextUseDist(block, 0);
-        ArrayList<Ir.Var> sortedCand = new ArrayList<>(cand);
-        Collections.sort(sortedCand, new Comparator<Ir.Var>() {
+        final NextUseTable nextUseDist = new NextUseTable(block);
+        Comparator<Ir.Var> byNextUse = new Comparator<Ir.Var>() {
             public int compare(Ir.Var a, Ir.Var b) {
-                return nextUseDist.getOrDefault(a, Integer.MAX_VALUE) - nextUseDist.getOrDefault(b, Integer.MAX_VALUE);
+                return nextUseDist.getDist(a) - nextUseDist.getDist(b);
             }
-        });
+        };
+
+        // The phi nodes that will be put in registers (see minAlgorithm()) need registers on entry as well
+        for (Ir.Stmt stmt : block.stmts) {
+            if (!(stmt instanceof Ir.PhiStmt))
+                break;
+            Ir.PhiStmt phiStmt = (Ir.PhiStmt) stmt;
+            boolean isMemory = false;
+            for (int j = 0; j < block.incoming.size(); j++) {
+                if (!blockInfos.get(block.incoming.get(j)).Wexit.contains(phiStmt.args.get(j)))
+                    isMemory = true;
+            }
+            if (!isMemory)
+                K--;
+        }
+
+        if (take.size() > K) {
+            ArrayList<Ir.Var> sortedTake = new ArrayList<>(take);
+            Collections.sort(sortedTake, byNextUse);
+            take = new HashSet<>(sortedTake.subList(0, K));
+        }
+
+        ArrayList<Ir.Var> sortedCand = new ArrayList<>(cand);
+        Collections.sort(sortedCand, byNextUse);
 
         int extra = K - take.size();
         for (int i = 0; i < extra && i < sortedCand.size(); i++) {
@@ -380,13 +422,35 @@ public class SpillPass {
                 if (!domPass.isDominate(defLocation, pred))
                     dominates = false;
             }
-            if (dominates && nextUseDist.getOrDefault(v, Integer.MAX_VALUE) < Integer.MAX_VALUE)
+            if (dominates && nextUseDist.getDist(v) < Integer.MAX_VALUE)
                 take.add(v);
         }
 
         return take;
     }
 
+    /**
+     * Return union of vars that phi nodes in successive blocks use, including memory phi nodes.
+     *
+     * Unlike LivePass.getJumpUses(), the args of memory phi nodes are counted as well: they must still be around at
+     * the end of the block so that the spill/reload coupling can spill them there. Otherwise they would be dropped
+     * from W without being spilled once the phi node is marked as a memory phi.
+     */
+    private static Set<Ir.Var> getPhiUses(Ir.Block block) {
+        HashSet<Ir.Var> uses = new HashSet<>();
+        for (Ir.Block succ : block.getOutgoing()) {
+            int incomingIdx = succ.incoming.indexOf(block);
+            for (Ir.Stmt stmt : succ.stmts) {
+                if (!(stmt instanceof Ir.PhiStmt))
+                    break;
+                Ir.Var arg = ((Ir.PhiStmt) stmt).args.get(incomingIdx);
+                if (arg != null)
+                    uses.add(arg);
+            }
+        }
+        return uses;
+    }
+
     private HashSet<Ir.Var> computeSentry(Ir.Block block) {
         BlockInfo blockInfo = blockInfos.get(block);
 
@@ -401,9 +465,71 @@ public class SpillPass {
         return S;
     }
 
+    /**
+     * Next-use distances of vars from the current stmt of a block, computed with a single backward sweep over the
+     * block. The stmts of the block are visited in order with advance(), which only updates the vars used by the
+     * stmt that was passed over.
+     *
+     * Distances are counted in terms of the stmts of the block at the time the table was built, so spill and reload
+     * stmts inserted in front of the current stmt do not affect them.
+     */
+    private class NextUseTable {
+        private final HashMap<Ir.Var, Integer> nextUses = new HashMap<>(); // Position of the next use of each var
+        private final Ir.Var[][] stmtUses; // Vars used by each stmt
+        private final int[][] stmtNextUses; // Position of the next use of each of those vars after the stmt, or -1
+        private int pos;
+
+        private NextUseTable(Ir.Block block) {
+            int numStmts = block.stmts.size();
+            stmtUses = new Ir.Var[numStmts][];
+            stmtNextUses = new int[numStmts][];
+
+            for (Map.Entry<Ir.Var, Integer> entry : nextUse.getOut(block).entrySet())
+                nextUses.put(entry.getKey(), numStmts + entry.getValue());
+
+            HashSet<Ir.Var> uses = new HashSet<>();
+            for (int i = numStmts - 1; i >= 0; i--) {
+                Ir.Stmt stmt = block.stmts.get(i);
+                uses.clear();
+                for (int j = 0; j < stmt.numUses(); j++) {
+                    Ir.Var use = stmt.getUse(j);
+                    if (use != null)
+                        uses.add(use);
+                }
+                if (stmt instanceof Ir.JumpStmt)
+                    uses.addAll(getPhiUses(block));
+                stmtUses[i] = uses.toArray(new Ir.Var[uses.size()]);
+                stmtNextUses[i] = new int[stmtUses[i].length];
+                for (int j = 0; j < stmtUses[i].length; j++) {
+                    Integer nextPos = nextUses.put(stmtUses[i][j], i);
+                    stmtNextUses[i][j] = nextPos != null ? nextPos : -1;
+                }
+            }
+        }
+
+        /**
+         * Returns the distance to the next use of v, or Integer.MAX_VALUE if it is not used again.
+         */
+        private int getDist(Ir.Var v) {
+            Integer nextPos = nextUses.get(v);
+            return nextPos != null ? nextPos - pos : Integer.MAX_VALUE;
+        }
+
+        /**
+         * Moves on to the next stmt of the block.
+         */
+        private void advance() {
+            for (int j = 0; j < stmtUses[pos].length; j++) {
+                if (stmtNextUses[pos][j] >= 0)
+                    nextUses.put(stmtUses[pos][j], stmtNextUses[pos][j]);
+                else
+                    nextUses.remove(stmtUses[pos][j]);
+            }
+            pos++;
+        }
+    }
+
     private static class BlockInfo {
-        private HashMap<Ir.Var, Integer> nextUseIns = new HashMap<>();
-        private HashMap<Ir.Var, Integer> nextUseOuts = new HashMap<>();
         private HashSet<Ir.Var> Wexit = new HashSet<>(); // Variables in registers on exit from the block
         private HashSet<Ir.Var> Sexit = new HashSet<>(); // Variables that have been spilled on exit from the block
         private HashSet<Ir.Var> Wentry = new HashSet<>(); // Variables in registers on entry from the block
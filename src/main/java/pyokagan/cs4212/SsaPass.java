@@ -32,63 +32,46 @@ public class SsaPass {
     }
 
     private void phiPass() {
+        // Find the vars that are live across blocks, and the blocks that define each var, in a single sweep
         HashSet<Ir.Var> globalVars = new HashSet<>();
+        HashMap<Ir.Var, ArrayList<Ir.Block>> defSites = new HashMap<>();
         for (Ir.Block block : meth.blocks) {
             HashSet<Ir.Var> varKill = new HashSet<>();
 
             for (Ir.Stmt stmt : block.stmts) {
-                for (Ir.Var v : stmt.getUses()) {
-                    if (!varKill.contains(v))
+                for (int i = 0; i < stmt.numUses(); i++) {
+                    Ir.Var v = stmt.getUse(i);
+                    if (v != null && !varKill.contains(v))
                         globalVars.add(v);
                 }
 
-                varKill.addAll(stmt.getDefs());
+                for (int i = 0; i < stmt.numDefs(); i++) {
+                    Ir.Var v = stmt.getDef(i);
+                    if (varKill.add(v))
+                        defSites.computeIfAbsent(v, k -> new ArrayList<>()).add(block);
+                }
             }
         }
 
         for (Ir.Var v : meth.args) {
             if (globalVars.contains(v))
-                phiPass(v);
+                phiPass(v, defSites.get(v));
         }
         for (Ir.Var v : meth.locals) {
             if (globalVars.contains(v))
-                phiPass(v);
+                phiPass(v, defSites.get(v));
         }
     }
 
-    private void phiPass(Ir.Var v) {
-        HashSet<Ir.Block> F = new HashSet<>(); // set of basic blocks where phi was added
-        HashSet<Ir.Block> W = new HashSet<>(); // set of basic blocks that contain definitions of v
-
-        HashSet<Ir.Block> defs = new HashSet<>(); // set of basic blocks that actually contain definitions of v
-        for (Ir.Block block : meth.blocks) {
-            for (Ir.Stmt stmt : block.stmts) {
-                for (Ir.Var dst : stmt.getDefs()) {
-                    if (dst == v) {
-                        defs.add(block);
-                        break;
-                    }
-                }
-            }
-        }
-
-        for (Ir.Block block : defs) {
-            W.add(block);
-        }
+    /**
+     * Insert phi nodes for v in the iterated dominance frontier of the blocks defining it.
+     */
+    private void phiPass(Ir.Var v, List<Ir.Block> defs) {
+        if (defs == null)
+            return;
 
-        while (!W.isEmpty()) {
-            Ir.Block X = W.iterator().next();
-            W.remove(X);
-            for (Ir.Block Y : domFrontiers.getDomFrontier(X)) {
-                if (F.contains(Y))
-                    continue;
-
-                Y.stmts.add(0, new Ir.PhiStmt(v, Y.incoming.size()));
-                F.add(Y);
-                if (!defs.contains(Y))
-                    W.add(Y);
-            }
-        }
+        for (Ir.Block Y : domFrontiers.getIteratedDomFrontier(defs))
+            Y.stmts.add(0, new Ir.PhiStmt(v, Y.incoming.size()));
     }
 
     private void renamePass() {
@@ -105,18 +88,15 @@ public class SsaPass {
         for (Ir.Block block : dom.getPreorder()) {
             for (Ir.Stmt stmt : block.stmts) {
                 // For each variable read
-                for (Ir.Rval rv : stmt.getRvals()) {
-                    doRval(rv, block);
-                }
-
-                if (stmt instanceof Ir.FieldAssignStmt) {
-                    Ir.FieldAssignStmt fieldAssignStmt = (Ir.FieldAssignStmt) stmt;
-                    fieldAssignStmt.dst = doUse(fieldAssignStmt.dst, block);
+                for (int i = 0; i < stmt.numUses(); i++) {
+                    Ir.Var v = stmt.getUse(i);
+                    if (v != null)
+                        stmt.setUse(i, doUse(v, block));
                 }
 
                 // For each variable defined
-                for (int i = 0; i < stmt.getDefs().size(); i++) {
-                    Ir.Var v = stmt.getDefs().get(i);
+                for (int i = 0; i < stmt.numDefs(); i++) {
+                    Ir.Var v = stmt.getDef(i);
                     if (v == null)
                         continue;
                     updateReachingDef(v, block);
@@ -148,14 +128,6 @@ public class SsaPass {
         meth.locals = newLocals;
     }
 
-    private void doRval(Ir.Rval v, Ir.Block currBlock) {
-        if (!(v instanceof Ir.VarRval))
-            return;
-        Ir.VarRval rv = (Ir.VarRval) v;
-        Ir.Var newVar = doUse(rv.v, currBlock);
-        rv.v = newVar;
-    }
-
     private Ir.Var doUse(Ir.Var use, Ir.Block currBlock) {
         updateReachingDef(use, currBlock);
         Ir.Var reach = reachingDef.get(use);
@@ -188,10 +160,6 @@ public class SsaPass {
     private boolean isDominate(Ir.Block a, Ir.Block b) {
         Objects.requireNonNull(a);
         Objects.requireNonNull(b);
-        while (b != null && b != a) {
-            b = dom.getIdom(b);
-        }
-
-        return b == a;
+        return dom.isDominate(a, b);
     }
 }
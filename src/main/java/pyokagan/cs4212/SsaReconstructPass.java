@@ -4,183 +4,261 @@ import java.util.*;
 
 /**
  * Reconstruct SSA form.
+ *
+ * SpillPass and RegTargetPass add new definitions (reloads, call preps) of existing vars.
+ * This pass gives each definition of such a var a new var of its own, and rewrites the uses of the var to the
+ * definition that reaches them, inserting phi nodes where needed.
+ *
+ * All modified vars are repaired together: a single sweep over the method finds the definitions of every modified var
+ * and the blocks that use any of them. Phi nodes are only inserted when a use needs one, in the iterated dominance
+ * frontier of the blocks that define the var. Inserted phi nodes that only feed memory phi nodes are memory phi nodes
+ * themselves.
+ *
+ * Computing SSA Form by Reconstruction (Hack, Section 3)
+ * http://compilers.cs.uni-saarland.de/papers/ssara_ssa09.pdf
  */
 public class SsaReconstructPass {
+    private final Ir.Meth meth;
+    private final DomPass domPass;
+    private final HashMap<Ir.Var, VarInfo> varInfos = new HashMap<>();
+    private final ArrayList<Ir.PhiStmt> newPhiStmts = new ArrayList<>();
 
-    // Mapping from statement that (re-)defines v to its new var
-    private HashMap<Ir.Stmt, Ir.Var> newVars = new HashMap<>();
-
-    // Dominance frontier of all blocks that (re-)defines v
-    private HashSet<Ir.Block> domFrontier = new HashSet<>();
-
-    private Ir.Meth meth;
-    private Ir.Var V;
-    private int varIdx = 0;
-    private DomPass domPass;
-    private DomFrontierPass domFrontierPass;
-
-    private SsaReconstructPass(Ir.Meth meth, Ir.Var V, DomPass domPass, DomFrontierPass domFrontierPass) {
+    private SsaReconstructPass(Ir.Meth meth, Set<Ir.Var> vars, DomPass domPass, DomFrontierPass domFrontierPass) {
         this.meth = meth;
-        this.V = V;
         this.domPass = domPass;
-        this.domFrontierPass = domFrontierPass;
 
-        // Scan through all blocks looking for all definitions of V
-        int idx = 0;
+        if (vars.isEmpty())
+            return;
+
+        for (Ir.Var V : vars)
+            varInfos.put(V, new VarInfo(V));
+
+        // Scan through all blocks looking for definitions of the modified vars, and for blocks that use them
+        ArrayList<Ir.Block> useBlocks = new ArrayList<>();
         for (Ir.Block block : meth.blocks) {
-            boolean hasDef = false;
+            boolean hasUse = false;
 
             for (Ir.Stmt stmt : block.stmts) {
+                if (!hasUse)
+                    hasUse = usesModifiedVar(stmt);
+
                 for (Ir.Var def : stmt.getDefs()) {
-                    if (def != V)
+                    VarInfo info = varInfos.get(def);
+                    if (info == null)
                         continue;
 
                     // Create a new var
-                    Ir.Var newVar = new Ir.Var(V.typ, V.name + "_" + (varIdx++));
-                    newVar.phiWeb = V.phiWeb;
-                    meth.locals.add(newVar);
-                    newVars.put(stmt, newVar);
-                    hasDef = true;
-                    break;
+                    Ir.Var newVar = info.createVar();
+                    info.newVars.put(stmt, newVar);
+                    info.lastDefs.put(block, newVar);
                 }
             }
 
-            if (hasDef) {
-                // Add dominance frontiers
-                domFrontier.addAll(domFrontierPass.getDomFrontier(block));
-            }
+            if (hasUse)
+                useBlocks.add(block);
         }
 
-        // Scan through all blocks looking for uses of V
-        // and rewrite them
-        for (Ir.Block block : meth.blocks) {
-            for (int j = 0; j < block.stmts.size(); j++) {
-                Ir.Stmt stmt = block.stmts.get(j);
+        // Phi nodes may be needed in the iterated dominance frontier of the blocks defining each var
+        for (VarInfo info : varInfos.values())
+            info.phiBlocks = new HashSet<>(domFrontierPass.getIteratedDomFrontier(info.lastDefs.keySet()));
+
+        // Rewrite uses, walking through each block while keeping track of the current definition of each var
+        HashMap<Ir.Var, Ir.Var> currDefs = new HashMap<>();
+        for (Ir.Block block : useBlocks) {
+            currDefs.clear();
 
+            // Phi nodes inserted into this block while rewriting do not need to be visited
+            Ir.Stmt[] stmts = block.stmts.toArray(new Ir.Stmt[block.stmts.size()]);
+            for (Ir.Stmt stmt : stmts) {
                 if (stmt instanceof Ir.PhiStmt) {
                     Ir.PhiStmt phiStmt = (Ir.PhiStmt) stmt;
                     for (int i = 0; i < phiStmt.args.size(); i++) {
-                        if (phiStmt.args.get(i) != V)
-                            continue; // Not the use we are looking for
-
-                        Ir.Var newV = findDefFromBottom(block.incoming.get(i));
-                        phiStmt.args.set(i, newV);
+                        VarInfo info = varInfos.get(phiStmt.args.get(i));
+                        if (info != null)
+                            phiStmt.args.set(i, findDefFromBottom(info, block.incoming.get(i)));
                     }
                 } else {
-                    Ir.Var newV = null;
-
-                    for (Ir.Rval rv : stmt.getRvals()) {
-                        if (!(rv instanceof Ir.VarRval))
-                            continue;
-                        Ir.VarRval vrv = (Ir.VarRval) rv;
-                        if (vrv.v != V)
-                            continue; // Not the use we are looking for
-                        if (newV == null)
-                            newV = findDefFromBottom(block, j - 1);
-                        vrv.v = newV;
-                    }
-
-                    if (stmt instanceof Ir.FieldAssignStmt) {
-                        Ir.FieldAssignStmt fieldAssignStmt = (Ir.FieldAssignStmt) stmt;
-                        if (fieldAssignStmt.dst == V) {
-                            if (newV == null)
-                                newV = findDefFromBottom(block, j - 1);
-                            fieldAssignStmt.dst = newV;
-                        }
+                    for (int i = 0; i < stmt.numUses(); i++) {
+                        Ir.Var v = stmt.getUse(i);
+                        if (v != null)
+                            stmt.setUse(i, findCurrDef(v, block, currDefs));
                     }
+                }
 
-                    if (stmt instanceof Ir.SpillStmt) {
-                        Ir.SpillStmt spillStmt = (Ir.SpillStmt) stmt;
-                        if (spillStmt.v == V) {
-                            if (newV == null)
-                                newV = findDefFromBottom(block, j - 1);
-                            spillStmt.v = newV;
-                        }
-                    }
+                // Definitions come after the uses of the stmt
+                for (Ir.Var def : stmt.getDefs()) {
+                    VarInfo info = varInfos.get(def);
+                    if (info != null)
+                        currDefs.put(def, info.newVars.get(stmt));
+                }
+            }
+        }
 
-                    if (stmt instanceof Ir.StackArgStmt) {
-                        Ir.StackArgStmt stackArgStmt = (Ir.StackArgStmt) stmt;
-                        if (stackArgStmt.v == V) {
-                            if (newV == null)
-                                newV = findDefFromBottom(block, j - 1);
-                            stackArgStmt.v = newV;
-                        }
-                    }
+        markMemoryPhis();
 
-                    if (stmt instanceof Ir.CallPrepStmt) {
-                        Ir.CallPrepStmt callPrepStmt = (Ir.CallPrepStmt) stmt;
-                        for (int i = 0; i < callPrepStmt.srcs.size(); i++) {
-                            Ir.Var x = callPrepStmt.srcs.get(i);
-                            if (x == V) {
-                                if (newV == null)
-                                    newV = findDefFromBottom(block, j - 1);
-                                callPrepStmt.srcs.set(i, newV);
-                            }
-                        }
+        // Finally rename the definitions
+        for (VarInfo info : varInfos.values()) {
+            for (Map.Entry<Ir.Stmt, Ir.Var> entry : info.newVars.entrySet()) {
+                Ir.Stmt defStmt = entry.getKey();
+                for (int i = 0; i < defStmt.numDefs(); i++) {
+                    if (defStmt.getDef(i) == info.V) {
+                        defStmt.setDef(i, entry.getValue());
+                        break;
                     }
                 }
             }
         }
 
-        // Finally update newVars
-        for (Map.Entry<Ir.Stmt, Ir.Var> entry : newVars.entrySet()) {
-            Ir.Stmt defStmt = entry.getKey();
-            for (int i = 0; i < defStmt.getDefs().size(); i++) {
-                if (defStmt.getDefs().get(i) == V) {
-                    defStmt.setDef(i, entry.getValue());
-                    break;
+        // Remove original vars from locals
+        meth.locals.removeAll(varInfos.keySet());
+    }
+
+    /**
+     * The values of memory phi nodes are only ever reloaded, so an inserted phi node whose def is only used by memory
+     * phi nodes does not need a register either.
+     */
+    private void markMemoryPhis() {
+        if (newPhiStmts.isEmpty())
+            return;
+
+        HashMap<Ir.Var, Ir.PhiStmt> phiStmtOfDef = new HashMap<>();
+        for (Ir.PhiStmt phiStmt : newPhiStmts) {
+            phiStmt.memory = true;
+            phiStmtOfDef.put(phiStmt.getDst(), phiStmt);
+        }
+
+        // Find the inserted phi nodes whose defs are needed in a register
+        ArrayList<Ir.Var> worklist = new ArrayList<>();
+        for (Ir.Block block : meth.blocks) {
+            for (Ir.Stmt stmt : block.stmts) {
+                if (stmt instanceof Ir.PhiStmt) {
+                    Ir.PhiStmt phiStmt = (Ir.PhiStmt) stmt;
+                    if (!phiStmt.memory)
+                        worklist.addAll(phiStmt.args);
+                } else {
+                    worklist.addAll(stmt.getUses());
                 }
             }
         }
+        while (!worklist.isEmpty()) {
+            Ir.PhiStmt phiStmt = phiStmtOfDef.remove(worklist.remove(worklist.size() - 1));
+            if (phiStmt == null)
+                continue;
+            phiStmt.memory = false;
+            worklist.addAll(phiStmt.args);
+        }
+    }
 
-        // Remove original var from locals
-        meth.locals.remove(V);
+    private boolean usesModifiedVar(Ir.Stmt stmt) {
+        if (stmt instanceof Ir.PhiStmt) {
+            for (Ir.Var v : ((Ir.PhiStmt) stmt).args) {
+                if (varInfos.containsKey(v))
+                    return true;
+            }
+            return false;
+        }
+        for (int i = 0; i < stmt.numUses(); i++) {
+            Ir.Var v = stmt.getUse(i);
+            if (v != null && varInfos.containsKey(v))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the definition of v reaching the current stmt of the block, if v is one of the modified vars.
+     */
+    private Ir.Var findCurrDef(Ir.Var v, Ir.Block block, HashMap<Ir.Var, Ir.Var> currDefs) {
+        VarInfo info = varInfos.get(v);
+        if (info == null)
+            return v;
+        Ir.Var def = currDefs.get(v);
+        if (def == null) {
+            def = findDefFromTop(info, block);
+            currDefs.put(v, def);
+        }
+        return def;
     }
 
-    private Ir.Var findDefFromBottom(Ir.Block block) {
-        return findDefFromBottom(block, block.stmts.size() - 1);
+    private Ir.Var findDefFromBottom(VarInfo info, Ir.Block block) {
+        Ir.Var def = info.lastDefs.get(block);
+        return def != null ? def : findDefFromTop(info, block);
     }
 
-    private Ir.Var findDefFromBottom(Ir.Block block, int startIdx) {
-        // Scan through block backwards
-        for (int i = startIdx; i >= 0; i--) {
-            Ir.Stmt stmt = block.stmts.get(i);
-            for (Ir.Var def : stmt.getDefs()) {
-                if (def == V)
-                    return newVars.get(stmt);
+    private Ir.Var findDefFromTop(VarInfo info, Ir.Block block) {
+        // Walk up the dom tree until we reach a block which has (or needs) a definition
+        ArrayList<Ir.Block> path = new ArrayList<>();
+        Ir.Var def = null;
+        while (true) {
+            def = info.topDefs.get(block);
+            if (def != null)
+                break;
+
+            if (info.phiBlocks.contains(block)) {
+                def = insertPhi(info, block);
+                break;
             }
+
+            path.add(block);
+            Ir.Block idom = domPass.getIdom(block);
+            if (idom == null) {
+                def = info.V; // Don't replace -- the definition comes from an argument
+                break;
+            }
+
+            def = info.lastDefs.get(idom);
+            if (def != null)
+                break;
+            block = idom;
         }
 
-        // Failed to find definition, search through predecessors
-        return findDefFromTop(block);
+        for (Ir.Block b : path)
+            info.topDefs.put(b, def);
+        return def;
     }
 
-    private Ir.Var findDefFromTop(Ir.Block block) {
-        if (domFrontier.contains(block)) {
+    private Ir.Var insertPhi(VarInfo info, Ir.Block block) {
+        Ir.Var newVar = info.createVar();
+        Ir.PhiStmt newPhiStmt = new Ir.PhiStmt(info.V, block.incoming.size());
+        newPhiStmt.setDef(0, newVar);
+        block.stmts.add(0, newPhiStmt);
+        newPhiStmts.add(newPhiStmt);
+        // Record the phi before looking at the predecessors, which may loop back to this block
+        info.topDefs.put(block, newVar);
+        for (int i = 0; i < block.incoming.size(); i++)
+            newPhiStmt.args.set(i, findDefFromBottom(info, block.incoming.get(i)));
+        return newVar;
+    }
+
+    private class VarInfo {
+        private final Ir.Var V;
+        private int varIdx;
+        // Mapping from statement that (re-)defines V to its new var
+        private final HashMap<Ir.Stmt, Ir.Var> newVars = new HashMap<>();
+        // Mapping from block to the new var of the last definition of V in it
+        private final HashMap<Ir.Block, Ir.Var> lastDefs = new HashMap<>();
+        // Mapping from block to the definition of V reaching its top
+        private final HashMap<Ir.Block, Ir.Var> topDefs = new HashMap<>();
+        // Iterated dominance frontier of the blocks defining V
+        private HashSet<Ir.Block> phiBlocks;
+
+        private VarInfo(Ir.Var V) {
+            this.V = V;
+        }
+
+        private Ir.Var createVar() {
             Ir.Var newVar = new Ir.Var(V.typ, V.name + "_" + (varIdx++));
             newVar.phiWeb = V.phiWeb;
-            Ir.PhiStmt newPhiStmt = new Ir.PhiStmt(V, block.incoming.size());
-            block.stmts.add(0, newPhiStmt);
             meth.locals.add(newVar);
-            newVars.put(newPhiStmt, newVar);
-            domFrontier.addAll(domFrontierPass.getDomFrontier(block));
-            for (int i = 0; i < block.incoming.size(); i++) {
-                Ir.Block pred = block.incoming.get(i);
-                Ir.Var newV = findDefFromBottom(pred);
-                newPhiStmt.args.set(i, newV);
-            }
             return newVar;
-        } else {
-            Ir.Block idom = domPass.getIdom(block);
-            if (idom == null)
-                return V; // Don't replace -- the definition comes from an argument
-            else
-                // Search in immediate dominator
-                return findDefFromBottom(idom);
         }
     }
 
+    public static void run(Ir.Meth meth, Set<Ir.Var> vars, DomPass domPass, DomFrontierPass domFrontierPass) {
+        new SsaReconstructPass(meth, vars, domPass, domFrontierPass);
+    }
+
     public static void run(Ir.Meth meth, Ir.Var V, DomPass domPass, DomFrontierPass domFrontierPass) {
-        new SsaReconstructPass(meth, V, domPass, domFrontierPass);
+        run(meth, Collections.singleton(V), domPass, domFrontierPass);
     }
 }
@@ -0,0 +1,88 @@
+package pyokagan.cs4212;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class AdcePassTest {
+    private static final String NON_TERMINATING = "class Main {\n"
+            + "    Void main() {\n"
+            + "        Int i;\n"
+            + "        Int j;\n"
+            + "        readln(i);\n"
+            + "        j = 0;\n"
+            + "        while (i != 100) {\n"
+            + "            if (i > 50) {\n"
+            + "                j = j + 1;\n"
+            + "            } else {\n"
+            + "                j = j - 1;\n"
+            + "            }\n"
+            + "            i = i + 2;\n"
+            + "        }\n"
+            + "        println(\"done\");\n"
+            + "    }\n"
+            + "}\n";
+
+    @Test
+    public void removesDeadCodeButKeepsSideEffects() throws Exception {
+        Ir.Meth meth = TestUtil.toSsa("class Main {\n"
+                + "    Void main() {\n"
+                + "        Int a;\n"
+                + "        Int b;\n"
+                + "        Int c;\n"
+                + "        Box x;\n"
+                + "        readln(a);\n"
+                + "        b = a * 2;\n"
+                + "        if (a > 3) {\n"
+                + "            c = b + 1;\n"
+                + "        } else {\n"
+                + "            c = b - 1;\n"
+                + "        }\n"
+                + "        x = new Box();\n"
+                + "        x.v = a;\n"
+                + "        c = x.get();\n"
+                + "        println(a);\n"
+                + "    }\n"
+                + "}\n"
+                + "class Box {\n"
+                + "    Int v;\n"
+                + "    Int get() {\n"
+                + "        println(v);\n"
+                + "        return v;\n"
+                + "    }\n"
+                + "}\n", "main");
+        AdcePass.run(meth, new LoopPass(meth, new DomPass(meth)));
+
+        assertEquals(0, TestUtil.getStmts(meth, Ir.BinaryStmt.class).size());
+        assertEquals(0, TestUtil.getStmts(meth, Ir.CmpStmt.class).size());
+        assertEquals(1, TestUtil.getStmts(meth, Ir.ReadlnStmt.class).size());
+        assertEquals(1, TestUtil.getStmts(meth, Ir.FieldAssignStmt.class).size());
+        assertEquals(1, TestUtil.getStmts(meth, Ir.CallStmt.class).size());
+        assertEquals(1, TestUtil.getStmts(meth, Ir.PrintlnStmt.class).size());
+        assertEquals(meth.blocksRpo.size(), meth.blocks.size());
+    }
+
+    @Test
+    public void keepsLoopsThatMightNotTerminate() throws Exception {
+        Ir.Meth meth = TestUtil.toSsa(NON_TERMINATING, "main");
+        AdcePass.run(meth, new LoopPass(meth, new DomPass(meth)));
+
+        // The loop is kept, but not the if in its body
+        List<Ir.CmpStmt> cmps = TestUtil.getStmts(meth, Ir.CmpStmt.class);
+        assertEquals(1, cmps.size());
+        assertEquals(Ir.CondOp.NE, cmps.get(0).op);
+    }
+
+    @Test
+    public void preservesTermination() throws Exception {
+        for (int optLevel = 0; optLevel <= 2; optLevel++) {
+            assertEquals("done\n", TestUtil.run(NON_TERMINATING, optLevel, "2\n"));
+            int level = optLevel;
+            AssertionError e = assertThrows(AssertionError.class, () -> TestUtil.run(NON_TERMINATING, level, "3\n"));
+            assertEquals("step limit reached, output so far:\n", e.getMessage());
+        }
+    }
+}
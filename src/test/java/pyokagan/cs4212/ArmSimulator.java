@@ -0,0 +1,512 @@
+package pyokagan.cs4212;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Simulates the subset of ARM that the compiler emits, so that tests can run the programs they compile.
+ *
+ * The libc functions used by the generated code (printf, puts, malloc, getchar, memcpy, strtol, strcmp and
+ * __aeabi_idiv) are implemented directly. Like the real ones, they are allowed to overwrite r1-r3 and r12, so they do.
+ * Every return from a method checks that the callee-saved registers and sp were restored.
+ */
+class ArmSimulator {
+    private static final int STEP_LIMIT = 20000000;
+    private static final int RETURN_SENTINEL = 0x7fffffff;
+    private static final int SP = 13;
+    private static final int LR = 14;
+    private static final int PC = 15;
+    private static final Pattern LABEL = Pattern.compile("^([.\\w]+):$");
+    private static final Pattern INSTR = Pattern.compile("^(\\w+)\\s*(.*)$");
+    private static final Pattern ALU = Pattern.compile("^(add|sub|rsb|mul)(s?)$");
+    private static final Pattern BRANCH_MOV_CMP =
+            Pattern.compile("^(mov|cmp|b|bl|bx)(eq|ne|hs|lo|mi|pl|vs|vc|hi|ls|ge|lt|gt|le)?$");
+    private static final Pattern MEM = Pattern.compile("^(\\w+),\\s*(.*)$");
+    private static final Pattern INT_PREFIX = Pattern.compile("^\\s*[-+]?\\d+");
+
+    private enum Kind { ALU, MOV, CMP, CMN, B, BL, BX, LDR_CONST, MEM, PUSH, POP }
+
+    private static class Instr {
+        Kind kind;
+        String op;
+        String cond = "";
+        boolean setFlags;
+        int d;
+        int a;
+        boolean bIsImm;
+        int b;
+        String target;
+        int[] regs;
+    }
+
+    private static class Frame {
+        final int returnPc;
+        final int[] calleeSaved;
+        final int sp;
+
+        Frame(int returnPc, int[] calleeSaved, int sp) {
+            this.returnPc = returnPc;
+            this.calleeSaved = calleeSaved;
+            this.sp = sp;
+        }
+    }
+
+    private final ArrayList<String> lines = new ArrayList<>();
+    private final HashMap<String, Integer> textLabels = new HashMap<>();
+    private final HashMap<String, Integer> dataLabels = new HashMap<>();
+    private final byte[] mem = new byte[1 << 22];
+    private int dataPtr = 0x1000;
+    private int heap = 0x100000;
+    private String stdin;
+    private final StringBuilder out = new StringBuilder();
+
+    private final int[] r = new int[16];
+    private boolean n, z, c, v;
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+
+    private ArmSimulator(String asm, String stdin) {
+        this.stdin = stdin;
+        parse(asm);
+    }
+
+    /**
+     * Runs the main function of asm, and returns what it printed.
+     */
+    public static String run(String asm, String stdin) {
+        return new ArmSimulator(asm, stdin).run();
+    }
+
+    private void parse(String asm) {
+        boolean inText = true;
+        for (String line : asm.split("\n")) {
+            String s = line.trim();
+            if (s.isEmpty() || s.startsWith(".global"))
+                continue;
+            if (s.equals(".text")) {
+                inText = true;
+                continue;
+            }
+            if (s.equals(".data")) {
+                inText = false;
+                continue;
+            }
+            Matcher m = LABEL.matcher(s);
+            if (m.matches()) {
+                if (inText)
+                    textLabels.put(m.group(1), lines.size());
+                else
+                    dataLabels.put(m.group(1), dataPtr);
+                continue;
+            }
+            if (s.startsWith(".asciz")) {
+                String quoted = s.substring(".asciz".length()).trim();
+                byte[] bytes = unescape(quoted.substring(1, quoted.length() - 1)).getBytes(StandardCharsets.ISO_8859_1);
+                System.arraycopy(bytes, 0, mem, dataPtr, bytes.length);
+                mem[dataPtr + bytes.length] = 0;
+                dataPtr = (dataPtr + bytes.length + 1 + 3) & ~3;
+                continue;
+            }
+            if (!inText)
+                throw new AssertionError("unexpected line in data section: " + s);
+            lines.add(s);
+        }
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch != '\\') {
+                sb.append(ch);
+                continue;
+            }
+            ch = s.charAt(++i);
+            switch (ch) {
+            case 'n':
+                sb.append('\n');
+                break;
+            case 't':
+                sb.append('\t');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 'b':
+                sb.append('\b');
+                break;
+            case 'x':
+                sb.append((char) Integer.parseInt(s.substring(i + 1, i + 3), 16));
+                i += 2;
+                break;
+            default:
+                if (Character.isDigit(ch)) {
+                    int j = i;
+                    while (j < s.length() && j < i + 3 && Character.isDigit(s.charAt(j)))
+                        j++;
+                    sb.append((char) Integer.parseInt(s.substring(i, j), 8));
+                    i = j - 1;
+                } else {
+                    sb.append(ch);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int parseReg(String s) {
+        s = s.trim();
+        switch (s) {
+        case "sp":
+            return SP;
+        case "lr":
+            return LR;
+        case "pc":
+            return PC;
+        default:
+            if (!s.startsWith("r"))
+                throw new AssertionError("unknown register " + s);
+            int reg = Integer.parseInt(s.substring(1));
+            if (reg > 12)
+                throw new AssertionError("unknown register " + s);
+            return reg;
+        }
+    }
+
+    private static void parseOperand2(Instr instr, String s) {
+        s = s.trim();
+        instr.bIsImm = s.startsWith("#");
+        instr.b = instr.bIsImm ? (int) Long.parseLong(s.substring(1)) : parseReg(s);
+    }
+
+    private Instr decode(String line) {
+        Matcher m = INSTR.matcher(line);
+        if (!m.matches())
+            throw new AssertionError("unknown instr " + line);
+        String op = m.group(1);
+        String args = m.group(2);
+        Instr instr = new Instr();
+        instr.op = op;
+
+        if (op.equals("push") || op.equals("pop")) {
+            instr.kind = op.equals("push") ? Kind.PUSH : Kind.POP;
+            String[] regs = args.replace("{", "").replace("}", "").split(",");
+            instr.regs = new int[regs.length];
+            for (int i = 0; i < regs.length; i++)
+                instr.regs[i] = parseReg(regs[i]);
+            Arrays.sort(instr.regs);
+            return instr;
+        }
+
+        Matcher mm = ALU.matcher(op);
+        if (mm.matches()) {
+            String[] parts = args.split(",");
+            instr.kind = Kind.ALU;
+            instr.op = mm.group(1);
+            instr.setFlags = !mm.group(2).isEmpty();
+            instr.d = parseReg(parts[0]);
+            instr.a = parseReg(parts[1]);
+            parseOperand2(instr, parts[2]);
+            return instr;
+        }
+
+        mm = BRANCH_MOV_CMP.matcher(op);
+        if (mm.matches()) {
+            String base = mm.group(1);
+            instr.cond = mm.group(2) != null ? mm.group(2) : "";
+            if (base.equals("mov") || base.equals("cmp")) {
+                String[] parts = args.split(",");
+                instr.kind = base.equals("mov") ? Kind.MOV : Kind.CMP;
+                instr.a = parseReg(parts[0]);
+                parseOperand2(instr, parts[1]);
+            } else {
+                instr.kind = base.equals("b") ? Kind.B : base.equals("bl") ? Kind.BL : Kind.BX;
+                instr.target = args.trim();
+            }
+            return instr;
+        }
+
+        if (op.equals("cmn")) {
+            String[] parts = args.split(",");
+            instr.kind = Kind.CMN;
+            instr.a = parseReg(parts[0]);
+            parseOperand2(instr, parts[1]);
+            return instr;
+        }
+
+        if (op.equals("ldr") || op.equals("str") || op.equals("strb")) {
+            mm = MEM.matcher(args);
+            if (!mm.matches())
+                throw new AssertionError("unknown instr " + line);
+            instr.d = parseReg(mm.group(1));
+            String rest = mm.group(2).trim();
+            if (rest.startsWith("=")) {
+                String value = rest.substring(1);
+                instr.kind = Kind.LDR_CONST;
+                instr.bIsImm = true;
+                if (dataLabels.containsKey(value))
+                    instr.b = dataLabels.get(value);
+                else if (textLabels.containsKey(value))
+                    instr.b = textLabels.get(value);
+                else
+                    instr.b = (int) Long.parseLong(value);
+                return instr;
+            }
+            String[] parts = rest.replace("[", "").replace("]", "").split(",");
+            instr.kind = Kind.MEM;
+            instr.a = parseReg(parts[0]);
+            if (parts.length > 1) {
+                parseOperand2(instr, parts[1]);
+            } else {
+                instr.bIsImm = true;
+                instr.b = 0;
+            }
+            return instr;
+        }
+
+        throw new AssertionError("unknown instr " + line);
+    }
+
+    private boolean cond(String cond) {
+        switch (cond) {
+        case "":
+            return true;
+        case "eq":
+            return z;
+        case "ne":
+            return !z;
+        case "hs":
+            return c;
+        case "lo":
+            return !c;
+        case "mi":
+            return n;
+        case "pl":
+            return !n;
+        case "vs":
+            return v;
+        case "vc":
+            return !v;
+        case "hi":
+            return c && !z;
+        case "ls":
+            return !c || z;
+        case "ge":
+            return n == v;
+        case "lt":
+            return n != v;
+        case "gt":
+            return !z && n == v;
+        case "le":
+            return z || n != v;
+        default:
+            throw new AssertionError("unknown cond " + cond);
+        }
+    }
+
+    private int setSub(int a, int b) {
+        int res = a - b;
+        n = res < 0;
+        z = res == 0;
+        c = Integer.compareUnsigned(a, b) >= 0;
+        v = ((a ^ b) & (a ^ res)) < 0;
+        return res;
+    }
+
+    private int setAdd(int a, int b) {
+        int res = a + b;
+        n = res < 0;
+        z = res == 0;
+        c = Integer.toUnsignedLong(a) + Integer.toUnsignedLong(b) > 0xffffffffL;
+        v = ((a ^ res) & (b ^ res)) < 0;
+        return res;
+    }
+
+    private void checkAddr(int addr) {
+        if (addr % 4 != 0 || addr <= 0 || addr >= mem.length - 4)
+            throw new AssertionError("bad memory access at " + Integer.toHexString(addr));
+    }
+
+    private int load(int addr) {
+        checkAddr(addr);
+        return (mem[addr] & 0xff) | (mem[addr + 1] & 0xff) << 8 | (mem[addr + 2] & 0xff) << 16 | mem[addr + 3] << 24;
+    }
+
+    private void store(int addr, int value) {
+        checkAddr(addr);
+        for (int i = 0; i < 4; i++)
+            mem[addr + i] = (byte) (value >>> (8 * i));
+    }
+
+    private String cstr(int addr) {
+        int end = addr;
+        while (mem[end] != 0)
+            end++;
+        return new String(mem, addr, end - addr, StandardCharsets.ISO_8859_1);
+    }
+
+    private void callExtern(String name) {
+        switch (name) {
+        case "printf":
+            if (!cstr(r[0]).equals("%d\n"))
+                throw new AssertionError("unsupported printf format " + cstr(r[0]));
+            out.append(r[1]).append('\n');
+            r[0] = 0xdead0000;
+            break;
+        case "puts":
+            out.append(cstr(r[0])).append('\n');
+            r[0] = 0xdead0000;
+            break;
+        case "malloc":
+            int size = Math.max((r[0] + 7) & ~7, 8);
+            r[0] = heap;
+            heap += size;
+            break;
+        case "__aeabi_idiv":
+            r[0] = r[0] / r[1];
+            break;
+        case "getchar":
+            if (stdin.isEmpty()) {
+                r[0] = -1;
+            } else {
+                r[0] = stdin.charAt(0);
+                stdin = stdin.substring(1);
+            }
+            break;
+        case "memcpy":
+            System.arraycopy(mem, r[1], mem, r[0], r[2]);
+            break;
+        case "strtol":
+            Matcher m = INT_PREFIX.matcher(cstr(r[0]));
+            r[0] = m.find() ? (int) Long.parseLong(m.group().trim()) : 0;
+            break;
+        case "strcmp":
+            r[0] = Integer.signum(cstr(r[0]).compareTo(cstr(r[1])));
+            break;
+        default:
+            throw new AssertionError("unknown extern " + name);
+        }
+        for (int i : new int[] {1, 2, 3, 12})
+            r[i] = 0xdead0000 | i;
+    }
+
+    private int ret(int addr) {
+        if (addr == RETURN_SENTINEL)
+            return addr;
+        Frame frame = frames.removeLast();
+        if (addr != frame.returnPc)
+            throw new AssertionError("bad return address");
+        if (!Arrays.equals(Arrays.copyOfRange(r, 4, 12), frame.calleeSaved))
+            throw new AssertionError("callee-saved registers clobbered: " + Arrays.toString(Arrays.copyOfRange(r, 4, 12))
+                    + " vs " + Arrays.toString(frame.calleeSaved));
+        if (r[SP] != frame.sp)
+            throw new AssertionError("sp not restored");
+        for (int i : new int[] {1, 2, 3, 12})
+            r[i] = 0xbeef0000 | i;
+        return addr;
+    }
+
+    private String run() {
+        Instr[] code = new Instr[lines.size()];
+        for (int i = 0; i < code.length; i++)
+            code[i] = decode(lines.get(i));
+        r[SP] = mem.length - 64;
+        r[LR] = RETURN_SENTINEL;
+        Integer mainPc = textLabels.get("main");
+        if (mainPc == null)
+            throw new AssertionError("no main");
+        int pc = mainPc;
+        int steps = 0;
+        while (pc != RETURN_SENTINEL) {
+            if (++steps > STEP_LIMIT)
+                throw new AssertionError("step limit reached, output so far:\n" + out);
+            Instr instr = code[pc++];
+            int b = instr.bIsImm ? instr.b : r[instr.b];
+            switch (instr.kind) {
+            case ALU:
+                switch (instr.op) {
+                case "add":
+                    r[instr.d] = instr.setFlags ? setAdd(r[instr.a], b) : r[instr.a] + b;
+                    break;
+                case "sub":
+                    r[instr.d] = instr.setFlags ? setSub(r[instr.a], b) : r[instr.a] - b;
+                    break;
+                case "rsb":
+                    r[instr.d] = instr.setFlags ? setSub(b, r[instr.a]) : b - r[instr.a];
+                    break;
+                default:
+                    r[instr.d] = r[instr.a] * b;
+                }
+                break;
+            case MOV:
+                if (cond(instr.cond))
+                    r[instr.a] = b;
+                break;
+            case CMP:
+                if (cond(instr.cond))
+                    setSub(r[instr.a], b);
+                break;
+            case CMN:
+                setAdd(r[instr.a], b);
+                break;
+            case B:
+                if (cond(instr.cond))
+                    pc = textLabels.get(instr.target);
+                break;
+            case BL:
+                if (!cond(instr.cond))
+                    break;
+                if (textLabels.containsKey(instr.target)) {
+                    frames.addLast(new Frame(pc, Arrays.copyOfRange(r, 4, 12), r[SP]));
+                    r[LR] = pc;
+                    pc = textLabels.get(instr.target);
+                } else {
+                    callExtern(instr.target);
+                }
+                break;
+            case BX:
+                if (cond(instr.cond))
+                    pc = ret(r[parseReg(instr.target)]);
+                break;
+            case LDR_CONST:
+                r[instr.d] = instr.b;
+                break;
+            case MEM: {
+                int addr = r[instr.a] + b;
+                if (instr.op.equals("ldr")) {
+                    r[instr.d] = load(addr);
+                } else if (instr.op.equals("str")) {
+                    store(addr, r[instr.d]);
+                } else {
+                    if (addr <= 0 || addr >= mem.length)
+                        throw new AssertionError("bad memory access at " + Integer.toHexString(addr));
+                    mem[addr] = (byte) r[instr.d];
+                }
+                break;
+            }
+            case PUSH:
+                r[SP] -= 4 * instr.regs.length;
+                for (int i = 0; i < instr.regs.length; i++)
+                    store(r[SP] + 4 * i, r[instr.regs[i]]);
+                break;
+            case POP: {
+                int[] values = new int[instr.regs.length];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = load(r[SP] + 4 * i);
+                r[SP] += 4 * instr.regs.length;
+                for (int i = 0; i < values.length; i++) {
+                    if (instr.regs[i] == PC)
+                        pc = ret(values[i]);
+                    else
+                        r[instr.regs[i]] = values[i];
+                }
+                break;
+            }
+            default:
+                throw new AssertionError("BUG: unknown kind " + instr.kind);
+            }
+        }
+        return out.toString();
+    }
+}
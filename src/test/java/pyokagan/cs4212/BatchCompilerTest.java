@@ -0,0 +1,49 @@
+package pyokagan.cs4212;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+public class BatchCompilerTest {
+
+    @Test
+    public void parallelOutputEqualsSequential() throws Exception {
+        ArrayList<String> sources = new ArrayList<>();
+        for (long seed = 1; seed <= 16; seed++) {
+            ProgramGenerator.Options opts = new ProgramGenerator.Options();
+            opts.seed = seed;
+            sources.add(ProgramGenerator.generate(opts));
+        }
+        sources.add(MethCacheTest.PROGRAM);
+        sources.add("class Main {"); // Parse error
+        sources.add("class Main {\n    Void main() {\n        println(x);\n    }\n}\n"); // StaticCheck error
+
+        for (int optLevel = 0; optLevel <= 2; optLevel++) {
+            List<BatchCompiler.Result> sequential = new BatchCompiler(optLevel, 1, null).compile(sources);
+            List<BatchCompiler.Result> parallel = new BatchCompiler(optLevel, 4, null).compile(sources);
+            assertEquals(sources.size(), sequential.size());
+            assertEquals(sources.size(), parallel.size());
+            for (int i = 0; i < sources.size(); i++) {
+                BatchCompiler.Result expected = sequential.get(i);
+                BatchCompiler.Result actual = parallel.get(i);
+                if (i < sources.size() - 2) {
+                    assertNull(expected.error);
+                    assertNull(actual.error);
+                    String asm = TestUtil.compile(sources.get(i), optLevel);
+                    assertEquals(asm, expected.prog.render(), "program " + i);
+                    assertEquals(asm, actual.prog.render(), "program " + i);
+                } else {
+                    assertNull(actual.prog);
+                    assertNotNull(actual.error);
+                    assertEquals(expected.error.getClass(), actual.error.getClass());
+                }
+            }
+            assertTrue(parallel.get(sources.size() - 1).error instanceof StaticCheck.SemErrors);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package pyokagan.cs4212;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class CompileServerTest {
+    private static final String SOURCE = "class Main {\n"
+            + "    Void main() {\n"
+            + "        Int i;\n"
+            + "        readln(i);\n"
+            + "        println(i * 2);\n"
+            + "    }\n"
+            + "}\n";
+
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        CompileServer server = new CompileServer(2, null, 500);
+        serverThread = new Thread(() -> {
+            try {
+                server.serve(serverSocket);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        serverThread.start();
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        serverSocket.close();
+        serverThread.join();
+    }
+
+    @Test
+    public void compilesLikeJlitec() throws Exception {
+        for (int optLevel = 0; optLevel <= 2; optLevel++) {
+            CompileClient.Reply reply = request(optLevel, SOURCE);
+            assertEquals(0, reply.status, reply.diagnostics);
+            assertEquals("", reply.diagnostics);
+            assertEquals(TestUtil.compile(SOURCE, optLevel), reply.asm);
+            assertEquals("42\n", ArmSimulator.run(reply.asm, "21\n"));
+        }
+    }
+
+    @Test
+    public void reportsErrors() throws Exception {
+        CompileClient.Reply reply = request(0, "class Main {");
+        assertEquals(1, reply.status);
+        assertEquals("", reply.asm);
+        assertTrue(reply.diagnostics.startsWith("error:in.j: "), reply.diagnostics);
+
+        reply = request(0, "class Main {\n    Void main() {\n        println(x);\n    }\n}\n");
+        assertEquals(1, reply.status);
+        assertEquals("", reply.asm);
+        assertTrue(reply.diagnostics.startsWith("error:"), reply.diagnostics);
+    }
+
+    @Test
+    public void survivesDeeplyNestedSource() throws Exception {
+        StringBuilder expr = new StringBuilder("1");
+        for (int i = 0; i < 100000; i++)
+            expr.insert(0, "(1 + ").append(')');
+        String source = "class Main {\n    Void main() {\n        Int a;\n        a = " + expr
+                + ";\n        println(a);\n    }\n}\n";
+        CompileClient.Reply reply = request(0, source);
+        assertEquals(1, reply.status);
+        assertEquals("", reply.asm);
+        assertTrue(reply.diagnostics.startsWith("internal error:in.j: java.lang.StackOverflowError"),
+                reply.diagnostics.substring(0, Math.min(200, reply.diagnostics.length())));
+
+        // The server carries on with the next request
+        assertEquals(0, request(0, SOURCE).status);
+    }
+
+    @Test
+    public void rejectsInvalidOptLevel() throws Exception {
+        CompileClient.Reply reply = request(3, SOURCE);
+        assertEquals(2, reply.status);
+        assertEquals("", reply.asm);
+        assertEquals("error: invalid optimization level: 3\n", reply.diagnostics);
+
+        // The server carries on with the next request
+        assertEquals(0, request(2, SOURCE).status);
+    }
+
+    @Test
+    public void dropsStalledClients() throws Exception {
+        try (Socket stalled = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+                Socket slow = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort())) {
+            DataOutputStream out = new DataOutputStream(stalled.getOutputStream());
+            out.writeInt(CompileServer.MAGIC);
+            out.flush();
+
+            // The slow client sends a byte of its request every 100ms, so it never stops for long but takes 10s
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            DataOutputStream requestOut = new DataOutputStream(request);
+            requestOut.writeInt(CompileServer.MAGIC);
+            requestOut.writeInt(0);
+            CompileServer.writeString(requestOut, "in.j");
+            CompileServer.writeString(requestOut, String.join("", Collections.nCopies(100, " ")) + SOURCE);
+            byte[] bytes = request.toByteArray();
+            boolean[] dropped = new boolean[1];
+            Thread slowThread = new Thread(() -> {
+                try {
+                    OutputStream slowOut = slow.getOutputStream();
+                    for (int i = 0; i < 100; i++) {
+                        slowOut.write(bytes[i]);
+                        slowOut.flush();
+                        Thread.sleep(100);
+                    }
+                } catch (IOException e) {
+                    dropped[0] = true;
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            });
+            slowThread.start();
+
+            // Only served once the stalled and slow clients time out
+            assertEquals(0, request(0, SOURCE).status);
+            assertEquals(-1, stalled.getInputStream().read());
+            slowThread.join();
+            assertTrue(dropped[0]);
+        }
+    }
+
+    private CompileClient.Reply request(int optLevel, String source) throws IOException {
+        return CompileClient.request(serverSocket.getLocalPort(), optLevel, "in.j", source);
+    }
+}
@@ -0,0 +1,170 @@
+package pyokagan.cs4212;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+public class DataflowSolverTest {
+    private static final String NESTED_LOOPS = "class Main {\n"
+            + "    Void main() {\n"
+            + "        Int n;\n"
+            + "        Int i;\n"
+            + "        Int j;\n"
+            + "        Int s;\n"
+            + "        readln(n);\n"
+            + "        i = 0;\n"
+            + "        s = 0;\n"
+            + "        while (i < n) {\n"
+            + "            j = 0;\n"
+            + "            while (j < i) {\n"
+            + "                if (j > 2) {\n"
+            + "                    s = s + j;\n"
+            + "                } else {\n"
+            + "                    s = s - 1;\n"
+            + "                }\n"
+            + "                j = j + 1;\n"
+            + "            }\n"
+            + "            i = i + 1;\n"
+            + "        }\n"
+            + "        println(s);\n"
+            + "    }\n"
+            + "}\n";
+
+    @Test
+    public void solvesBackwardProblemOnLoops() throws Exception {
+        Ir.Meth meth = TestUtil.toSsa(NESTED_LOOPS, "main");
+        DataflowSolver<HashSet<Ir.Var>> solver = new DataflowSolver<>(meth, new Liveness());
+
+        // Same as iterating the equations over every block until nothing changes
+        HashMap<Ir.Block, HashSet<Ir.Var>> ins = new HashMap<>();
+        HashMap<Ir.Block, HashSet<Ir.Var>> outs = new HashMap<>();
+        for (Ir.Block block : meth.blocksPo) {
+            ins.put(block, new HashSet<>());
+            outs.put(block, new HashSet<>());
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Ir.Block block : meth.blocksPo) {
+                HashSet<Ir.Var> out = new HashSet<>();
+                for (Ir.Block succ : block.getOutgoing())
+                    out.addAll(ins.get(succ));
+                HashSet<Ir.Var> in = new HashSet<>(out);
+                Liveness.transfer(block, in);
+                changed |= !out.equals(outs.put(block, out)) | !in.equals(ins.put(block, in));
+            }
+        }
+        for (Ir.Block block : meth.blocksPo) {
+            assertEquals(ins.get(block), solver.getIn(block), block.toString());
+            assertEquals(outs.get(block), solver.getOut(block), block.toString());
+        }
+
+        // n is only used in the loop condition, so it is live throughout the outer loop
+        Ir.Var n = TestUtil.getStmts(meth, Ir.ReadlnStmt.class).get(0).getDst();
+        LoopPass loopPass = new LoopPass(meth, new DomPass(meth));
+        for (LoopPass.Loop loop : loopPass.getTopLevelLoops()) {
+            for (Ir.Block block : loop.blocks)
+                assertTrue(solver.getIn(block).contains(n), block.toString());
+        }
+    }
+
+    @Test
+    public void solvesForwardProblemOnLoops() throws Exception {
+        Ir.Meth meth = TestUtil.toSsa(NESTED_LOOPS, "main");
+
+        // The blocks that may have run before entering each block
+        DataflowSolver<BitSet> solver = new DataflowSolver<>(meth, new DataflowSolver.Problem<BitSet>() {
+            @Override
+            public boolean isBackward() {
+                return false;
+            }
+
+            @Override
+            public BitSet initMerge(Ir.Block block) {
+                return new BitSet();
+            }
+
+            @Override
+            public BitSet initResult(Ir.Block block) {
+                return new BitSet();
+            }
+
+            @Override
+            public void meet(Ir.Block block, BitSet in, BitSet predOut) {
+                in.or(predOut);
+            }
+
+            @Override
+            public boolean transfer(Ir.Block block, BitSet in, BitSet out) {
+                int cardinality = out.cardinality();
+                out.or(in);
+                out.set(block.postorderIndex);
+                return out.cardinality() != cardinality;
+            }
+        });
+
+        // Every block of a loop may run before any other block of it, through the back edge
+        LoopPass loopPass = new LoopPass(meth, new DomPass(meth));
+        assertEquals(2, loopPass.getLoops().size());
+        for (LoopPass.Loop loop : loopPass.getLoops()) {
+            for (Ir.Block block : loop.blocks) {
+                for (Ir.Block other : loop.blocks)
+                    assertTrue(solver.getIn(block).get(other.postorderIndex), other + " before " + block);
+            }
+        }
+        // The entry block has no predecessors, and everything runs before the exit block
+        Ir.Block entry = meth.blocksPo.get(meth.blocksPo.size() - 1);
+        assertTrue(solver.getIn(entry).isEmpty());
+        for (Ir.Block block : meth.blocksPo) {
+            if (block.getOutgoing().isEmpty())
+                assertEquals(meth.blocksPo.size(), solver.getOut(block).cardinality());
+        }
+    }
+
+    /**
+     * Liveness of vars, ignoring that phis only use their args on their incoming edges.
+     */
+    private static class Liveness implements DataflowSolver.Problem<HashSet<Ir.Var>> {
+        @Override
+        public boolean isBackward() {
+            return true;
+        }
+
+        @Override
+        public HashSet<Ir.Var> initMerge(Ir.Block block) {
+            return new HashSet<>();
+        }
+
+        @Override
+        public HashSet<Ir.Var> initResult(Ir.Block block) {
+            return new HashSet<>();
+        }
+
+        @Override
+        public void meet(Ir.Block block, HashSet<Ir.Var> out, HashSet<Ir.Var> succIn) {
+            out.addAll(succIn);
+        }
+
+        @Override
+        public boolean transfer(Ir.Block block, HashSet<Ir.Var> out, HashSet<Ir.Var> in) {
+            HashSet<Ir.Var> newIn = new HashSet<>(out);
+            transfer(block, newIn);
+            if (newIn.equals(in))
+                return false;
+            in.clear();
+            in.addAll(newIn);
+            return true;
+        }
+
+        private static void transfer(Ir.Block block, HashSet<Ir.Var> live) {
+            for (int i = block.stmts.size() - 1; i >= 0; i--) {
+                Ir.Stmt stmt = block.stmts.get(i);
+                live.removeAll(stmt.getDefs());
+                live.addAll(stmt.getUses());
+            }
+        }
+    }
+}
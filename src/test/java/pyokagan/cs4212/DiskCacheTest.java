@@ -0,0 +1,119 @@
+package pyokagan.cs4212;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class DiskCacheTest {
+    private Path dir;
+
+    @BeforeEach
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("jlitec-cache");
+    }
+
+    @AfterEach
+    public void deleteDir() throws IOException {
+        try (Stream<Path> stream = Files.walk(dir)) {
+            for (Path path : stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(path);
+        }
+    }
+
+    @Test
+    public void reusesUnchangedMethods() throws Exception {
+        assertEquals(0, compileAndRun(MethCacheTest.PROGRAM, 0));
+        assertEquals(3, getEntries().size());
+
+        // Each compile uses a new DiskCache, as a new run of jlitec would
+        assertEquals(3, compileAndRun(MethCacheTest.PROGRAM, 0));
+        assertEquals(2, compileAndRun(MethCacheTest.EDITED_MAIN, 0));
+        assertEquals(4, getEntries().size());
+    }
+
+    @Test
+    public void recompilesMethodsUsingChangedClassLayout() throws Exception {
+        compileAndRun(MethCacheTest.PROGRAM, 0);
+        assertEquals(1, compileAndRun(MethCacheTest.EDITED_LAYOUT, 0));
+    }
+
+    @Test
+    public void recompilesAtDifferentOptLevel() throws Exception {
+        compileAndRun(MethCacheTest.PROGRAM, 0);
+        assertEquals(0, compileAndRun(MethCacheTest.PROGRAM, 2));
+        assertEquals(6, getEntries().size());
+    }
+
+    @Test
+    public void rejectsTruncatedEntries() throws Exception {
+        compileAndRun(MethCacheTest.PROGRAM, 0);
+        DiskCache diskCache = new DiskCache(dir);
+        for (Path entry : getEntries()) {
+            byte[] bytes = Files.readAllBytes(entry);
+            for (int length = 0; length < bytes.length; length++) {
+                Files.write(entry, Arrays.copyOf(bytes, length));
+                assertNull(diskCache.get(entry.getFileName().toString()), "length " + length);
+            }
+        }
+        assertEquals(0, compileAndRun(MethCacheTest.PROGRAM, 0));
+        assertEquals(3, compileAndRun(MethCacheTest.PROGRAM, 0));
+    }
+
+    @Test
+    public void rejectsCorruptedEntries() throws Exception {
+        compileAndRun(MethCacheTest.PROGRAM, 0);
+        DiskCache diskCache = new DiskCache(dir);
+        for (Path entry : getEntries()) {
+            byte[] bytes = Files.readAllBytes(entry);
+            String key = entry.getFileName().toString();
+            assertNotNull(diskCache.get(key));
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] ^= 1;
+                Files.write(entry, bytes);
+                assertNull(diskCache.get(key), "byte " + i);
+                bytes[i] ^= 1;
+            }
+
+            Files.write(entry, "not a cache entry".getBytes("UTF-8"));
+            assertNull(diskCache.get(key));
+        }
+        assertEquals(0, compileAndRun(MethCacheTest.PROGRAM, 0));
+    }
+
+    /**
+     * Compiles source with a new DiskCache on the directory, checks that the result is the same as without it, and
+     * returns the number of methods that were found in the cache.
+     */
+    private int compileAndRun(String source, int optLevel) throws Exception {
+        int[] hits = new int[1];
+        DiskCache diskCache = new DiskCache(dir) {
+            @Override
+            public ArmGen.Fragment get(String key) {
+                ArmGen.Fragment fragment = super.get(key);
+                if (fragment != null)
+                    hits[0]++;
+                return fragment;
+            }
+        };
+        String asm = new Compiler(optLevel, 1, Metrics.DISABLED, null, diskCache)
+                .compile(new StringReader(source)).render();
+        assertEquals(TestUtil.compile(source, optLevel), asm);
+        assertEquals(source.contains("x + 1") ? "8\n" : "6\n", ArmSimulator.run(asm, ""));
+        return hits[0];
+    }
+
+    private List<Path> getEntries() throws IOException {
+        try (Stream<Path> stream = Files.list(dir)) {
+            return stream.sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package pyokagan.cs4212;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+public class DomPassTest {
+
+    @Test
+    public void semiNcaMatchesIterative() throws Exception {
+        for (long seed = 1; seed <= 20; seed++) {
+            ProgramGenerator.Options opts = new ProgramGenerator.Options();
+            opts.seed = seed;
+            assertSameDomsAtEveryPass(ProgramGenerator.generate(opts), "seed " + seed);
+        }
+    }
+
+    @Test
+    public void semiNcaMatchesIterativeOnLargeCfgs() throws Exception {
+        // Large enough for DomPass to pick SEMI_NCA by default
+        ProgramGenerator.Options opts = new ProgramGenerator.Options();
+        opts.seed = 1;
+        opts.numClasses = 1;
+        opts.methsPerClass = 1;
+        opts.methLength = 2000;
+        opts.loopDepth = 4;
+        int maxBlocks = assertSameDomsAtEveryPass(ProgramGenerator.generate(opts), "large");
+        assertTrue(maxBlocks > 1000, "only " + maxBlocks + " blocks");
+    }
+
+    /**
+     * Compiles source at -O2, checking that both algorithms give the same dom tree whenever a pass needs it, and
+     * returns the largest number of blocks that was checked.
+     */
+    private static int assertSameDomsAtEveryPass(String source, String what) throws Exception {
+        Ast.Prog prog = Parser.parse(new StringReader(source));
+        StaticCheck.run(prog);
+        int maxBlocks = 0;
+        for (Ir.Meth meth : IrGen.run(prog).meths) {
+            PassManager pm = new PassManager(meth, Metrics.DISABLED);
+            for (PassManager.Pass pass : PassManager.getBackendPasses(2)) {
+                if (pass.requires.contains(PassManager.Analysis.DOM)
+                        || pass.requires.contains(PassManager.Analysis.DOM_FRONTIER)
+                        || pass.requires.contains(PassManager.Analysis.LOOP)) {
+                    assertSameDoms(meth, what + ", " + meth.name + " before " + pass.name);
+                    maxBlocks = Math.max(maxBlocks, meth.blocks.size());
+                }
+                pm.run(pass);
+            }
+        }
+        return maxBlocks;
+    }
+
+    private static void assertSameDoms(Ir.Meth meth, String what) {
+        DomPass iterative = new DomPass(meth, DomPass.Algorithm.ITERATIVE);
+        DomPass semiNca = new DomPass(meth, DomPass.Algorithm.SEMI_NCA);
+        assertEquals(iterative.getPreorder(), semiNca.getPreorder(), what);
+        for (Ir.Block a : meth.blocks) {
+            assertEquals(iterative.getIdom(a), semiNca.getIdom(a), () -> what + ": idom of " + a);
+            for (Ir.Block b : meth.blocks)
+                assertEquals(iterative.isDominate(a, b), semiNca.isDominate(a, b), () -> what + ": " + a + " dom " + b);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package pyokagan.cs4212;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class GvnPassTest {
+
+    @Test
+    public void removesRedundantExpressions() throws Exception {
+        Ir.Meth meth = TestUtil.toSsa("class Main {\n"
+                + "    Void main() {\n"
+                + "        Int a;\n"
+                + "        Int b;\n"
+                + "        Int c;\n"
+                + "        Int d;\n"
+                + "        readln(a);\n"
+                + "        readln(b);\n"
+                + "        c = a * b + 1;\n"
+                + "        d = b * a + 1;\n"
+                + "        println(c + d);\n"
+                + "        if (a > b) {\n"
+                + "            println(a - b);\n"
+                + "        } else {\n"
+                + "            println(b);\n"
+                + "        }\n"
+                + "        println(a - b);\n"
+                + "    }\n"
+                + "}\n", "main");
+        GvnPass.run(meth, new DomPass(meth));
+
+        assertEquals(1, countBinaryStmts(meth, Ir.BinaryOp.MUL));
+        assertEquals(2, countBinaryStmts(meth, Ir.BinaryOp.PLUS));
+        // The a - b in the then branch does not dominate the one after the if
+        assertEquals(2, countBinaryStmts(meth, Ir.BinaryOp.MINUS));
+        assertEquals(0, TestUtil.getStmts(meth, Ir.AssignStmt.class).size());
+    }
+
+    @Test
+    public void removesFieldLoadsOnlyInSameMemoryState() throws Exception {
+        String source = "class Main {\n"
+                + "    Void main() {\n"
+                + "        Int a;\n"
+                + "        Int b;\n"
+                + "        Int c;\n"
+                + "        Int d;\n"
+                + "        Box x;\n"
+                + "        readln(a);\n"
+                + "        readln(b);\n"
+                + "        x = new Box();\n"
+                + "        x.v = a;\n"
+                + "        c = x.v;\n"
+                + "        if (a > b) {\n"
+                + "            println(a);\n"
+                + "        } else {\n"
+                + "            println(b);\n"
+                + "        }\n"
+                + "        d = x.v;\n" // Removed, as neither branch changes memory
+                + "        println(c + d);\n"
+                + "        x.v = b;\n"
+                + "        c = x.v;\n"
+                + "        d = x.get();\n"
+                + "        d = x.v;\n" // Kept, as the call might have changed x.v
+                + "        println(c + d);\n"
+                + "        if (a > b) {\n"
+                + "            x.v = 0;\n"
+                + "        } else {\n"
+                + "            println(b);\n"
+                + "        }\n"
+                + "        println(x.v);\n" // Kept, as x.v changes in one branch
+                + "    }\n"
+                + "}\n"
+                + "class Box {\n"
+                + "    Int v;\n"
+                + "    Int get() {\n"
+                + "        v = v + 1;\n"
+                + "        return v;\n"
+                + "    }\n"
+                + "}\n";
+        Ir.Meth meth = TestUtil.toSsa(source, "main");
+        assertEquals(5, TestUtil.getStmts(meth, Ir.FieldAccessStmt.class).size());
+        GvnPass.run(meth, new DomPass(meth));
+        assertEquals(4, TestUtil.getStmts(meth, Ir.FieldAccessStmt.class).size());
+
+        String expected = "3\n6\n5\n0\n";
+        assertEquals(expected, TestUtil.run(source, 0, "3\n2\n"));
+        assertEquals(expected, TestUtil.run(source, 2, "3\n2\n"));
+    }
+
+    private static int countBinaryStmts(Ir.Meth meth, Ir.BinaryOp op) {
+        int count = 0;
+        for (Ir.BinaryStmt stmt : TestUtil.getStmts(meth, Ir.BinaryStmt.class)) {
+            if (stmt.op == op)
+                count++;
+        }
+        return count;
+    }
+}
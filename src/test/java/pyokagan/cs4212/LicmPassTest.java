@@ -0,0 +1,155 @@
+package pyokagan.cs4212;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+public class LicmPassTest {
+
+    @Test
+    public void loopPassFindsNestedLoops() throws Exception {
+        Ir.Meth meth = TestUtil.toSsa("class Main {\n"
+                + "    Void main() {\n"
+                + "        Int i;\n"
+                + "        Int j;\n"
+                + "        i = 0;\n"
+                + "        while (i < 3) {\n"
+                + "            j = 0;\n"
+                + "            while (j < i) {\n"
+                + "                j = j + 1;\n"
+                + "            }\n"
+                + "            i = i + 1;\n"
+                + "        }\n"
+                + "        while (i > 0) {\n"
+                + "            i = i - 1;\n"
+                + "        }\n"
+                + "    }\n"
+                + "}\n", "main");
+        LoopPass loopPass = new LoopPass(meth, new DomPass(meth));
+
+        List<LoopPass.Loop> loops = loopPass.getLoops();
+        assertEquals(3, loops.size());
+        List<LoopPass.Loop> topLevelLoops = loopPass.getTopLevelLoops();
+        assertEquals(2, topLevelLoops.size());
+        LoopPass.Loop outer = topLevelLoops.get(0).children.isEmpty() ? topLevelLoops.get(1) : topLevelLoops.get(0);
+        assertEquals(1, outer.children.size());
+        LoopPass.Loop inner = outer.children.get(0);
+        assertSame(outer, inner.parent);
+        assertEquals(1, outer.depth);
+        assertEquals(2, inner.depth);
+        assertTrue(loops.indexOf(outer) < loops.indexOf(inner));
+        for (Ir.Block block : inner.blocks)
+            assertTrue(outer.contains(block));
+        assertSame(inner, loopPass.getLoop(inner.header));
+        assertEquals(0, loopPass.getDepth(meth.blocks.get(0)));
+    }
+
+    @Test
+    public void preheaderPassSplitsPhisOfLoopsWithSeveralEntries() throws Exception {
+        Ir.Meth meth = TestUtil.toSsa("class Main {\n"
+                + "    Void main() {\n"
+                + "        Int i;\n"
+                + "        readln(i);\n"
+                + "        if (i > 5) {\n"
+                + "            i = 5;\n"
+                + "        } else {\n"
+                + "            i = i + 1;\n"
+                + "        }\n"
+                + "        while (i > 0) {\n"
+                + "            i = i - 1;\n"
+                + "        }\n"
+                + "        println(i);\n"
+                + "    }\n"
+                + "}\n", "main");
+        LoopPass loopPass = new LoopPass(meth, new DomPass(meth));
+        assertNull(loopPass.getLoops().get(0).preheader);
+
+        PreheaderPass.run(meth, loopPass);
+        loopPass = new LoopPass(meth, new DomPass(meth));
+        LoopPass.Loop loop = loopPass.getLoops().get(0);
+        assertNotNull(loop.preheader);
+        assertEquals(2, loop.preheader.incoming.size());
+        assertEquals(2, loop.header.incoming.size());
+        // The phi of i in the header now takes the value from the entries from a phi in the preheader
+        Ir.PhiStmt preheaderPhi = (Ir.PhiStmt) loop.preheader.stmts.get(0);
+        Ir.PhiStmt headerPhi = (Ir.PhiStmt) loop.header.stmts.get(0);
+        assertEquals(2, preheaderPhi.args.size());
+        assertSame(preheaderPhi.getDst(), headerPhi.args.get(loop.header.incoming.indexOf(loop.preheader)));
+    }
+
+    @Test
+    public void hoistsOnlyInvariantSafeStmts() throws Exception {
+        String source = "class Main {\n"
+                + "    Void main() {\n"
+                + "        Int a;\n"
+                + "        Int b;\n"
+                + "        Int i;\n"
+                + "        Int s;\n"
+                + "        readln(a);\n"
+                + "        readln(b);\n"
+                + "        i = 0;\n"
+                + "        s = 0;\n"
+                + "        while (i < 3) {\n"
+                + "            s = s + a * b;\n" // Invariant
+                + "            s = s + a / 4;\n" // Invariant, and can't divide by zero
+                + "            s = s + i * 100001;\n" // Not invariant, but the literal is loaded once
+                + "            if (b != 0) {\n"
+                + "                s = s + a / b;\n" // Might divide by zero if moved out of the if
+                + "            } else {\n"
+                + "                s = s - 1;\n"
+                + "            }\n"
+                + "            i = i + 1;\n"
+                + "        }\n"
+                + "        println(s);\n"
+                + "    }\n"
+                + "}\n";
+        Ir.Meth meth = TestUtil.toSsa(source, "main");
+        PreheaderPass.run(meth, new LoopPass(meth, new DomPass(meth)));
+        LoopPass loopPass = new LoopPass(meth, new DomPass(meth));
+        LoopPass.Loop loop = loopPass.getLoops().get(0);
+        List<String> preheaderBefore = render(loop.preheader.stmts);
+        LicmPass.run(meth, loopPass);
+
+        List<String> preheader = render(loop.preheader.stmts);
+        assertEquals(preheaderBefore, preheader.subList(0, preheaderBefore.size()));
+        assertEquals(Arrays.asList("a * b", "a / 4", "100001"),
+                preheader.subList(preheaderBefore.size(), preheader.size()));
+        ArrayList<Ir.Stmt> loopStmts = new ArrayList<>();
+        for (Ir.Block block : loop.blocks)
+            loopStmts.addAll(block.stmts);
+        List<String> rendered = render(loopStmts);
+        assertTrue(rendered.contains("a / b"), rendered.toString());
+        assertTrue(rendered.contains("i * %licm0"), rendered.toString());
+
+        for (int optLevel = 0; optLevel <= 2; optLevel++) {
+            assertEquals("300042\n", TestUtil.run(source, optLevel, "5\n2\n"));
+            assertEquals("300003\n", TestUtil.run(source, optLevel, "5\n0\n"));
+        }
+    }
+
+    /**
+     * Returns the rvals of the BinaryStmts and AssignStmts in stmts, without SSA suffixes.
+     */
+    private static List<String> render(List<Ir.Stmt> stmts) {
+        ArrayList<String> out = new ArrayList<>();
+        for (Ir.Stmt stmt : stmts) {
+            if (stmt instanceof Ir.BinaryStmt) {
+                Ir.BinaryStmt binaryStmt = (Ir.BinaryStmt) stmt;
+                out.add(renderRval(binaryStmt.a) + " " + binaryStmt.op.getSym() + " " + renderRval(binaryStmt.b));
+            } else if (stmt instanceof Ir.AssignStmt) {
+                out.add(renderRval(((Ir.AssignStmt) stmt).src));
+            }
+        }
+        return out;
+    }
+
+    private static String renderRval(Ir.Rval rv) {
+        return rv.render().replaceAll("_\\d+$", "");
+    }
+}
@@ -0,0 +1,98 @@
+package pyokagan.cs4212;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.StringReader;
+
+import org.junit.jupiter.api.Test;
+
+public class MethCacheTest {
+    static final String PROGRAM = "class Main {\n"
+            + "    Void main() {\n"
+            + "        Box b;\n"
+            + "        Util u;\n"
+            + "        Int x;\n"
+            + "        b = new Box();\n"
+            + "        b.v = 3;\n"
+            + "        x = b.get();\n"
+            + "        u = new Util();\n"
+            + "        println(u.twice(x));\n"
+            + "    }\n"
+            + "}\n"
+            + "class Box {\n"
+            + "    Int v;\n"
+            + "    Int get() {\n"
+            + "        return v;\n"
+            + "    }\n"
+            + "}\n"
+            + "class Util {\n"
+            + "    Int twice(Int i) {\n"
+            + "        return i * 2;\n"
+            + "    }\n"
+            + "}\n";
+
+    // Only main changes
+    static final String EDITED_MAIN = PROGRAM.replace("println(u.twice(x));", "println(u.twice(x + 1));");
+
+    // Main and Box.get use the layout of Box, Util.twice does not
+    static final String EDITED_LAYOUT = PROGRAM.replace("    Int v;\n", "    Int w;\n    Int v;\n");
+
+    @Test
+    public void reusesUnchangedMethods() throws Exception {
+        CountingCache cache = new CountingCache();
+        assertEquals("6\n", compileAndRun(cache, PROGRAM, 0));
+        assertEquals(0, cache.hits);
+        assertEquals(3, cache.size());
+
+        cache.hits = 0;
+        assertEquals("8\n", compileAndRun(cache, EDITED_MAIN, 0));
+        assertEquals(2, cache.hits);
+        assertEquals(3, cache.size());
+
+        cache.hits = 0;
+        assertEquals("8\n", compileAndRun(cache, EDITED_MAIN, 0));
+        assertEquals(3, cache.hits);
+    }
+
+    @Test
+    public void recompilesMethodsUsingChangedClassLayout() throws Exception {
+        CountingCache cache = new CountingCache();
+        compileAndRun(cache, PROGRAM, 0);
+
+        cache.hits = 0;
+        assertEquals("6\n", compileAndRun(cache, EDITED_LAYOUT, 0));
+        assertEquals(1, cache.hits);
+    }
+
+    @Test
+    public void recompilesAtDifferentOptLevel() throws Exception {
+        CountingCache cache = new CountingCache();
+        compileAndRun(cache, PROGRAM, 0);
+
+        cache.hits = 0;
+        assertEquals("6\n", compileAndRun(cache, PROGRAM, 2));
+        assertEquals(0, cache.hits);
+    }
+
+    /**
+     * Compiles source with the cache, checks that the result is the same as without it, and runs it.
+     */
+    private static String compileAndRun(MethCache<ArmGen.Fragment> cache, String source, int optLevel)
+            throws Exception {
+        String asm = new Compiler(optLevel, 1, Metrics.DISABLED, cache).compile(new StringReader(source)).render();
+        assertEquals(TestUtil.compile(source, optLevel), asm);
+        return ArmSimulator.run(asm, "");
+    }
+
+    private static class CountingCache extends MethCache<ArmGen.Fragment> {
+        private int hits;
+
+        @Override
+        public synchronized ArmGen.Fragment get(String key) {
+            ArmGen.Fragment fragment = super.get(key);
+            if (fragment != null)
+                hits++;
+            return fragment;
+        }
+    }
+}
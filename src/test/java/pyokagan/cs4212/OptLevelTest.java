@@ -0,0 +1,44 @@
+package pyokagan.cs4212;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.FileNotFoundException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that programs print the same at every optimization level.
+ */
+public class OptLevelTest {
+    // The examples of the GUI, and programs exercising the rest of the language
+    private static final String[] EXAMPLES = {"hello_world", "linkedlist", "fizzbuzz", "lotsofargs", "nested", "spill",
+            "fact", "misc", "pressure", "readln"};
+
+    @Test
+    public void examples() throws Exception {
+        for (String name : EXAMPLES) {
+            String source = TestUtil.read("examples/" + name + ".j");
+            String expected = TestUtil.read("examples/" + name + ".out");
+            String stdin;
+            try {
+                stdin = TestUtil.read("examples/" + name + ".in");
+            } catch (FileNotFoundException e) {
+                stdin = "";
+            }
+            for (int optLevel = 0; optLevel <= 2; optLevel++)
+                assertEquals(expected, TestUtil.run(source, optLevel, stdin), name + " at -O" + optLevel);
+        }
+    }
+
+    @Test
+    public void generatedPrograms() throws Exception {
+        for (long seed = 1; seed <= 20; seed++) {
+            ProgramGenerator.Options opts = new ProgramGenerator.Options();
+            opts.seed = seed;
+            String source = ProgramGenerator.generate(opts);
+            String expected = TestUtil.run(source, 0, "");
+            for (int optLevel = 1; optLevel <= 2; optLevel++)
+                assertEquals(expected, TestUtil.run(source, optLevel, ""), "seed " + seed + " at -O" + optLevel);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package pyokagan.cs4212;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Programs that the register allocator used to miscompile or crash on, reduced from randomly generated programs.
+ */
+public class RegisterAllocationTest {
+
+    @Test
+    public void ipIsClobberedByCalls() throws Exception {
+        assertOutput("ip_across_call");
+    }
+
+    @Test
+    public void reloadsArgsOfRegisterPhis() throws Exception {
+        assertOutput("phi_arg_reload");
+    }
+
+    @Test
+    public void wentryLeavesRoomForRegisterPhis() throws Exception {
+        assertOutput("wentry_phi_room");
+    }
+
+    @Test
+    public void spillsLiveInVarsNotInWentry() throws Exception {
+        assertOutput("live_in_spill");
+    }
+
+    @Test
+    public void reconstructedPhisFeedingMemoryPhisStayInMemory() throws Exception {
+        assertOutput("reconstructed_memory_phi");
+    }
+
+    private static void assertOutput(String name) throws Exception {
+        String source = TestUtil.read("regalloc/" + name + ".j");
+        String expected = TestUtil.read("regalloc/" + name + ".out");
+        for (int optLevel = 0; optLevel <= 1; optLevel++)
+            assertEquals(expected, TestUtil.run(source, optLevel, ""), name + " at -O" + optLevel);
+    }
+}
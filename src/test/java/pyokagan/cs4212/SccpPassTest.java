@@ -0,0 +1,92 @@
+package pyokagan.cs4212;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class SccpPassTest {
+
+    @Test
+    public void foldsConstants() throws Exception {
+        Ir.Meth meth = TestUtil.toSsa("class Main {\n"
+                + "    Void main() {\n"
+                + "        Int a;\n"
+                + "        Int b;\n"
+                + "        Bool c;\n"
+                + "        a = 3;\n"
+                + "        b = a * 4 - 2;\n"
+                + "        c = b > 5 && !(a == b);\n"
+                + "        println(-b);\n"
+                + "        println(c);\n"
+                + "    }\n"
+                + "}\n", "main");
+        SccpPass.run(meth);
+
+        List<Ir.PrintlnStmt> printlns = TestUtil.getStmts(meth, Ir.PrintlnStmt.class);
+        assertEquals(2, printlns.size());
+        assertEquals(-10, ((Ir.IntLitRval) printlns.get(0).rv).i);
+        assertEquals(true, ((Ir.BoolLitRval) printlns.get(1).rv).b);
+    }
+
+    @Test
+    public void foldsBranches() throws Exception {
+        Ir.Meth meth = TestUtil.toSsa("class Main {\n"
+                + "    Void main() {\n"
+                + "        Int a;\n"
+                + "        Int i;\n"
+                + "        Int n;\n"
+                + "        a = 1;\n"
+                + "        readln(n);\n"
+                + "        i = 0;\n"
+                + "        while (i < n) {\n"
+                + "            a = 1;\n"
+                + "            i = i + 1;\n"
+                + "        }\n"
+                + "        if (a == 1) {\n"
+                + "            println(\"taken\");\n"
+                + "        } else {\n"
+                + "            println(\"not taken\");\n"
+                + "        }\n"
+                + "        while (a > 5) {\n"
+                + "            println(\"never\");\n"
+                + "        }\n"
+                + "    }\n"
+                + "}\n", "main");
+        SccpPass.run(meth);
+
+        // Only the loop on n is left
+        List<Ir.CmpStmt> cmps = TestUtil.getStmts(meth, Ir.CmpStmt.class);
+        assertEquals(1, cmps.size());
+        assertEquals(Ir.CondOp.LT, cmps.get(0).op);
+        List<Ir.PrintlnStmt> printlns = TestUtil.getStmts(meth, Ir.PrintlnStmt.class);
+        assertEquals(1, printlns.size());
+        assertEquals("taken", ((Ir.StringLitRval) printlns.get(0).rv).str);
+        assertEquals(meth.blocksRpo.size(), meth.blocks.size());
+    }
+
+    @Test
+    public void fieldAccessOnConstantNullKeepsVarTarget() throws Exception {
+        String source = "class Main {\n"
+                + "    Void main() {\n"
+                + "        A x;\n"
+                + "        Int k;\n"
+                + "        x = null;\n"
+                + "        k = x.a;\n"
+                + "        println(k);\n"
+                + "    }\n"
+                + "}\n"
+                + "class A {\n"
+                + "    Int a;\n"
+                + "}\n";
+        Ir.Meth meth = TestUtil.toSsa(source, "main");
+        SccpPass.run(meth);
+        for (Ir.FieldAccessStmt stmt : TestUtil.getStmts(meth, Ir.FieldAccessStmt.class))
+            assertTrue(stmt.target instanceof Ir.VarRval, stmt.render(0));
+
+        for (int optLevel = 0; optLevel <= 2; optLevel++)
+            TestUtil.compile(source, optLevel);
+    }
+}
@@ -0,0 +1,74 @@
+package pyokagan.cs4212;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compiles JLite programs and runs them on ArmSimulator, or stops at the IR so that single passes can be tested.
+ */
+class TestUtil {
+    private TestUtil() {
+    }
+
+    /**
+     * Returns the contents of a resource relative to this package.
+     */
+    public static String read(String name) throws IOException {
+        try (InputStream in = TestUtil.class.getResourceAsStream(name)) {
+            if (in == null)
+                throw new FileNotFoundException(name);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) > 0)
+                out.write(buf, 0, len);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    public static String compile(String source, int optLevel) throws Exception {
+        return new Compiler(optLevel, 1).compile(new StringReader(source)).render();
+    }
+
+    /**
+     * Compiles source and runs it, returning what it printed.
+     */
+    public static String run(String source, int optLevel, String stdin) throws Exception {
+        return ArmSimulator.run(compile(source, optLevel), stdin);
+    }
+
+    /**
+     * Runs the passes up to SsaPass on source, and returns the method named methName (e.g. "main" or "%Foo_bar").
+     */
+    public static Ir.Meth toSsa(String source, String methName) throws Exception {
+        Ast.Prog prog = Parser.parse(new StringReader(source));
+        StaticCheck.run(prog);
+        Ir.Prog irProg = IrGen.run(prog);
+        for (Ir.Meth meth : irProg.meths) {
+            if (!meth.name.equals(methName))
+                continue;
+            PassManager pm = new PassManager(meth, Metrics.DISABLED);
+            for (PassManager.Pass pass : PassManager.getBackendPasses(0)) {
+                pm.run(pass);
+                if (pass.name.equals("SsaPass"))
+                    return meth;
+            }
+        }
+        throw new IllegalArgumentException("no method named " + methName);
+    }
+
+    /**
+     * Returns the stmts of meth that are instances of cls, in block order.
+     */
+    public static <T extends Ir.Stmt> List<T> getStmts(Ir.Meth meth, Class<T> cls) {
+        ArrayList<T> stmts = new ArrayList<>();
+        for (Ir.Block block : meth.blocks) {
+            for (Ir.Stmt stmt : block.stmts) {
+                if (cls.isInstance(stmt))
+                    stmts.add(cls.cast(stmt));
+            }
+        }
+        return stmts;
+    }
+}